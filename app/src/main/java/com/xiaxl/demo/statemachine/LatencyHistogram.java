@@ -0,0 +1,185 @@
+package com.xiaxl.demo.statemachine;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets: each
+ * power of two is split in SUB_BUCKETS linear buckets, so a value is known
+ * within 1 / SUB_BUCKETS of itself whatever its magnitude, in a fixed
+ * number of buckets.
+ * <p>
+ * A histogram has a single writer, the state machine's thread, which
+ * records a value with a few plain stores and no lock. Any thread may read
+ * it meanwhile: {@link StateMachine#getStateLatency(IState, int)},
+ * {@link StateMachine#getMessageLatency(int)} and
+ * {@link StateMachine#getQueueLatency()} return a copy taken without
+ * stopping the state machine, whose counts may lag the writer by the
+ * values being recorded.
+ * <p>
+ * 对数线性分桶的耗时直方图，单线程写、任意线程读
+ */
+public final class LatencyHistogram {
+
+    /**
+     * log2 of the number of linear buckets per power of two
+     */
+    private static final int SUB_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Values below 2 * SUB_BUCKETS have a bucket each, then SUB_BUCKETS
+     * buckets for each power of two up to Long.MAX_VALUE
+     */
+    public static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mSum;
+    private final AtomicLong mMax;
+
+    /**
+     * Set by copy, a live histogram sums its buckets
+     */
+    private final long mCount;
+
+    LatencyHistogram() {
+        mCounts = new AtomicLongArray(BUCKETS);
+        mSum = new AtomicLong();
+        mMax = new AtomicLong();
+        mCount = -1;
+    }
+
+    private LatencyHistogram(AtomicLongArray counts, long count, long sum, long max) {
+        mCounts = counts;
+        mSum = new AtomicLong(sum);
+        mMax = new AtomicLong(max);
+        mCount = count;
+    }
+
+    /**
+     * @return the bucket of a value
+     */
+    static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (value < 0) ? 0 : (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the lowest value of a bucket
+     */
+    public static long getBucketLowerBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BITS);
+    }
+
+    /**
+     * @return the highest value of a bucket
+     */
+    public static long getBucketUpperBound(int bucket) {
+        return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : getBucketLowerBound(bucket + 1) - 1;
+    }
+
+    /**
+     * Add a value, called by the single writer only.
+     *
+     * @param nanos the duration, negative values count as 0
+     */
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int bucket = bucketOf(nanos);
+        // Single writer: a read and an ordered store instead of a CAS
+        mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+        mSum.lazySet(mSum.get() + nanos);
+        if (nanos > mMax.get()) mMax.lazySet(nanos);
+    }
+
+    /**
+     * @return a copy of the histogram as it is now, which does not change
+     */
+    public LatencyHistogram copy() {
+        long sum = mSum.get();
+        long max = mMax.get();
+        AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = mCounts.get(i);
+            if (c != 0) {
+                counts.lazySet(i, c);
+                count += c;
+            }
+        }
+        return new LatencyHistogram(counts, count, sum, max);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        if (mCount >= 0) return mCount;
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of values recorded in a bucket
+     */
+    public long getBucketCount(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    /**
+     * @return the largest value recorded, exact
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if there are none
+     */
+    public double getMean() {
+        long count = getCount();
+        return (count == 0) ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the value at percentile,
+     * at most the largest value, 0 if there are none
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile=" + percentile);
+        }
+        long count = getCount();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "count=%d mean=%.0fns p50=%dns p99=%dns max=%dns",
+                getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(99),
+                getMax());
+    }
+}
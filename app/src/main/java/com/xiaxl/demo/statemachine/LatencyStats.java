@@ -0,0 +1,237 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * The {@link LatencyHistogram}s of a state machine: per state the time
+ * spent in it and in its enter and exit methods, per message what the
+ * time spent in processMessage. Histograms are created by the state
+ * machine's thread the first time they get a value and published so other
+ * threads can read them.
+ * <p>
+ * The time messages wait in the queue is kept apart for deferred messages:
+ * when moveDeferredMessageAtFrontOfQueue puts them back the stats remember
+ * when each was first deferred and how many times it was put back, and
+ * record both once a dispatch handles it without deferring it again.
+ * <p>
+ * 状态机的耗时统计
+ */
+final class LatencyStats {
+
+    /**
+     * Histograms per message what, sorted by what. Replaced as a whole
+     * when a what is added, so readers always see a consistent table.
+     */
+    private static final class WhatTable {
+        final int whats[];
+        final LatencyHistogram histograms[];
+
+        WhatTable(int whats[], LatencyHistogram histograms[]) {
+            this.whats = whats;
+            this.histograms = histograms;
+        }
+    }
+
+    /**
+     * Per state histograms, indexed by kind * state count + state id
+     */
+    private final AtomicReferenceArray<LatencyHistogram> mStates;
+    private final int mStateCount;
+
+    private volatile WhatTable mWhats = new WhatTable(new int[0], new LatencyHistogram[0]);
+
+    /**
+     * When each active state was entered, writer only
+     */
+    final long enteredAt[];
+
+    /**
+     * Time from sendMessage to dispatch, time from the first deferral of a
+     * deferred message to the dispatch that handled it, and the number of
+     * times such a message was put back on the queue
+     */
+    final LatencyHistogram queue = new LatencyHistogram();
+    final LatencyHistogram deferred = new LatencyHistogram();
+    final LatencyHistogram requeues = new LatencyHistogram();
+
+    /**
+     * Writer only: the deferred messages put back on the queue and not
+     * dispatched yet, in the order they will be, with when each was first
+     * deferred and how many times it was put back
+     */
+    private Message mRequeued[] = new Message[8];
+    private long mRequeuedAt[] = new long[8];
+    private int mRequeueCounts[] = new int[8];
+    private int mRequeuedStart;
+    private int mRequeuedEnd;
+
+    /**
+     * Writer only: for the message being dispatched, when it was first
+     * deferred, 0 if it is not a deferred message put back, how many times
+     * it was put back and when it was dispatched, and whether it was
+     * deferred again
+     */
+    long currentDeferredAt;
+    int currentRequeues;
+    private long mDispatchedAt;
+    boolean redeferred;
+
+    /**
+     * Writer only: the time the last timed call returned, the start of the
+     * next exit or enter method. One System.nanoTime call per method then
+     * times them all, the bookkeeping between processMessage and the first
+     * exit method counts as part of that method.
+     */
+    long stamp;
+
+    LatencyStats(int stateCount) {
+        mStateCount = stateCount;
+        mStates = new AtomicReferenceArray<LatencyHistogram>(3 * stateCount);
+        enteredAt = new long[stateCount];
+    }
+
+    /**
+     * @param kind one of StateMachine.LATENCY_*
+     */
+    void recordState(int kind, int stateId, long nanos) {
+        int index = kind * mStateCount + stateId;
+        LatencyHistogram histogram = mStates.get(index);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            mStates.lazySet(index, histogram);
+        }
+        histogram.record(nanos);
+    }
+
+    void recordMessage(int what, long nanos) {
+        WhatTable table = mWhats;
+        int index = Arrays.binarySearch(table.whats, what);
+        LatencyHistogram histogram;
+        if (index >= 0) {
+            histogram = table.histograms[index];
+        } else {
+            histogram = new LatencyHistogram();
+            index = -index - 1;
+            int size = table.whats.length;
+            int whats[] = new int[size + 1];
+            LatencyHistogram histograms[] = new LatencyHistogram[size + 1];
+            System.arraycopy(table.whats, 0, whats, 0, index);
+            System.arraycopy(table.histograms, 0, histograms, 0, index);
+            whats[index] = what;
+            histograms[index] = histogram;
+            System.arraycopy(table.whats, index, whats, index + 1, size - index);
+            System.arraycopy(table.histograms, index, histograms, index + 1, size - index);
+            mWhats = new WhatTable(whats, histograms);
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Deferred messages are put back on the queue, ahead of those put back
+     * before and not dispatched yet.
+     */
+    void requeue(Message msgs[], long deferredAt[], int counts[]) {
+        int n = msgs.length;
+        int pending = mRequeuedEnd - mRequeuedStart;
+        int size = n + pending;
+        boolean fits = size <= mRequeued.length;
+        Message requeued[] = fits ? mRequeued : new Message[size * 2];
+        long requeuedAt[] = fits ? mRequeuedAt : new long[size * 2];
+        int requeueCounts[] = fits ? mRequeueCounts : new int[size * 2];
+        // Move the pending ones after the new ones, arraycopy allows the overlap
+        System.arraycopy(mRequeued, mRequeuedStart, requeued, n, pending);
+        System.arraycopy(mRequeuedAt, mRequeuedStart, requeuedAt, n, pending);
+        System.arraycopy(mRequeueCounts, mRequeuedStart, requeueCounts, n, pending);
+        if (fits && mRequeuedEnd > size) {
+            Arrays.fill(requeued, size, mRequeuedEnd, null);
+        }
+        System.arraycopy(msgs, 0, requeued, 0, n);
+        System.arraycopy(deferredAt, 0, requeuedAt, 0, n);
+        System.arraycopy(counts, 0, requeueCounts, 0, n);
+        mRequeued = requeued;
+        mRequeuedAt = requeuedAt;
+        mRequeueCounts = requeueCounts;
+        mRequeuedStart = 0;
+        mRequeuedEnd = size;
+    }
+
+    /**
+     * A message is about to be processed: match it against the deferred
+     * messages put back, or record how long it waited in the queue.
+     *
+     * @param now    System.nanoTime
+     * @param sentAt MessageLoop.getEnqueueTime, 0 if unknown
+     */
+    void dispatched(Message msg, long now, long sentAt) {
+        currentDeferredAt = 0;
+        redeferred = false;
+        for (int i = mRequeuedStart; i < mRequeuedEnd; i++) {
+            if (mRequeued[i] == msg) {
+                currentDeferredAt = mRequeuedAt[i];
+                currentRequeues = mRequeueCounts[i];
+                mDispatchedAt = now;
+                // The ones before it were removed from the queue
+                Arrays.fill(mRequeued, mRequeuedStart, i + 1, null);
+                mRequeuedStart = i + 1;
+                if (mRequeuedStart == mRequeuedEnd) mRequeuedStart = mRequeuedEnd = 0;
+                return;
+            }
+        }
+        if (sentAt != 0) queue.record(now - sentAt);
+    }
+
+    /**
+     * The message dispatched last has been processed.
+     */
+    void handled() {
+        if (currentDeferredAt != 0 && !redeferred) {
+            deferred.record(mDispatchedAt - currentDeferredAt);
+            requeues.record(currentRequeues);
+        }
+        currentDeferredAt = 0;
+    }
+
+    /**
+     * @return true if deferred messages put back wait to be dispatched
+     */
+    boolean hasRequeued() {
+        return mRequeuedEnd > mRequeuedStart;
+    }
+
+    /**
+     * Forget the deferred messages put back, the queue is empty so they
+     * were removed.
+     */
+    void clearRequeued() {
+        Arrays.fill(mRequeued, mRequeuedStart, mRequeuedEnd, null);
+        mRequeuedStart = mRequeuedEnd = 0;
+    }
+
+    /**
+     * @return a copy of a state's histogram, null if it has no values
+     */
+    LatencyHistogram copyState(int kind, int stateId) {
+        LatencyHistogram histogram = mStates.get(kind * mStateCount + stateId);
+        return (histogram != null) ? histogram.copy() : null;
+    }
+
+    /**
+     * @return a copy of the histogram of what, null if it has no values
+     */
+    LatencyHistogram copyMessage(int what) {
+        WhatTable table = mWhats;
+        int index = Arrays.binarySearch(table.whats, what);
+        return (index >= 0) ? table.histograms[index].copy() : null;
+    }
+
+    /**
+     * @return the whats that have a histogram, in order
+     */
+    int[] getWhats() {
+        return mWhats.whats.clone();
+    }
+}
@@ -0,0 +1,358 @@
+package com.xiaxl.demo.statemachine;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * A persistent log of the records of a {@link StateMachine}, attached with
+ * {@link StateMachine#setLogRecFile(LogRecFile)}.
+ * <p>
+ * Every record added to the in-memory LogRecords is also appended to a
+ * memory-mapped segment file as a fixed-size binary entry: the time, the
+ * message what and the ids of the processed, original and destination
+ * states. The info string is not kept. Appending only writes to the mapped
+ * memory, the files are created and mapped ahead of time on a background
+ * thread. When a segment is full the next one is used and the oldest
+ * segment beyond maxSegments is deleted.
+ * <p>
+ * Segments are named prefix-NNNNNNNN.smlog and are decoded with
+ * {@link LogRecFileReader}.
+ * <p>
+ * 状态机日志文件，使用内存映射文件分段保存
+ */
+public class LogRecFile implements Closeable {
+
+    private static final String TAG = "LogRecFile";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    static final String SUFFIX = ".smlog";
+
+    /**
+     * Segment layout, all values big endian:
+     * <pre>
+     * int    magic
+     * int    version
+     * int    number of records, updated after each record
+     * int    offset of the first record
+     * long   System.currentTimeMillis when the segment was started
+     * long   System.nanoTime when the segment was started
+     * utf    name of the state machine
+     * int    number of states
+     * utf    name of each state, indexed by state id
+     * ...    records
+     * </pre>
+     * A record is long nanoTime, int what, int state, int orgState, int dstState,
+     * a state id of -1 is no state.
+     */
+    static final int MAGIC = 0x534d4c47;
+    static final int VERSION = 1;
+    static final int COUNT_OFFSET = 8;
+    static final int RECORDS_OFFSET_OFFSET = 12;
+    static final int HEADER_FIXED_SIZE = 32;
+    static final int RECORD_SIZE = 24;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Thread shared by all log files for creating and deleting segments
+     */
+    private static ExecutorService sAllocator;
+
+    private final File mDir;
+    private final String mPrefix;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+
+    /**
+     * The rest is only used by the state machine's thread once opened
+     */
+    private byte mHeader[];
+    private long mSegmentIndex;
+    private MappedByteBuffer mBuffer;
+    private int mRecordsOffset;
+    private int mCount;
+    private int mCapacity;
+    private Future<MappedByteBuffer> mNext;
+    private boolean mClosed;
+
+    /**
+     * true inside a batch, the record count is written when it ends
+     */
+    private boolean mInBatch;
+
+    /**
+     * Create a log file with the default segment size and count.
+     *
+     * @param dir    directory of the segments, created if needed
+     * @param prefix of the segment file names
+     */
+    public LogRecFile(File dir, String prefix) {
+        this(dir, prefix, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Create a log file. Numbering continues after any segments with the
+     * same prefix already in dir.
+     *
+     * @param dir         directory of the segments, created if needed
+     * @param prefix      of the segment file names
+     * @param segmentSize size of each segment in bytes
+     * @param maxSegments number of segments kept, older ones are deleted
+     */
+    public LogRecFile(File dir, String prefix, int segmentSize, int maxSegments) {
+        if (segmentSize <= HEADER_FIXED_SIZE || maxSegments < 1) {
+            throw new IllegalArgumentException("segmentSize=" + segmentSize
+                    + " maxSegments=" + maxSegments);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("LogRecFile: cannot create " + dir);
+        }
+        mDir = dir;
+        mPrefix = prefix;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        mSegmentIndex = lastSegmentIndex(dir, prefix);
+    }
+
+    private static synchronized ExecutorService getAllocator() {
+        if (sAllocator == null) {
+            sAllocator = Executors.newSingleThreadExecutor(
+                    QueueMessageLoop.newThreadFactory("StateMachine-logfile"));
+        }
+        return sAllocator;
+    }
+
+    /**
+     * @return the index of the newest segment in dir, 0 if there is none
+     */
+    private static long lastSegmentIndex(File dir, String prefix) {
+        long last = 0;
+        String names[] = dir.list();
+        if (names == null) return last;
+        for (String name : names) {
+            long index = segmentIndex(name, prefix);
+            if (index > last) last = index;
+        }
+        return last;
+    }
+
+    /**
+     * @return the index of a segment file name, -1 if the name is not a segment of prefix
+     */
+    static long segmentIndex(String name, String prefix) {
+        if (!name.startsWith(prefix + "-") || !name.endsWith(SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length() + 1,
+                    name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(mDir, String.format(Locale.US, "%s-%08d%s", mPrefix, index, SUFFIX));
+    }
+
+    /**
+     * Start the first segment. Called by the state machine when it is
+     * started, the state names are written at the head of every segment.
+     */
+    synchronized void open(String name, String stateNames[]) {
+        if (mHeader != null) {
+            throw new RuntimeException("LogRecFile: already attached to a state machine");
+        }
+        if (mClosed) {
+            throw new RuntimeException("LogRecFile: closed");
+        }
+        mHeader = encodeHeader(name, stateNames);
+        if (HEADER_FIXED_SIZE + mHeader.length + RECORD_SIZE > mSegmentSize) {
+            throw new IllegalArgumentException("LogRecFile: segmentSize too small for "
+                    + stateNames.length + " states");
+        }
+        mNext = allocate(mSegmentIndex + 1);
+        startNextSegment();
+    }
+
+    /**
+     * @return the variable part of the header, the strings and the state count
+     */
+    private static byte[] encodeHeader(String name, String stateNames[]) {
+        int size = 4;
+        byte encoded[][] = new byte[stateNames.length + 1][];
+        encoded[0] = encode(name);
+        for (int i = 0; i < stateNames.length; i++) {
+            encoded[i + 1] = encode(stateNames[i]);
+        }
+        for (byte bytes[] : encoded) {
+            size += 2 + bytes.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        putString(buf, encoded[0]);
+        buf.putInt(stateNames.length);
+        for (int i = 1; i < encoded.length; i++) {
+            putString(buf, encoded[i]);
+        }
+        return buf.array();
+    }
+
+    private static byte[] encode(String s) {
+        byte bytes[] = String.valueOf(s).getBytes(UTF_8);
+        // Lengths are written as an unsigned short
+        return (bytes.length > 0xffff) ? Arrays.copyOf(bytes, 0xffff) : bytes;
+    }
+
+    private static void putString(ByteBuffer buf, byte bytes[]) {
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    /**
+     * Create and map a segment on the allocator thread, deleting the
+     * segment that falls out of the window.
+     */
+    private Future<MappedByteBuffer> allocate(final long index) {
+        return getAllocator().submit(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws IOException {
+                File old = segmentFile(index - mMaxSegments - 1);
+                if (old.exists() && !old.delete()) {
+                    Log.w(TAG, "cannot delete " + old);
+                }
+                RandomAccessFile raf = new RandomAccessFile(segmentFile(index), "rw");
+                try {
+                    raf.setLength(mSegmentSize);
+                    // The mapping stays valid after the file is closed
+                    return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+                } finally {
+                    raf.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Switch to the segment prepared by the allocator and prepare the one after.
+     */
+    private void startNextSegment() {
+        if (mBuffer != null) {
+            // Publish the last records of a batch
+            mBuffer.putInt(COUNT_OFFSET, mCount);
+        }
+        MappedByteBuffer buffer;
+        try {
+            // Normally done long ago
+            buffer = mNext.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            buffer = null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "cannot map segment " + (mSegmentIndex + 1), e.getCause());
+            buffer = null;
+        }
+        mNext = null;
+        mBuffer = buffer;
+        if (buffer == null) {
+            // Stop logging to the file, the state machine carries on
+            return;
+        }
+        mSegmentIndex++;
+        mRecordsOffset = HEADER_FIXED_SIZE + mHeader.length;
+        mCount = 0;
+        mCapacity = (mSegmentSize - mRecordsOffset) / RECORD_SIZE;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(COUNT_OFFSET, 0);
+        buffer.putInt(RECORDS_OFFSET_OFFSET, mRecordsOffset);
+        buffer.putLong(16, System.currentTimeMillis());
+        buffer.putLong(24, System.nanoTime());
+        buffer.position(HEADER_FIXED_SIZE);
+        buffer.put(mHeader);
+        mNext = allocate(mSegmentIndex + 1);
+    }
+
+    /**
+     * Append a record, called on the state machine's thread.
+     */
+    void append(long nanoTime, int what, int state, int orgState, int dstState) {
+        if (mBuffer == null) {
+            return;
+        }
+        if (mCount == mCapacity) {
+            startNextSegment();
+            if (mBuffer == null) return;
+        }
+        MappedByteBuffer buffer = mBuffer;
+        int pos = mRecordsOffset + mCount * RECORD_SIZE;
+        buffer.putLong(pos, nanoTime);
+        buffer.putInt(pos + 8, what);
+        buffer.putInt(pos + 12, state);
+        buffer.putInt(pos + 16, orgState);
+        buffer.putInt(pos + 20, dstState);
+        mCount++;
+        // A reader only decodes the records the count covers
+        if (!mInBatch) {
+            buffer.putInt(COUNT_OFFSET, mCount);
+        }
+    }
+
+    /**
+     * Start a batch, the records appended are published by endBatch.
+     */
+    void beginBatch() {
+        mInBatch = true;
+    }
+
+    void endBatch() {
+        mInBatch = false;
+        if (mBuffer != null) {
+            mBuffer.putInt(COUNT_OFFSET, mCount);
+        }
+    }
+
+    /**
+     * Flush the current segment to the storage device and stop logging.
+     * Call once the state machine has quit, the file cannot be reopened.
+     */
+    @Override
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        MappedByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        if (buffer != null) {
+            buffer.putInt(COUNT_OFFSET, mCount);
+            buffer.force();
+        }
+        if (mNext != null) {
+            // The prepared segment was never used
+            try {
+                mNext.get();
+            } catch (Exception e) {
+                // nothing was created
+            }
+            mNext = null;
+            File unused = segmentFile(mSegmentIndex + 1);
+            if (unused.exists() && !unused.delete()) {
+                Log.w(TAG, "cannot delete " + unused);
+            }
+        }
+    }
+}
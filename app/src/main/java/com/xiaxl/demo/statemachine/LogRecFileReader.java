@@ -0,0 +1,163 @@
+package com.xiaxl.demo.statemachine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Decodes the segments written by {@link LogRecFile} back into
+ * {@link StateMachine.LogRec}s.
+ * <p>
+ * From the command line it prints the records of the given segment files,
+ * or of all the segments in the given directories, in the format of
+ * LogRec.toString:
+ * <pre>
+ * java com.xiaxl.demo.statemachine.LogRecFileReader &lt;segment or dir&gt;...
+ * </pre>
+ * 日志文件解析工具
+ */
+public class LogRecFileReader {
+
+    /**
+     * Stands in for a state of the state machine that wrote the log
+     */
+    private static class NamedState extends State {
+        private final String mName;
+
+        NamedState(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+
+    /**
+     * A decoded segment
+     */
+    public static class Segment {
+        private final String mName;
+        private final List<StateMachine.LogRec> mLogRecs;
+
+        Segment(String name, List<StateMachine.LogRec> logRecs) {
+            mName = name;
+            mLogRecs = logRecs;
+        }
+
+        /**
+         * @return the name of the state machine that wrote the segment, null
+         * if the segment has not been started
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the records of the segment, oldest first
+         */
+        public List<StateMachine.LogRec> getLogRecs() {
+            return mLogRecs;
+        }
+    }
+
+    private LogRecFileReader() {
+    }
+
+    /**
+     * Decode a segment file.
+     *
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    public static Segment read(File file) throws IOException {
+        ByteBuffer buf;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte bytes[] = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            buf = ByteBuffer.wrap(bytes);
+        } finally {
+            raf.close();
+        }
+        if (buf.remaining() >= LogRecFile.HEADER_FIXED_SIZE && buf.getInt(0) == 0) {
+            // Created ahead of time and not started yet
+            return new Segment(null, new ArrayList<StateMachine.LogRec>(0));
+        }
+        if (buf.remaining() < LogRecFile.HEADER_FIXED_SIZE
+                || buf.getInt(0) != LogRecFile.MAGIC) {
+            throw new IOException(file + ": not a state machine log");
+        }
+        if (buf.getInt(4) != LogRecFile.VERSION) {
+            throw new IOException(file + ": unknown version " + buf.getInt(4));
+        }
+        int count = buf.getInt(LogRecFile.COUNT_OFFSET);
+        int recordsOffset = buf.getInt(LogRecFile.RECORDS_OFFSET_OFFSET);
+        long baseTimeMillis = buf.getLong(16);
+        long baseNanos = buf.getLong(24);
+        buf.position(LogRecFile.HEADER_FIXED_SIZE);
+        String name = getString(buf);
+        State states[] = new State[buf.getInt()];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = new NamedState(getString(buf));
+        }
+
+        List<StateMachine.LogRec> logRecs = new ArrayList<StateMachine.LogRec>(count);
+        for (int i = 0; i < count; i++) {
+            int pos = recordsOffset + i * LogRecFile.RECORD_SIZE;
+            long time = baseTimeMillis + (buf.getLong(pos) - baseNanos) / 1000000;
+            logRecs.add(new StateMachine.LogRec(null, time, buf.getInt(pos + 8), null,
+                    getState(states, buf.getInt(pos + 12)),
+                    getState(states, buf.getInt(pos + 16)),
+                    getState(states, buf.getInt(pos + 20))));
+        }
+        return new Segment(name, logRecs);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte bytes[] = new byte[buf.getShort() & 0xffff];
+        buf.get(bytes);
+        return new String(bytes, LogRecFile.UTF_8);
+    }
+
+    private static State getState(State states[], int id) {
+        return (id >= 0 && id < states.length) ? states[id] : null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: LogRecFileReader <segment or dir>...");
+            System.exit(1);
+        }
+        for (String arg : args) {
+            File file = new File(arg);
+            if (file.isDirectory()) {
+                String names[] = file.list();
+                // Zero padded indexes sort in write order
+                Arrays.sort(names);
+                for (String name : names) {
+                    if (name.endsWith(LogRecFile.SUFFIX)) {
+                        print(new File(file, name));
+                    }
+                }
+            } else {
+                print(file);
+            }
+        }
+    }
+
+    private static void print(File file) throws IOException {
+        Segment segment = read(file);
+        if (segment.getName() == null) return;
+        System.out.println(file.getName() + ": " + segment.getName());
+        int i = 0;
+        for (StateMachine.LogRec rec : segment.getLogRecs()) {
+            System.out.printf(" rec[%d]: %s\n", i++, rec.toString());
+        }
+    }
+}
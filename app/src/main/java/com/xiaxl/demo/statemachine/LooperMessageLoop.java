@@ -0,0 +1,254 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+
+/**
+ * A {@link MessageLoop} backed by an android.os.Looper.
+ * <p>
+ * This is the loop used by the original StateMachine constructors, messages
+ * go through the Looper's MessageQueue and are dispatched by a Handler.
+ * <p>
+ * 基于 Looper/Handler 的消息循环
+ */
+public class LooperMessageLoop implements MessageLoop {
+
+    /**
+     * Handler that forwards every message to the attached state machine
+     */
+    private static class LoopHandler extends Handler {
+
+        /**
+         * Qualified, inside a Handler Callback is android.os.Handler.Callback
+         */
+        private MessageLoop.Callback mCallback;
+
+        /**
+         * Message.getWhen of the message being dispatched
+         */
+        private long mWhen;
+
+        private LoopHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            mWhen = msg.getWhen();
+            mCallback.handleMessage(msg);
+        }
+    }
+
+    /**
+     * What identifies a message sent by sendTimer to its Handler
+     */
+    private static final class Timer {
+        final int what;
+        final Object obj;
+
+        Timer(int what, Object obj) {
+            this.what = what;
+            this.obj = obj;
+        }
+    }
+
+    private final LoopHandler mHandler;
+
+    /**
+     * The thread we created, null if the looper belongs to someone else
+     */
+    private HandlerThread mThread;
+
+    /**
+     * Create a loop on the given looper, the looper is not stopped on quit.
+     *
+     * @param looper for dispatching messages
+     */
+    public LooperMessageLoop(Looper looper) {
+        mHandler = new LoopHandler(looper);
+    }
+
+    /**
+     * Create a loop with its own HandlerThread, the thread is stopped on quit.
+     *
+     * @param name of the thread
+     * @return a new loop
+     */
+    public static LooperMessageLoop newThreadLoop(String name) {
+        // 创建 HandlerThread
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        LooperMessageLoop loop = new LooperMessageLoop(thread.getLooper());
+        loop.mThread = thread;
+        return loop;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        if (mHandler.mCallback != null) {
+            throw new IllegalStateException("MessageLoop already attached");
+        }
+        mHandler.mCallback = callback;
+    }
+
+    @Override
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    @Override
+    public boolean sendMessage(Message msg) {
+        return mHandler.sendMessage(msg);
+    }
+
+    /**
+     * The MessageQueue is unbounded, same as sendMessage.
+     */
+    @Override
+    public boolean trySendMessage(Message msg) {
+        return mHandler.sendMessage(msg);
+    }
+
+    /**
+     * The messages are sent one at a time, messages sent by other threads
+     * may be interleaved with them.
+     */
+    @Override
+    public boolean sendMessages(Message msgs[]) {
+        boolean sent = true;
+        for (Message msg : msgs) {
+            sent &= mHandler.sendMessage(msg);
+        }
+        return sent;
+    }
+
+    @Override
+    public boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return mHandler.sendMessageDelayed(msg, delayMillis);
+    }
+
+    @Override
+    public Object sendTimer(Message msg, long delayMillis) {
+        Timer timer = new Timer(msg.what, msg.obj);
+        return mHandler.sendMessageDelayed(msg, delayMillis) ? timer : null;
+    }
+
+    /**
+     * The MessageQueue has no handle on a message, this removes the pending
+     * messages with the same what and obj as the timer, searching the queue.
+     */
+    @Override
+    public void cancelTimer(Object timer) {
+        Timer t = (Timer) timer;
+        mHandler.removeMessages(t.what, t.obj);
+    }
+
+    /**
+     * A message in the MessageQueue cannot be replaced in place.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setCoalescing(int what, MessageCoalescer coalescer, long windowMillis) {
+        throw new UnsupportedOperationException("Coalescing needs a QueueMessageLoop");
+    }
+
+    /**
+     * The MessageQueue does not count its messages.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setCapacity(int capacity, int overflowPolicy) {
+        throw new UnsupportedOperationException("A capacity needs a QueueMessageLoop");
+    }
+
+    /**
+     * @return -1, the MessageQueue does not count its messages
+     */
+    @Override
+    public int getQueueDepth() {
+        return -1;
+    }
+
+    /**
+     * Ignored, the MessageQueue has a single lane.
+     */
+    @Override
+    public void setLane(int what, int lane) {
+    }
+
+    /**
+     * Ignored, every message carries the uptime it was sent at or is due.
+     */
+    @Override
+    public void setQueueTiming(boolean enable) {
+    }
+
+    /**
+     * Derived from Message.getWhen, to the millisecond. Messages sent to the
+     * front of the queue have no time.
+     */
+    @Override
+    public long getEnqueueTime() {
+        long when = mHandler.mWhen;
+        if (when == 0) return 0;
+        return System.nanoTime() - (SystemClock.uptimeMillis() - when) * 1000000L;
+    }
+
+    /**
+     * @return -1, the MessageQueue cannot be looked into
+     */
+    @Override
+    public long getOldestPendingAge() {
+        return -1;
+    }
+
+    @Override
+    public boolean sendMessageAtFrontOfQueue(Message msg) {
+        return mHandler.sendMessageAtFrontOfQueue(msg);
+    }
+
+    /**
+     * Sends the messages to the front one by one, the last first.
+     */
+    @Override
+    public boolean sendMessagesAtFrontOfQueue(Message msgs[]) {
+        boolean sent = true;
+        for (int i = msgs.length - 1; i >= 0; i--) {
+            sent &= mHandler.sendMessageAtFrontOfQueue(msgs[i]);
+        }
+        return sent;
+    }
+
+    /**
+     * The MessageQueue is unbounded, same as sendMessages.
+     */
+    @Override
+    public boolean sendReservedMessages(Message msgs[]) {
+        return sendMessages(msgs);
+    }
+
+    @Override
+    public void removeMessages(int what) {
+        mHandler.removeMessages(what);
+    }
+
+    @Override
+    public boolean hasMessages(int what) {
+        return mHandler.hasMessages(what);
+    }
+
+    @Override
+    public void quit() {
+        if (mThread != null) {
+            // If we made the thread then quit looper which stops the thread.
+            mHandler.getLooper().quit();
+            mThread = null;
+        }
+    }
+}
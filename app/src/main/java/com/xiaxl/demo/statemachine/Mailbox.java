@@ -0,0 +1,639 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+
+/**
+ * The pending messages of a {@link QueueMessageLoop}.
+ * <p>
+ * Any number of threads add messages without locks and without waiting for
+ * one another, a single consumer takes them out, also without locks:
+ * <ul>
+ * <li>messages are appended to the linked queue of their lane, a producer
+ * swaps the tail and links the previous tail to its node</li>
+ * <li>messages sent to the front are pushed on a stack, the newest is
+ * taken first as with Handler.sendMessageAtFrontOfQueue</li>
+ * <li>delayed messages are pushed on a list the consumer moves into its own
+ * {@link TimerWheel}, once due they wait beside their lane and are taken in
+ * due time order with its messages, as a Looper queues them by due time</li>
+ * </ul>
+ * Every message is added for a recipient, the {@link MessageIndex} that
+ * counts its pending messages per what and names the callback it is
+ * dispatched to, null for the loop's own. Removing the messages of a what
+ * only bumps the generation of its counter, the consumer drops the nodes of
+ * older generations when it reaches them. A single message is removed by
+ * clearing the message of its node, the handle returned by add. Either way
+ * the consumer takes a message with an atomic swap and a release of its
+ * counter, so a message is either removed or dispatched, never both.
+ * <p>
+ * The lanes are drained by weighted round robin: a lane takes up to its
+ * weight in messages, then the lanes after it get their turn, so the
+ * messages of a busy lane never keep the others waiting for long. Control
+ * messages have no limit by default, they only wait for the message being
+ * dispatched.
+ * <p>
+ * A message of a what with a {@link MessageCoalescer} is merged into the
+ * pending message of its what by swapping the message of that node.
+ * <p>
+ * 无锁的多生产者单消费者消息队列
+ */
+final class Mailbox {
+
+    /**
+     * A pending message
+     */
+    static final class Node {
+        volatile Message msg;
+        volatile Node next;
+
+        /**
+         * The counter of the message's what and the generation of the
+         * counter the message belongs to
+         */
+        final MessageIndex.Counter counter;
+        final int gen;
+
+        /**
+         * uptimeMillis when a delayed message is due
+         */
+        final long when;
+
+        /**
+         * System.nanoTime when the message was added, or is due if delayed,
+         * 0 unless its recipient's index is timed
+         */
+        final long sentAt;
+
+        /**
+         * Set before the node is linked for a message sent with
+         * addAllReserved, never dropped to make room
+         */
+        boolean reserved;
+
+        /**
+         * Set before the node is linked: uptimeMillis when the message was
+         * added to its lane, 0 if no delayed message was pending then, it
+         * was sent before any that comes due
+         */
+        long queuedAt;
+
+        /**
+         * Consumer only: order of delayed messages due at the same time
+         */
+        long seq;
+
+        /**
+         * Consumer only: next node in the TimerWheel or the due list of its lane
+         */
+        Node wheelNext;
+
+        /**
+         * Counts the message, it must be linked after this.
+         */
+        Node(Message msg, MessageIndex.Counter counter, long when) {
+            this.msg = msg;
+            this.counter = counter;
+            this.gen = (counter != null) ? counter.register() : 0;
+            this.when = when;
+            if (counter == null || !counter.index.timed) {
+                this.sentAt = 0;
+            } else if (when == 0) {
+                this.sentAt = System.nanoTime();
+            } else {
+                this.sentAt = System.nanoTime() + (when - SystemClock.uptimeMillis()) * 1000000L;
+            }
+        }
+
+        /**
+         * @return true if the message has been neither taken nor removed
+         */
+        boolean isLive() {
+            return msg != null && counter.isCurrent(gen);
+        }
+
+        /**
+         * Take the message, consumer only.
+         *
+         * @return the message or null if it was removed
+         */
+        Message take() {
+            Message m = MSG.getAndSet(this, null);
+            return (m != null && counter.release(gen)) ? m : null;
+        }
+    }
+
+    /**
+     * A queue of messages
+     */
+    private static final class Lane {
+        /**
+         * A consumed node whose next is the oldest message
+         */
+        volatile Node head = new Node(null, null, 0);
+        final AtomicReference<Node> tail = new AtomicReference<Node>(head);
+
+        /**
+         * Messages taken in a row before the lanes after this one get a turn
+         */
+        volatile int weight;
+
+        /**
+         * Consumer only: what is left of weight in the current round
+         */
+        int credit;
+
+        /**
+         * Consumer only: the delayed messages of this lane that came due, in
+         * due order linked by wheelNext, taken before the messages queued after
+         */
+        Node dueHead;
+        Node dueTail;
+
+        Lane(int weight) {
+            this.weight = weight;
+            this.credit = weight;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Node, Message> MSG =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Message.class, "msg");
+
+    /**
+     * Number of removed timers tolerated before the consumer cleans up
+     */
+    private static final int PURGE_THRESHOLD = 32;
+
+    /**
+     * The lanes indexed by MessageLoop.LANE_*, in the order they are drained
+     */
+    private final Lane[] mLanes = {
+            new Lane(Integer.MAX_VALUE), new Lane(8), new Lane(1)
+    };
+
+    /**
+     * Top of the stack of messages sent to the front
+     */
+    private final AtomicReference<Node> mFront = new AtomicReference<Node>();
+
+    /**
+     * Top of the list of delayed messages, newest first
+     */
+    private final AtomicReference<Node> mDelayed = new AtomicReference<Node>();
+
+    /**
+     * Number of messages removed by other threads since the last purge of mTimers
+     */
+    private final AtomicInteger mCancelled = new AtomicInteger();
+
+    /**
+     * True while a delayed message may be pending, messages added to a lane
+     * are then stamped with Node.queuedAt. Set by the senders of delayed
+     * messages after they pushed them, cleared by the consumer once it holds
+     * none, so the messages sent meanwhile cost no clock read.
+     */
+    private volatile boolean mStamping;
+
+    /**
+     * Consumer only: the delayed messages, created with the first one, the
+     * newest node of mDelayed already in there and a counter for Node.seq.
+     */
+    private TimerWheel mTimers;
+    private Node mLastSeen;
+    private long mSeq;
+
+    /**
+     * Consumer only: the target of the message last returned by poll and
+     * the Node.sentAt of its node
+     */
+    private MessageLoop.Callback mPolledTarget;
+    private long mPolledSentAt;
+
+    /**
+     * Append a message.
+     *
+     * @return the handle of the message for cancel
+     */
+    Node add(Message msg, MessageIndex.Counter counter) {
+        Node node = new Node(msg, counter, 0);
+        node.queuedAt = queuedAt();
+        append(node);
+        return node;
+    }
+
+    /**
+     * @return the Node.queuedAt of a message added now
+     */
+    private long queuedAt() {
+        return mStamping ? SystemClock.uptimeMillis() : 0;
+    }
+
+    private void append(Node node) {
+        Node prev = mLanes[node.counter.lane].tail.getAndSet(node);
+        // Until this write the consumer sees the queue as ending at prev
+        prev.next = node;
+    }
+
+    /**
+     * Add a message of a what with a coalescer that could not be merged,
+     * the messages sent next are merged into it. It is held for the
+     * counter's window. Two senders racing may both add a message, there is
+     * then more than one pending for a moment.
+     */
+    void addCoalesced(Message msg, MessageIndex.Counter counter) {
+        Node node;
+        long window = counter.windowMillis;
+        if (window > 0) {
+            node = new Node(msg, counter, SystemClock.uptimeMillis() + window);
+            pushDelayed(node);
+        } else {
+            node = new Node(msg, counter, 0);
+            node.queuedAt = queuedAt();
+            append(node);
+        }
+        counter.coalescing = node;
+    }
+
+    /**
+     * Merge a message into the counter's coalescing node, the latest
+     * message of its what tracked for merging, if it is still pending.
+     *
+     * @return false if there is no pending message to merge into
+     */
+    boolean merge(Message msg, MessageIndex.Counter counter, MessageCoalescer coalescer) {
+        Node node = counter.coalescing;
+        if (node == null) return false;
+        Message pending;
+        while ((pending = node.msg) != null) {
+            Message merged = coalescer.coalesce(pending, msg);
+            if (MSG.compareAndSet(node, pending, merged)) {
+                // Unless removed meanwhile, then msg goes on its own
+                return counter.isCurrent(node.gen);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the oldest queued message of index, from the lowest lane that
+     * has one, any thread. Reserved messages are skipped. The lanes are walked from their heads, nodes are
+     * never unlinked so a head the consumer has moved past is still a valid
+     * start.
+     *
+     * @return false if index has no queued message
+     */
+    boolean removeOldest(MessageIndex index) {
+        for (int i = mLanes.length - 1; i >= 0; i--) {
+            for (Node node = mLanes[i].head.next; node != null; node = node.next) {
+                if (node.counter.index != index || node.reserved) continue;
+                Message msg = node.msg;
+                if (msg != null && MSG.compareAndSet(node, msg, null)
+                        && node.counter.release(node.gen)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append messages to the lane of the first one, no message added by
+     * another thread comes between them.
+     */
+    void addAll(Message msgs[], MessageIndex index) {
+        if (msgs.length == 0) return;
+        long queuedAt = queuedAt();
+        Node first = new Node(msgs[0], index.counter(msgs[0].what), 0);
+        first.queuedAt = queuedAt;
+        Node last = first;
+        for (int i = 1; i < msgs.length; i++) {
+            Node node = new Node(msgs[i], index.counter(msgs[i].what), 0);
+            node.queuedAt = queuedAt;
+            last.next = node;
+            last = node;
+        }
+        Node prev = mLanes[first.counter.lane].tail.getAndSet(last);
+        prev.next = first;
+    }
+
+    /**
+     * Append messages each to its own lane, never dropped by removeOldest.
+     */
+    void addAllReserved(Message msgs[], MessageIndex index) {
+        long queuedAt = queuedAt();
+        for (Message msg : msgs) {
+            Node node = new Node(msg, index.counter(msg.what), 0);
+            node.reserved = true;
+            node.queuedAt = queuedAt;
+            append(node);
+        }
+    }
+
+    /**
+     * Add a message that is taken before any other.
+     */
+    void addAtFront(Message msg, MessageIndex index) {
+        push(mFront, new Node(msg, index.counter(msg.what), 0));
+    }
+
+    /**
+     * Add messages that are taken before any other, msgs[0] first. They
+     * are linked, then pushed in one step.
+     */
+    void addAllAtFront(Message msgs[], MessageIndex index) {
+        if (msgs.length == 0) return;
+        Node first = new Node(msgs[0], index.counter(msgs[0].what), 0);
+        Node last = first;
+        for (int i = 1; i < msgs.length; i++) {
+            Node node = new Node(msgs[i], index.counter(msgs[i].what), 0);
+            last.next = node;
+            last = node;
+        }
+        Node next;
+        do {
+            next = mFront.get();
+            last.next = next;
+        } while (!mFront.compareAndSet(next, first));
+    }
+
+    /**
+     * Add a message that is due at uptimeMillis when.
+     *
+     * @return the handle of the message for cancel
+     */
+    Node addDelayed(Message msg, MessageIndex index, long when) {
+        Node node = new Node(msg, index.counter(msg.what), when);
+        pushDelayed(node);
+        return node;
+    }
+
+    private void pushDelayed(Node node) {
+        push(mDelayed, node);
+        // After the push, the consumer clears it only once it has seen no delayed message left
+        if (!mStamping) mStamping = true;
+    }
+
+    private static void push(AtomicReference<Node> top, Node node) {
+        Node next;
+        do {
+            next = top.get();
+            node.next = next;
+        } while (!top.compareAndSet(next, node));
+    }
+
+    /**
+     * Remove a message added by add or addDelayed if it is still pending, any thread.
+     */
+    void cancel(Node node) {
+        Message msg = node.msg;
+        if (msg != null && MSG.compareAndSet(node, msg, null)
+                && node.counter.release(node.gen) && node.when != 0) {
+            // Only delayed messages have a due time, one that came due is counted too,
+            // that only makes the next purge come early
+            mCancelled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Take the next message, consumer only.
+     *
+     * @return the message or null if there is none to dispatch now
+     */
+    Message poll() {
+        Message msg;
+        // Front messages, newest first
+        Node front;
+        while ((front = mFront.get()) != null) {
+            // Nodes are never pushed twice so the stack is free of ABA
+            if (mFront.compareAndSet(front, front.next)) {
+                msg = front.take();
+                if (msg != null) {
+                    mPolledTarget = front.counter.index.target;
+                    mPolledSentAt = front.sentAt;
+                    return msg;
+                }
+            }
+        }
+        // Due delayed messages wait beside their lane, in due order
+        collectTimers();
+        if (mTimers != null && mTimers.size() > 0) {
+            long now = SystemClock.uptimeMillis();
+            Node timer;
+            while ((timer = mTimers.pollDue(now)) != null) {
+                Lane lane = mLanes[timer.counter.lane];
+                if (lane.dueTail == null) {
+                    lane.dueHead = timer;
+                } else {
+                    lane.dueTail.wheelNext = timer;
+                }
+                lane.dueTail = timer;
+            }
+        } else if (mStamping && !hasDue()) {
+            mStamping = false;
+            // Pushed before the flag was cleared, its sender may have seen it still set
+            if (mDelayed.get() != mLastSeen) mStamping = true;
+        }
+        // The lanes, each takes its weight in messages per round
+        for (int round = 0; round < 2; round++) {
+            boolean waiting = false;
+            for (Lane lane : mLanes) {
+                if (lane.credit > 0) {
+                    msg = poll(lane);
+                    if (msg != null) {
+                        lane.credit--;
+                        return msg;
+                    }
+                } else if (lane.head.next != null || lane.dueHead != null) {
+                    waiting = true;
+                }
+            }
+            // The lanes with credit are empty, start a new round if others wait
+            if (!waiting) break;
+            for (Lane lane : mLanes) {
+                lane.credit = lane.weight;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take the next message of a lane, a due delayed message goes before
+     * the messages added from its due time on.
+     */
+    private Message poll(Lane lane) {
+        Node head = lane.head;
+        for (;;) {
+            Node next = head.next;
+            Node due = lane.dueHead;
+            Node node;
+            if (due != null && (next == null || due.when <= next.queuedAt)) {
+                lane.dueHead = due.wheelNext;
+                if (lane.dueHead == null) lane.dueTail = null;
+                due.wheelNext = null;
+                node = due;
+            } else if (next != null) {
+                head = next;
+                node = next;
+            } else {
+                lane.head = head;
+                return null;
+            }
+            Message msg = node.take();
+            if (msg != null) {
+                lane.head = head;
+                mPolledTarget = node.counter.index.target;
+                mPolledSentAt = node.sentAt;
+                return msg;
+            }
+        }
+    }
+
+    /**
+     * @return true if a lane holds a delayed message that came due, consumer only
+     */
+    private boolean hasDue() {
+        for (Lane lane : mLanes) {
+            if (lane.dueHead != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Set how many messages a lane takes in a row, any thread.
+     */
+    void setWeight(int lane, int weight) {
+        mLanes[lane].weight = weight;
+    }
+
+    /**
+     * @return the target of the message last returned by poll, consumer only
+     */
+    MessageLoop.Callback getPolledTarget() {
+        return mPolledTarget;
+    }
+
+    /**
+     * @return the Node.sentAt of the message last returned by poll, consumer only
+     */
+    long getPolledSentAt() {
+        return mPolledSentAt;
+    }
+
+    /**
+     * Find the time stamp of the oldest message of index waiting to be
+     * taken, any thread. Delayed messages are not counted, they may not be
+     * due yet. The first live node of index in each lane is its oldest
+     * there, so a loop with one recipient looks at a few nodes, one shared
+     * by many may walk past the messages of the others.
+     *
+     * @return the smallest Node.sentAt, Long.MAX_VALUE if there is none
+     */
+    long oldestSentAt(MessageIndex index) {
+        long oldest = Long.MAX_VALUE;
+        for (Node node = mFront.get(); node != null; node = node.next) {
+            if (node.counter.index == index && node.sentAt != 0 && node.isLive()) {
+                oldest = Math.min(oldest, node.sentAt);
+            }
+        }
+        for (Lane lane : mLanes) {
+            for (Node node = lane.head.next; node != null; node = node.next) {
+                if (node.counter.index == index && node.isLive()) {
+                    if (node.sentAt != 0) oldest = Math.min(oldest, node.sentAt);
+                    break;
+                }
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * @return true if no message has been added since poll last returned
+     * null, consumer only.
+     */
+    boolean isEmpty() {
+        if (mFront.get() != null || mDelayed.get() != mLastSeen) return false;
+        for (Lane lane : mLanes) {
+            if (lane.tail.get() != lane.head || lane.dueHead != null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the uptimeMillis when the next delayed message is due,
+     * Long.MAX_VALUE if there is none. Consumer only.
+     */
+    long nextTimerTime() {
+        collectTimers();
+        return (mTimers != null) ? mTimers.nextTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Move the delayed messages added since the last call into mTimers and
+     * drop the removed ones once there are enough of them.
+     */
+    private void collectTimers() {
+        Node top = mDelayed.get();
+        if (top != mLastSeen) {
+            if (mTimers == null) mTimers = new TimerWheel();
+            // The list is newest first, reverse it to add the nodes in the order they were sent
+            Node oldest = null;
+            for (Node node = top; node != mLastSeen; node = node.next) {
+                node.wheelNext = oldest;
+                oldest = node;
+            }
+            while (oldest != null) {
+                Node node = oldest;
+                oldest = node.wheelNext;
+                node.seq = mSeq++;
+                mTimers.add(node);
+            }
+            // Producers only read the top, the nodes below it are in mTimers
+            top.next = null;
+            mLastSeen = top;
+        }
+        if (mTimers == null) return;
+
+        int cancelled = mCancelled.get();
+        if (cancelled > PURGE_THRESHOLD && cancelled > mTimers.size() / 2) {
+            mTimers.purge();
+            mCancelled.addAndGet(-cancelled);
+        }
+    }
+
+    /**
+     * Remove the pending messages of index with the given what, any thread.
+     */
+    void remove(int what, MessageIndex index) {
+        int removed = index.remove(what);
+        if (removed > 0) mCancelled.addAndGet(removed);
+    }
+
+    /**
+     * Remove all the pending messages of index, any thread.
+     */
+    void removeAll(MessageIndex index) {
+        int removed = index.removeAll();
+        if (removed > 0) mCancelled.addAndGet(removed);
+    }
+
+    /**
+     * Drop all pending messages, consumer only.
+     */
+    void clear() {
+        mFront.set(null);
+        for (Lane lane : mLanes) {
+            lane.head = lane.tail.get();
+            lane.dueHead = null;
+            lane.dueTail = null;
+        }
+        mDelayed.set(null);
+        mLastSeen = null;
+        if (mTimers != null) mTimers.clear();
+        mCancelled.set(0);
+        mPolledTarget = null;
+    }
+}
@@ -0,0 +1,47 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+
+/**
+ * Merges a message sent with {@link MessageLoop#sendMessage(Message)} into
+ * the message of the same what still pending, set per what with
+ * {@link StateMachine#setCoalescing(int, MessageCoalescer, long)}. A burst
+ * of updates then costs the state machine one message, however fast they
+ * are sent.
+ * <p>
+ * 合并同一 what 的待处理消息
+ */
+public interface MessageCoalescer {
+
+    /**
+     * Merge a message into the pending one. Called on the sending thread,
+     * possibly by several senders at once for the same pending message, so
+     * neither message may be modified: return one of them or a new message.
+     *
+     * @param pending  the message still waiting to be dispatched
+     * @param incoming the message being sent
+     * @return the message left pending in place of pending
+     */
+    Message coalesce(Message pending, Message incoming);
+
+    /**
+     * Keep the message sent last, the pending one is dropped
+     */
+    MessageCoalescer KEEP_LATEST = new MessageCoalescer() {
+        @Override
+        public Message coalesce(Message pending, Message incoming) {
+            return incoming;
+        }
+    };
+
+    /**
+     * Keep the pending message, the one sent is dropped
+     */
+    MessageCoalescer KEEP_FIRST = new MessageCoalescer() {
+        @Override
+        public Message coalesce(Message pending, Message incoming) {
+            return pending;
+        }
+    };
+}
@@ -0,0 +1,23 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+
+/**
+ * Handles a single message what for a state, registered with
+ * {@link StateMachine#addMessageHandler(State, int, MessageHandler)}.
+ * <p>
+ * 处理某个状态下的某一种消息
+ */
+public interface MessageHandler {
+
+    /**
+     * Called instead of the state's processMessage for the registered what.
+     * Same threading rules as {@link IState#processMessage(Message)}.
+     *
+     * @param msg to process
+     * @return HANDLED if processing has completed and NOT_HANDLED
+     * if the message should be passed on to the parent states.
+     */
+    boolean handleMessage(Message msg);
+}
@@ -0,0 +1,254 @@
+package com.xiaxl.demo.statemachine;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The pending messages of one recipient of a {@link Mailbox}, counted per
+ * message what.
+ * <p>
+ * Each what has a {@link Counter} holding a generation and the number of
+ * pending messages. A message joins the current generation of its what when
+ * it is added. Removing the messages of a what starts a new generation in
+ * one atomic step, the messages of older generations stay where they are
+ * and are dropped when the consumer reaches them. Counting, looking up and
+ * removing the messages of a what thus take constant time whatever the
+ * number of pending messages.
+ * <p>
+ * The index also counts all the pending messages of the recipient against
+ * its capacity. Senders reserve room before adding a message, the counters
+ * give it back when the message is dispatched or removed and wake up the
+ * senders waiting for room.
+ * <p>
+ * 按 what 索引的待处理消息计数
+ */
+final class MessageIndex {
+
+    /**
+     * The generation of a what in the high 32 bits and the number of its
+     * pending messages in the low 32 bits
+     */
+    static final class Counter extends AtomicLong {
+        // Never serialized, AtomicLong is Serializable
+        private static final long serialVersionUID = 1L;
+
+        final MessageIndex index;
+
+        /**
+         * How messages of the what sent with sendMessage are merged, null to
+         * not merge them, the time the first of a burst is held and the
+         * latest message added with the coalescer.
+         */
+        volatile MessageCoalescer coalescer;
+        volatile long windowMillis;
+        volatile Mailbox.Node coalescing;
+
+        /**
+         * The lane messages of the what are added to
+         */
+        volatile int lane = MessageLoop.LANE_NORMAL;
+
+        Counter(MessageIndex index) {
+            this.index = index;
+        }
+
+        /**
+         * Count a message being added.
+         *
+         * @return the generation of the message
+         */
+        int register() {
+            long s;
+            do {
+                s = get();
+            } while (!compareAndSet(s, s + 1));
+            return (int) (s >>> 32);
+        }
+
+        /**
+         * A message of generation gen leaves the mailbox.
+         *
+         * @return false if the message was removed, it must not be dispatched
+         */
+        boolean release(int gen) {
+            long s;
+            do {
+                s = get();
+                if ((int) (s >>> 32) != gen) return false;
+            } while (!compareAndSet(s, s - 1));
+            index.release(1);
+            return true;
+        }
+
+        /**
+         * Remove the pending messages.
+         *
+         * @return the number removed
+         */
+        int removeAll() {
+            long s;
+            do {
+                s = get();
+            } while (!compareAndSet(s, ((s >>> 32) + 1) << 32));
+            if ((int) s > 0) index.release((int) s);
+            return (int) s;
+        }
+
+        boolean isCurrent(int gen) {
+            return (int) (get() >>> 32) == gen;
+        }
+
+        int count() {
+            return (int) get();
+        }
+    }
+
+    /**
+     * The callback the messages are dispatched to, null for the loop's own
+     */
+    final MessageLoop.Callback target;
+
+    private final ConcurrentHashMap<Integer, Counter> mCounters =
+            new ConcurrentHashMap<Integer, Counter>(4);
+
+    /**
+     * Number of pending messages, the room reserved for them
+     */
+    private final AtomicInteger mDepth = new AtomicInteger();
+
+    /**
+     * Maximum number of pending messages and what happens to a message sent
+     * beyond it, one of MessageLoop.OVERFLOW_*
+     */
+    volatile int capacity = Integer.MAX_VALUE;
+    volatile int overflowPolicy = MessageLoop.OVERFLOW_BLOCK;
+
+    /**
+     * Number of senders waiting for room, they wait on the index
+     */
+    volatile int waiters;
+
+    /**
+     * true to time stamp the messages added, see Mailbox.Node#sentAt
+     */
+    volatile boolean timed;
+
+    MessageIndex(MessageLoop.Callback target) {
+        this.target = target;
+    }
+
+    /**
+     * @return the counter of what, created if needed
+     */
+    Counter counter(int what) {
+        Integer key = what;
+        Counter counter = mCounters.get(key);
+        if (counter == null) {
+            Counter created = new Counter(this);
+            counter = mCounters.putIfAbsent(key, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * Reserve room for n messages if there is enough.
+     *
+     * @return false if it would exceed the capacity
+     */
+    boolean tryAcquire(int n) {
+        int c = capacity;
+        if (c == Integer.MAX_VALUE) {
+            mDepth.addAndGet(n);
+            return true;
+        }
+        int depth;
+        do {
+            depth = mDepth.get();
+            if (depth > c - n) return false;
+        } while (!mDepth.compareAndSet(depth, depth + n));
+        return true;
+    }
+
+    /**
+     * Reserve room for n messages even beyond the capacity
+     */
+    void acquire(int n) {
+        mDepth.addAndGet(n);
+    }
+
+    /**
+     * Give back the room of n messages dispatched or removed
+     */
+    void release(int n) {
+        mDepth.addAndGet(-n);
+        if (waiters > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of pending messages
+     */
+    int depth() {
+        return mDepth.get();
+    }
+
+    /**
+     * Merge the messages of what, see {@link Mailbox#addCoalesced}.
+     *
+     * @param coalescer    null to stop merging
+     * @param windowMillis time the first message of a burst is held
+     */
+    void setCoalescing(int what, MessageCoalescer coalescer, long windowMillis) {
+        Counter counter = counter(what);
+        counter.windowMillis = Math.max(windowMillis, 0);
+        counter.coalescer = coalescer;
+        if (coalescer == null) counter.coalescing = null;
+    }
+
+    /**
+     * Add the messages of what to lane from now on.
+     */
+    void setLane(int what, int lane) {
+        if (lane < MessageLoop.LANE_CONTROL || lane > MessageLoop.LANE_BULK) {
+            throw new IllegalArgumentException("setLane: no lane " + lane);
+        }
+        counter(what).lane = lane;
+    }
+
+    /**
+     * @return the number of pending messages with the given what
+     */
+    int count(int what) {
+        Counter counter = mCounters.get(what);
+        return (counter != null) ? counter.count() : 0;
+    }
+
+    /**
+     * Remove the pending messages with the given what.
+     *
+     * @return the number removed
+     */
+    int remove(int what) {
+        Counter counter = mCounters.get(what);
+        return (counter != null) ? counter.removeAll() : 0;
+    }
+
+    /**
+     * Remove all the pending messages.
+     *
+     * @return the number removed
+     */
+    int removeAll() {
+        int removed = 0;
+        for (Counter counter : mCounters.values()) {
+            removed += counter.removeAll();
+        }
+        return removed;
+    }
+}
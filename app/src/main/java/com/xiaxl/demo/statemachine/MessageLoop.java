@@ -0,0 +1,240 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Handler;
+import android.os.Message;
+
+
+/**
+ * The message loop that drives a {@link StateMachine}.
+ * <p>
+ * The state machine only needs a queue to hold its messages and a thread
+ * that hands them back one at a time. Keeping that behind this interface
+ * lets the same hierarchical engine run on an android.os.Looper
+ * ({@link LooperMessageLoop}) or on a plain JVM queue driven by an
+ * executor ({@link QueueMessageLoop}).
+ * <p>
+ * 状态机的消息循环，一个消息循环只服务于一个状态机
+ */
+public interface MessageLoop {
+
+    /**
+     * Lanes of a loop that has them, see {@link #setLane(int, int)}: control
+     * messages are dispatched before any other, normal and bulk ones share
+     * the loop by weight.
+     */
+    int LANE_CONTROL = 0;
+    int LANE_NORMAL = 1;
+    int LANE_BULK = 2;
+
+    /**
+     * What happens to a message sent when the loop holds as many pending
+     * messages as its capacity, see {@link #setCapacity(int, int)}:
+     * <ul>
+     * <li>OVERFLOW_BLOCK: the sender waits for room, trySendMessage fails</li>
+     * <li>OVERFLOW_FAIL: sendMessage throws an IllegalStateException,
+     * trySendMessage fails</li>
+     * <li>OVERFLOW_DROP_OLDEST: the oldest queued message makes room</li>
+     * <li>OVERFLOW_DROP_NEWEST: the message is dropped</li>
+     * <li>OVERFLOW_COALESCE: the message replaces the latest pending one of
+     * its what, with the what's {@link MessageCoalescer} if it has one,
+     * and is dropped if there is none</li>
+     * </ul>
+     */
+    int OVERFLOW_BLOCK = 0;
+    int OVERFLOW_FAIL = 1;
+    int OVERFLOW_DROP_OLDEST = 2;
+    int OVERFLOW_DROP_NEWEST = 3;
+    int OVERFLOW_COALESCE = 4;
+
+    /**
+     * Receives the messages dispatched by the loop.
+     * <p>
+     * handleMessage is always called on the loop's thread and is never
+     * reentered, so the state machine needs no synchronization.
+     */
+    interface Callback {
+        void handleMessage(Message msg);
+    }
+
+    /**
+     * A Callback that is told when a batch of messages starts and ends, so
+     * bookkeeping such as time stamps and log flushes is done once per batch.
+     * Both are called on the loop's thread, a loop that does not batch
+     * never calls them.
+     */
+    interface BatchCallback extends Callback {
+        void beginBatch();
+
+        void endBatch();
+    }
+
+    /**
+     * Attach the state machine that will receive the messages.
+     * A loop may only be attached once.
+     *
+     * @param callback the receiver of all messages sent to this loop
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * @return the Handler backing this loop, or null if the loop is not
+     * backed by an android.os.Looper.
+     */
+    Handler getHandler();
+
+    /**
+     * Enqueue a message at the end of the queue.
+     *
+     * @return true if the message was placed on the queue
+     */
+    boolean sendMessage(Message msg);
+
+    /**
+     * Enqueue a message if there is room for it, never waiting and never
+     * throwing whatever the overflow policy.
+     *
+     * @return true if the message was accepted, placed on the queue or
+     * merged into a pending one
+     */
+    boolean trySendMessage(Message msg);
+
+    /**
+     * Enqueue messages at the end of the queue, in order. A loop that can
+     * do so enqueues them in one step so no message sent by another thread
+     * comes between them.
+     *
+     * @return true if the messages were placed on the queue
+     */
+    boolean sendMessages(Message msgs[]);
+
+    /**
+     * Enqueue a message after all pending messages due before now + delayMillis.
+     *
+     * @return true if the message was placed on the queue
+     */
+    boolean sendMessageDelayed(Message msg, long delayMillis);
+
+    /**
+     * Enqueue a message like sendMessageDelayed and return a handle that
+     * removes it again, as state timeouts do on every exit.
+     *
+     * @return the handle for cancelTimer, null if the message was not
+     * placed on the queue
+     */
+    Object sendTimer(Message msg, long delayMillis);
+
+    /**
+     * Remove the message sent by sendTimer if it is still pending.
+     *
+     * @param timer the handle returned by sendTimer
+     */
+    void cancelTimer(Object timer);
+
+    /**
+     * Merge the messages with the given what sent by sendMessage into the
+     * one still pending, if any, instead of queueing each of them. Optional,
+     * see {@link MessageCoalescer}.
+     *
+     * @param coalescer    how a message is merged, null to queue each message again
+     * @param windowMillis time the first message of a burst is held so the
+     *                     ones following it are merged into it, 0 for none
+     * @throws UnsupportedOperationException if the loop cannot replace a
+     *                                       pending message
+     */
+    void setCoalescing(int what, MessageCoalescer coalescer, long windowMillis);
+
+    /**
+     * Bound the number of pending messages. Messages sent to the front of
+     * the queue, timers and reserved messages are counted but always
+     * accepted, so are the messages the loop's thread sends itself: it
+     * would otherwise wait for itself. Optional.
+     *
+     * @param capacity       maximum number of pending messages, at least 1
+     * @param overflowPolicy one of the OVERFLOW_* policies
+     * @throws UnsupportedOperationException if the loop cannot count its
+     *                                       pending messages
+     */
+    void setCapacity(int capacity, int overflowPolicy);
+
+    /**
+     * @return the number of pending messages, -1 if the loop does not count them
+     */
+    int getQueueDepth();
+
+    /**
+     * Time stamp the messages sent from now on, for
+     * {@link #getEnqueueTime()} and {@link #getOldestPendingAge()}.
+     * Optional, a loop whose messages carry a time already ignores it.
+     */
+    void setQueueTiming(boolean enable);
+
+    /**
+     * Called on the loop's thread while a message is being dispatched.
+     *
+     * @return the System.nanoTime when the message was sent, or was due if
+     * it was delayed, 0 if it has no time stamp
+     */
+    long getEnqueueTime();
+
+    /**
+     * @return how long, in nanoseconds, the oldest pending message has been
+     * waiting, 0 if there is none, -1 if the messages are not time stamped.
+     * Delayed messages are not counted.
+     */
+    long getOldestPendingAge();
+
+    /**
+     * Queue the messages with the given what in a lane, so for instance
+     * commands and health checks are not stuck behind a backlog of bulk
+     * events. Messages keep their order within a lane. Optional, a loop
+     * with a single queue ignores it.
+     *
+     * @param lane LANE_CONTROL, LANE_NORMAL, the default, or LANE_BULK
+     */
+    void setLane(int what, int lane);
+
+    /**
+     * Enqueue a message at the front of the queue, it will be the next
+     * message dispatched.
+     *
+     * @return true if the message was placed on the queue
+     */
+    boolean sendMessageAtFrontOfQueue(Message msg);
+
+    /**
+     * Enqueue messages at the front of the queue, in order: msgs[0] is the
+     * next message dispatched, the last one is followed by the messages
+     * that were pending. A loop that can do so enqueues them in one step.
+     *
+     * @return true if the messages were placed on the queue
+     */
+    boolean sendMessagesAtFrontOfQueue(Message msgs[]);
+
+    /**
+     * Enqueue the state machine's own messages, such as its quit messages,
+     * each at the end of its lane. They are counted but never refused,
+     * waited for or dropped by the overflow policy, so a full loop cannot
+     * keep the state machine from quitting. A loop with a single queue
+     * enqueues them in order.
+     *
+     * @return true if the messages were placed on the queue
+     */
+    boolean sendReservedMessages(Message msgs[]);
+
+    /**
+     * Remove any pending messages with the given what, including delayed ones.
+     */
+    void removeMessages(int what);
+
+    /**
+     * @return true if there are pending messages with the given what
+     */
+    boolean hasMessages(int what);
+
+    /**
+     * Stop the loop. Called once from the loop's thread after the state
+     * machine has quit. Pending messages are discarded and, if the loop
+     * created its own thread, that thread is stopped.
+     */
+    void quit();
+}
@@ -0,0 +1,837 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A {@link MessageLoop} that does not need android.os.Looper.
+ * <p>
+ * Messages are kept in a lock-free {@link Mailbox} owned by the loop and
+ * dispatched by a task submitted to an {@link Executor}. At most one
+ * dispatch task is in flight at any time so messages are processed serially
+ * and in order even when the executor has many threads. Senders on any
+ * number of threads never block one another. Delayed messages wait in the
+ * mailbox, a {@link ScheduledExecutorService} only wakes the loop up when
+ * the earliest of them is due. The mailbox counts the pending messages
+ * per what, removeMessages, hasMessages and {@link #countMessages(int)}
+ * take constant time however many messages are pending.
+ * <p>
+ * The number of pending messages can be bounded with
+ * {@link #setCapacity(int, int)}, the overflow policy decides what happens to
+ * the messages sent beyond it. {@link #getQueueDepth()} tells how many are
+ * pending.
+ * <p>
+ * Messages are queued in three lanes, control, normal and bulk, chosen per
+ * what with {@link #setLane(int, int)} and drained by weight, see
+ * {@link #setLaneWeight(int, int)}.
+ * <p>
+ * With {@link #setBatchSize(int)} messages are dispatched in batches, a
+ * {@link MessageLoop.BatchCallback} is told where each batch starts and ends.
+ * <p>
+ * 不依赖 Looper 的消息循环，可以在普通 JVM 中运行状态机
+ */
+public class QueueMessageLoop implements MessageLoop {
+
+    /**
+     * Timer shared by all loops that were not given one
+     */
+    private static ScheduledExecutorService sDefaultTimer;
+
+    /**
+     * Thread.ofVirtual, Thread.Builder.name and Thread.Builder.factory,
+     * looked up once as they only exist from Java 21.
+     */
+    private static Method sOfVirtual;
+    private static Method sBuilderName;
+    private static Method sBuilderFactory;
+    private static boolean sVirtualThreadsResolved;
+
+    private final Executor mExecutor;
+
+    private final ScheduledExecutorService mTimer;
+
+    /**
+     * The executor we created, shut down on quit. null if the executor was supplied.
+     */
+    private final ExecutorService mOwnedExecutor;
+
+    private final Mailbox mMailbox = new Mailbox();
+
+    /**
+     * The pending messages for the loop's own callback, per what
+     */
+    private final MessageIndex mIndex = new MessageIndex(null);
+
+    /**
+     * How long a sender waiting for room sleeps before it checks whether
+     * the loop has quit, the loops of a StateMachineGroup are not told
+     */
+    private static final long ROOM_WAIT_MILLIS = 100;
+
+    /**
+     * Outcome of an overflow: the message was rejected, room was made for
+     * it or it was merged into a pending message
+     */
+    private static final int REJECTED = 0;
+    private static final int ADMITTED = 1;
+    private static final int MERGED = 2;
+
+    /**
+     * The thread running the dispatch task, it never waits for room
+     */
+    private volatile Thread mDispatchThread;
+
+    /**
+     * true while a dispatch task is submitted or running
+     */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private volatile boolean mHasQuit;
+
+    private Callback mCallback;
+    private BatchCallback mBatchCallback;
+
+    /**
+     * Maximum number of messages in a batch, 1 to not batch
+     */
+    private volatile int mBatchSize = 1;
+
+    /**
+     * Maximum number of messages dispatched before the dispatch task lets
+     * the other tasks of the executor run
+     */
+    private volatile int mMaxMessagesPerRun = Integer.MAX_VALUE;
+
+    /**
+     * Dispatch task only: the uptimeMillis the timer wakes us up at and its future
+     */
+    private long mWakeUpTime = Long.MAX_VALUE;
+    private ScheduledFuture<?> mWakeUp;
+
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatchMessages();
+        }
+    };
+
+    private final Runnable mWakeUpTask = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    /**
+     * Create a loop with its own thread, the thread is stopped on quit.
+     *
+     * @param name of the thread
+     */
+    public QueueMessageLoop(String name) {
+        this(Executors.newSingleThreadExecutor(newThreadFactory(name)), null, true);
+    }
+
+    /**
+     * Create a loop that dispatches on the given executor and uses a shared
+     * timer thread for delayed messages.
+     *
+     * @param executor runs the dispatch task, it may have any number of threads
+     */
+    public QueueMessageLoop(Executor executor) {
+        this(executor, null, false);
+    }
+
+    /**
+     * Create a loop that dispatches on the given executor.
+     *
+     * @param executor runs the dispatch task, it may have any number of threads
+     * @param timer    used to wait for delayed messages
+     */
+    public QueueMessageLoop(Executor executor, ScheduledExecutorService timer) {
+        this(executor, timer, false);
+    }
+
+    private QueueMessageLoop(Executor executor, ScheduledExecutorService timer,
+                             boolean ownsExecutor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        mExecutor = executor;
+        mTimer = (timer != null) ? timer : getDefaultTimer();
+        mOwnedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+    }
+
+    /**
+     * Create a loop that dispatches on JDK virtual threads.
+     * <p>
+     * Each run of the dispatch task starts a new virtual thread, there is
+     * no thread at all while the state machine has no messages. Messages are
+     * still processed one at a time and in order. A state that blocks in
+     * processMessage, enter or exit parks its virtual thread and frees the
+     * carrier thread for other state machines.
+     *
+     * @param name of the virtual threads
+     * @throws UnsupportedOperationException if the runtime has no virtual
+     *                                       threads, see {@link #isVirtualThreadSupported()}
+     */
+    public static QueueMessageLoop newVirtualThreadLoop(String name) {
+        final ThreadFactory factory = newVirtualThreadFactory(name);
+        return new QueueMessageLoop(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                factory.newThread(command).start();
+            }
+        });
+    }
+
+    /**
+     * @return true if the runtime has virtual threads, Java 21 or later
+     */
+    public static boolean isVirtualThreadSupported() {
+        return resolveVirtualThreads();
+    }
+
+    private static synchronized boolean resolveVirtualThreads() {
+        if (!sVirtualThreadsResolved) {
+            sVirtualThreadsResolved = true;
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                sOfVirtual = Thread.class.getMethod("ofVirtual");
+                sBuilderName = builder.getMethod("name", String.class);
+                sBuilderFactory = builder.getMethod("factory");
+            } catch (ClassNotFoundException e) {
+                sOfVirtual = null;
+            } catch (NoSuchMethodException e) {
+                sOfVirtual = null;
+            }
+        }
+        return sOfVirtual != null;
+    }
+
+    /**
+     * @return a factory for virtual threads with the given name
+     */
+    private static ThreadFactory newVirtualThreadFactory(String name) {
+        if (!resolveVirtualThreads()) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        try {
+            Object builder = sOfVirtual.invoke(null);
+            builder = sBuilderName.invoke(builder, name);
+            return (ThreadFactory) sBuilderFactory.invoke(builder);
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException("Virtual threads not accessible", e);
+        } catch (InvocationTargetException e) {
+            // Java 19 and 20 without --enable-preview
+            throw new UnsupportedOperationException("Virtual threads not enabled",
+                    e.getCause());
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getDefaultTimer() {
+        if (sDefaultTimer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                    newThreadFactory("StateMachine-timer"));
+            timer.setRemoveOnCancelPolicy(true);
+            sDefaultTimer = timer;
+        }
+        return sDefaultTimer;
+    }
+
+    /**
+     * @return a factory for named daemon threads
+     */
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        if (mCallback != null) {
+            throw new IllegalStateException("MessageLoop already attached");
+        }
+        mCallback = callback;
+        if (callback instanceof BatchCallback) {
+            mBatchCallback = (BatchCallback) callback;
+        }
+    }
+
+    /**
+     * Dispatch up to batchSize of the queued messages as one batch, between
+     * a beginBatch and an endBatch of the callback. Batches follow each other
+     * until the queue is empty.
+     *
+     * @param batchSize the maximum number of messages in a batch, 1 to not batch
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize=" + batchSize);
+        }
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * @return null, this loop is not backed by a Looper
+     */
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    /**
+     * Let the other tasks of the executor run after maxMessages messages
+     * have been dispatched, the dispatch task then resubmits itself. By
+     * default a dispatch task runs until the queue is empty.
+     *
+     * @param maxMessages dispatched per run of the dispatch task
+     */
+    public void setMaxMessagesPerRun(int maxMessages) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages=" + maxMessages);
+        }
+        mMaxMessagesPerRun = maxMessages;
+    }
+
+    @Override
+    public boolean sendMessage(Message msg) {
+        return sendMessage(msg, mIndex);
+    }
+
+    @Override
+    public boolean trySendMessage(Message msg) {
+        return trySendMessage(msg, mIndex);
+    }
+
+    @Override
+    public boolean sendMessages(Message msgs[]) {
+        return sendMessages(msgs, mIndex);
+    }
+
+    @Override
+    public boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return sendMessageDelayed(msg, mIndex, delayMillis);
+    }
+
+    @Override
+    public Object sendTimer(Message msg, long delayMillis) {
+        return sendTimer(msg, mIndex, delayMillis);
+    }
+
+    /**
+     * The handle is the message's node in the mailbox, cancelling it takes
+     * constant time whatever the number of pending messages.
+     */
+    @Override
+    public void cancelTimer(Object timer) {
+        mMailbox.cancel((Mailbox.Node) timer);
+    }
+
+    @Override
+    public boolean sendMessageAtFrontOfQueue(Message msg) {
+        return sendMessageAtFrontOfQueue(msg, mIndex);
+    }
+
+    /**
+     * The messages are linked before they go to the front in a single
+     * compare and set, whatever their number.
+     */
+    @Override
+    public boolean sendMessagesAtFrontOfQueue(Message msgs[]) {
+        return sendMessagesAtFrontOfQueue(msgs, mIndex);
+    }
+
+    /**
+     * The room is reserved beyond the capacity and the messages are never
+     * dropped to make room for others.
+     */
+    @Override
+    public boolean sendReservedMessages(Message msgs[]) {
+        return sendReservedMessages(msgs, mIndex);
+    }
+
+    /**
+     * A message merged into a pending one costs a compare and set, the
+     * number of pending messages of what stays bounded by the number of
+     * threads sending them at the same instant.
+     */
+    @Override
+    public void setCoalescing(int what, MessageCoalescer coalescer, long windowMillis) {
+        setCoalescing(what, coalescer, windowMillis, mIndex);
+    }
+
+    /**
+     * The capacity is checked and reserved with one compare and set, it is
+     * never exceeded by senders racing for the last room.
+     */
+    @Override
+    public void setCapacity(int capacity, int overflowPolicy) {
+        setCapacity(capacity, overflowPolicy, mIndex);
+    }
+
+    /**
+     * @return the number of pending messages, delayed ones included
+     */
+    @Override
+    public int getQueueDepth() {
+        return mIndex.depth();
+    }
+
+    @Override
+    public void setLane(int what, int lane) {
+        setLane(what, lane, mIndex);
+    }
+
+    /**
+     * Costs a System.nanoTime call per message sent.
+     */
+    @Override
+    public void setQueueTiming(boolean enable) {
+        mIndex.timed = enable;
+    }
+
+    @Override
+    public long getEnqueueTime() {
+        return mMailbox.getPolledSentAt();
+    }
+
+    @Override
+    public long getOldestPendingAge() {
+        return getOldestPendingAge(mIndex);
+    }
+
+    /**
+     * Set how many messages of a lane are dispatched in a row while the
+     * lanes after it have messages waiting. Defaults to no limit for
+     * LANE_CONTROL, 8 for LANE_NORMAL and 1 for LANE_BULK, so saturating
+     * the bulk lane delays a normal message by at most one bulk message per
+     * eight normal ones.
+     *
+     * @param lane   one of the MessageLoop.LANE_* lanes
+     * @param weight at least 1
+     */
+    public void setLaneWeight(int lane, int weight) {
+        if (lane < LANE_CONTROL || lane > LANE_BULK) {
+            throw new IllegalArgumentException("setLaneWeight: no lane " + lane);
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("setLaneWeight: weight " + weight + " < 1");
+        }
+        mMailbox.setWeight(lane, weight);
+    }
+
+    /**
+     * Takes constant time whatever the number of pending messages.
+     */
+    @Override
+    public void removeMessages(int what) {
+        mMailbox.remove(what, mIndex);
+    }
+
+    /**
+     * Takes constant time whatever the number of pending messages.
+     */
+    @Override
+    public boolean hasMessages(int what) {
+        return mIndex.count(what) > 0;
+    }
+
+    /**
+     * @return the number of pending messages with the given what, delayed
+     * ones included, counted in constant time
+     */
+    public int countMessages(int what) {
+        return mIndex.count(what);
+    }
+
+    /*
+     * The variants below dispatch to the target of index instead of the
+     * loop's callback, they let several state machines share the loop, see
+     * StateMachineGroup.
+     */
+
+    boolean sendMessage(Message msg, MessageIndex index) {
+        return send(msg, index, true);
+    }
+
+    boolean trySendMessage(Message msg, MessageIndex index) {
+        return send(msg, index, false);
+    }
+
+    private boolean send(Message msg, MessageIndex index, boolean mayWait) {
+        if (mHasQuit) return false;
+        MessageIndex.Counter counter = index.counter(msg.what);
+        MessageCoalescer coalescer = counter.coalescer;
+        if (coalescer != null && mMailbox.merge(msg, counter, coalescer)) {
+            // Merged into a pending message, the dispatch task knows about it
+            return true;
+        }
+        if (!index.tryAcquire(1)) {
+            int outcome = overflow(msg, index, 1, mayWait);
+            if (outcome != ADMITTED) return outcome == MERGED;
+        }
+        if (coalescer != null) {
+            mMailbox.addCoalesced(msg, counter);
+        } else {
+            Mailbox.Node node = mMailbox.add(msg, counter);
+            if (index.overflowPolicy == OVERFLOW_COALESCE) counter.coalescing = node;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Apply the overflow policy of index to n messages that found it full.
+     *
+     * @param msg     the message, null if it cannot be merged
+     * @param mayWait false to reject instead of waiting or throwing
+     * @return REJECTED, ADMITTED once room is reserved or MERGED
+     */
+    private int overflow(Message msg, MessageIndex index, int n, boolean mayWait) {
+        if (Thread.currentThread() == mDispatchThread) {
+            // The loop would wait for itself
+            index.acquire(n);
+            return ADMITTED;
+        }
+        switch (index.overflowPolicy) {
+            case OVERFLOW_BLOCK:
+                return (mayWait && n <= index.capacity && awaitRoom(index, n)) ? ADMITTED : REJECTED;
+            case OVERFLOW_FAIL:
+                if (mayWait) {
+                    throw new IllegalStateException("Message loop full, capacity " + index.capacity);
+                }
+                return REJECTED;
+            case OVERFLOW_DROP_OLDEST:
+                do {
+                    if (!mMailbox.removeOldest(index)) return REJECTED;
+                } while (!index.tryAcquire(n));
+                return ADMITTED;
+            case OVERFLOW_COALESCE:
+                if (msg == null) return REJECTED;
+                MessageIndex.Counter counter = index.counter(msg.what);
+                MessageCoalescer coalescer = counter.coalescer;
+                if (coalescer == null) coalescer = MessageCoalescer.KEEP_LATEST;
+                return mMailbox.merge(msg, counter, coalescer) ? MERGED : REJECTED;
+            default:
+                return REJECTED;
+        }
+    }
+
+    private boolean awaitRoom(MessageIndex index, int n) {
+        synchronized (index) {
+            index.waiters++;
+            try {
+                while (!index.tryAcquire(n)) {
+                    if (mHasQuit) return false;
+                    index.wait(ROOM_WAIT_MILLIS);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                index.waiters--;
+            }
+        }
+    }
+
+    boolean sendMessages(Message msgs[], MessageIndex index) {
+        if (mHasQuit) return false;
+        if (!index.tryAcquire(msgs.length)
+                && overflow(null, index, msgs.length, true) != ADMITTED) {
+            return false;
+        }
+        mMailbox.addAll(msgs, index);
+        schedule();
+        return true;
+    }
+
+    boolean sendMessageDelayed(Message msg, MessageIndex index, long delayMillis) {
+        if (delayMillis <= 0) {
+            return sendMessage(msg, index);
+        }
+        if (mHasQuit) return false;
+        if (!index.tryAcquire(1) && overflow(null, index, 1, true) != ADMITTED) {
+            return false;
+        }
+        mMailbox.addDelayed(msg, index, SystemClock.uptimeMillis() + delayMillis);
+        // Let the dispatch task see it and set the timer
+        schedule();
+        return true;
+    }
+
+    Object sendTimer(Message msg, MessageIndex index, long delayMillis) {
+        if (mHasQuit) return null;
+        index.acquire(1);
+        Mailbox.Node node;
+        if (delayMillis <= 0) {
+            node = mMailbox.add(msg, index.counter(msg.what));
+        } else {
+            node = mMailbox.addDelayed(msg, index, SystemClock.uptimeMillis() + delayMillis);
+        }
+        schedule();
+        return node;
+    }
+
+    boolean sendMessageAtFrontOfQueue(Message msg, MessageIndex index) {
+        if (mHasQuit) return false;
+        index.acquire(1);
+        mMailbox.addAtFront(msg, index);
+        schedule();
+        return true;
+    }
+
+    boolean sendMessagesAtFrontOfQueue(Message msgs[], MessageIndex index) {
+        if (mHasQuit) return false;
+        index.acquire(msgs.length);
+        mMailbox.addAllAtFront(msgs, index);
+        schedule();
+        return true;
+    }
+
+    boolean sendReservedMessages(Message msgs[], MessageIndex index) {
+        if (mHasQuit) return false;
+        index.acquire(msgs.length);
+        mMailbox.addAllReserved(msgs, index);
+        schedule();
+        return true;
+    }
+
+    void setCoalescing(int what, MessageCoalescer coalescer, long windowMillis,
+                       MessageIndex index) {
+        index.setCoalescing(what, coalescer, windowMillis);
+    }
+
+    void setCapacity(int capacity, int overflowPolicy, MessageIndex index) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("setCapacity: capacity " + capacity + " < 1");
+        }
+        if (overflowPolicy < OVERFLOW_BLOCK || overflowPolicy > OVERFLOW_COALESCE) {
+            throw new IllegalArgumentException("setCapacity: no overflow policy " + overflowPolicy);
+        }
+        index.overflowPolicy = overflowPolicy;
+        index.capacity = capacity;
+    }
+
+    void setLane(int what, int lane, MessageIndex index) {
+        index.setLane(what, lane);
+    }
+
+    long getOldestPendingAge(MessageIndex index) {
+        if (!index.timed) return -1;
+        long oldest = mMailbox.oldestSentAt(index);
+        return (oldest == Long.MAX_VALUE) ? 0 : Math.max(System.nanoTime() - oldest, 0);
+    }
+
+    void removeMessages(int what, MessageIndex index) {
+        mMailbox.remove(what, index);
+    }
+
+    void removeAllMessages(MessageIndex index) {
+        mMailbox.removeAll(index);
+    }
+
+    /**
+     * Messages sent concurrently with quit may be added after the mailbox is
+     * cleared, they are never dispatched.
+     */
+    @Override
+    public void quit() {
+        mHasQuit = true;
+        wakeWaitingSenders();
+        release();
+    }
+
+    /**
+     * Stop the loop from any thread, unlike {@link #quit()}. No message is
+     * dispatched after the one in progress, if any. The dispatch task drops
+     * the pending messages and stops the thread, as the mailbox and the wake
+     * up timer are only touched by the dispatch task.
+     */
+    void shutdown() {
+        mHasQuit = true;
+        wakeWaitingSenders();
+        schedule();
+    }
+
+    private void wakeWaitingSenders() {
+        synchronized (mIndex) {
+            // Senders waiting for room give up
+            mIndex.notifyAll();
+        }
+    }
+
+    /**
+     * Drop the pending messages, cancel the wake up and stop our own
+     * thread. Dispatch task only.
+     */
+    private void release() {
+        mMailbox.clear();
+        if (mWakeUp != null) {
+            mWakeUp.cancel(false);
+            mWakeUp = null;
+        }
+        if (mOwnedExecutor != null) {
+            // The current dispatch task completes, then the thread exits.
+            mOwnedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Submit the dispatch task unless it is already pending or running.
+     */
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mDispatchTask);
+            } catch (RejectedExecutionException e) {
+                mScheduled.set(false);
+                // Our own executor is shut down once we've quit, drop the message.
+                if (!mHasQuit) throw e;
+            }
+        }
+    }
+
+    private Message poll() {
+        // Nothing is dispatched once we've quit
+        return mHasQuit ? null : mMailbox.poll();
+    }
+
+    /**
+     * Hand a message just polled to its target.
+     */
+    private void dispatch(Message msg) {
+        Callback target = mMailbox.getPolledTarget();
+        if (target != null) {
+            target.handleMessage(msg);
+        } else {
+            mCallback.handleMessage(msg);
+        }
+    }
+
+    private boolean isEmpty() {
+        return mHasQuit || mMailbox.isEmpty();
+    }
+
+    /**
+     * Have the timer wake us up when the next delayed message is due.
+     */
+    private void setWakeUp() {
+        if (mHasQuit) return;
+        long when = mMailbox.nextTimerTime();
+        long now = SystemClock.uptimeMillis();
+        if (when == Long.MAX_VALUE || (when >= mWakeUpTime && mWakeUpTime > now)) {
+            // No delayed message or the timer is already set early enough
+            return;
+        }
+        mWakeUpTime = when;
+        if (mWakeUp != null) {
+            mWakeUp.cancel(false);
+        }
+        try {
+            mWakeUp = mTimer.schedule(mWakeUpTask, Math.max(when - now, 0),
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (!mHasQuit) throw e;
+        }
+    }
+
+    /**
+     * Dispatch the queued messages, in batches if a batch size is set.
+     *
+     * @return false if the run's quota was used up before the queue was empty
+     */
+    private boolean drain() {
+        Message msg;
+        int remaining = mMaxMessagesPerRun;
+        int batchSize = mBatchSize;
+        BatchCallback batchCallback = mBatchCallback;
+        if (batchSize == 1 || batchCallback == null) {
+            while (remaining > 0 && (msg = poll()) != null) {
+                dispatch(msg);
+                remaining--;
+            }
+            return remaining > 0;
+        }
+        while (remaining > 0 && (msg = poll()) != null) {
+            batchCallback.beginBatch();
+            try {
+                dispatch(msg);
+                remaining--;
+                for (int n = 1; n < batchSize && remaining > 0 && (msg = poll()) != null; n++) {
+                    dispatch(msg);
+                    remaining--;
+                }
+            } finally {
+                batchCallback.endBatch();
+            }
+        }
+        return remaining > 0;
+    }
+
+    /**
+     * Dispatch messages until the queue is empty or the run's quota is
+     * used up. Runs on the executor.
+     */
+    private void dispatchMessages() {
+        boolean done = false;
+        boolean yield = false;
+        mDispatchThread = Thread.currentThread();
+        try {
+            while (!done) {
+                if (!drain()) {
+                    // Still scheduled, go to the back of the executor's queue
+                    yield = true;
+                    done = true;
+                    break;
+                }
+                setWakeUp();
+                mScheduled.set(false);
+                // A producer may have enqueued after the last poll but before
+                // mScheduled was cleared, its schedule() call was a no-op.
+                done = isEmpty() || !mScheduled.compareAndSet(false, true);
+            }
+        } finally {
+            mDispatchThread = null;
+            if (!done) {
+                // handleMessage threw, let the next message be dispatched
+                mScheduled.set(false);
+                if (!isEmpty()) schedule();
+            }
+            // shutdown() from another thread either submitted a task or left
+            // the cleanup to this one. mScheduled is kept, no task runs again.
+            if (!yield && mHasQuit && mScheduled.compareAndSet(false, true)) {
+                release();
+            }
+        }
+        if (yield) {
+            try {
+                mExecutor.execute(mDispatchTask);
+            } catch (RejectedExecutionException e) {
+                mScheduled.set(false);
+                if (!mHasQuit) throw e;
+            }
+        }
+    }
+}
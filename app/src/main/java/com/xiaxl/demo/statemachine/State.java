@@ -9,6 +9,14 @@ import android.os.Message;
  */
 public class State implements IState {
 
+    /**
+     * The state machine this state was first added to and the id it was
+     * given there, lets the state machine find the state without hashing.
+     * The id is kept once given, -1 until then.
+     */
+    Object mOwner;
+    int mStateId = -1;
+
     /**
      * Constructor
      */
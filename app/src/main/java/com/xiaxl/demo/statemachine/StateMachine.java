@@ -1,19 +1,29 @@
 package com.xiaxl.demo.statemachine;
 
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
@@ -29,6 +39,15 @@ public class StateMachine {
      */
     private static final int SM_QUIT_CMD = -1;
 
+    /**
+     * Message.what values of the quit messages queued by quit(), one per
+     * lane: the lane of a message is SM_QUIT_CONTROL_CMD - what.
+     * SM_QUIT_CMD itself is sent at the front of the queue by quitNow().
+     */
+    private static final int SM_QUIT_CONTROL_CMD = -3;
+    private static final int SM_QUIT_NORMAL_CMD = -4;
+    private static final int SM_QUIT_BULK_CMD = -5;
+
     /**
      * Message.what value when initializing
      * 初始化完成的消息
@@ -49,6 +68,58 @@ public class StateMachine {
      */
     public static final boolean NOT_HANDLED = false;
 
+    /**
+     * Timings of a state, see {@link #getStateLatency(IState, int)}: the
+     * time spent in the state, from the end of its enter method to the
+     * start of its exit method, and the time its enter and exit methods took
+     */
+    public static final int LATENCY_DWELL = 0;
+    public static final int LATENCY_ENTER = 1;
+    public static final int LATENCY_EXIT = 2;
+    private static final String LATENCY_NAMES[] = {"dwell", "enter", "exit"};
+
+    /**
+     * Upper bound of the transition plan cache, keeps the memory flat
+     * for machines with a large number of states.
+     */
+    static final int MAX_TRANSITION_PLANS = 256;
+
+    /**
+     * The states to exit and enter to go from a current state to a
+     * destination state, computed once and reused for every transition
+     * between the same two states. All fields are final so a plan may be
+     * handed to other threads without a lock, see StateMachineDefinition.
+     */
+    static final class TransitionPlan {
+        /**
+         * The state on top of the state stack when transitioning
+         */
+        final int source;
+
+        /**
+         * The destination passed to transitionTo
+         */
+        final int dest;
+
+        /**
+         * The common ancestor of source and dest, states above it on the
+         * state stack are exited. NO_STATE if there is no common ancestor.
+         */
+        final int common;
+
+        /**
+         * The states to enter in order, the child of common first and dest last
+         */
+        final int statesToEnter[];
+
+        TransitionPlan(int source, int dest, int common, int statesToEnter[]) {
+            this.source = source;
+            this.dest = dest;
+            this.common = common;
+            this.statesToEnter = statesToEnter;
+        }
+    }
+
     /**
      * StateMachine logging record.
      * {@hide}
@@ -62,6 +133,15 @@ public class StateMachine {
         private IState mOrgState;
         private IState mDstState;
 
+        /**
+         * The payload of the message when the info string is rendered on
+         * demand, see {@link StateMachine#setLogRecInfoDeferred(boolean)}
+         */
+        private boolean mInfoDeferred;
+        private int mArg1;
+        private int mArg2;
+        private Object mObj;
+
         /**
          * Constructor
          *
@@ -77,6 +157,37 @@ public class StateMachine {
             update(sm, msg, info, state, orgState, transToState);
         }
 
+        /**
+         * Constructor for a record read back from LogRecords
+         *
+         * @param time in milliseconds since the epoch
+         */
+        LogRec(StateMachine sm, long time, int what, String info, IState state,
+               IState orgState, IState dstState) {
+            mSm = sm;
+            mTime = time;
+            mWhat = what;
+            mInfo = info;
+            mState = state;
+            mOrgState = orgState;
+            mDstState = dstState;
+        }
+
+        /**
+         * Constructor for a record read back from LogRecords whose info
+         * string is rendered from the message payload when first asked for.
+         *
+         * @param time in milliseconds since the epoch
+         */
+        LogRec(StateMachine sm, long time, int what, int arg1, int arg2, Object obj,
+               IState state, IState orgState, IState dstState) {
+            this(sm, time, what, null, state, orgState, dstState);
+            mInfoDeferred = true;
+            mArg1 = arg1;
+            mArg2 = arg2;
+            mObj = obj;
+        }
+
         /**
          * Update the information in the record.
          *
@@ -93,6 +204,8 @@ public class StateMachine {
             mState = state;
             mOrgState = orgState;
             mDstState = dstState;
+            mInfoDeferred = false;
+            mObj = null;
         }
 
         /**
@@ -113,6 +226,12 @@ public class StateMachine {
          * @return the command that was executing
          */
         public String getInfo() {
+            if (mInfoDeferred) {
+                // 读取时才生成 info 字符串
+                mInfo = (mSm != null) ? mSm.getLogRecString(mWhat, mArg1, mArg2, mObj) : null;
+                mInfoDeferred = false;
+                mObj = null;
+            }
             return mInfo;
         }
 
@@ -152,7 +271,7 @@ public class StateMachine {
             sb.append(mDstState == null ? "<null>" : mDstState.getName());
             sb.append(" what=");
             String what = mSm != null ? mSm.getWhatToString(mWhat) : "";
-            if (TextUtils.isEmpty(what)) {
+            if (what == null || what.isEmpty()) {
                 sb.append(mWhat);
                 sb.append("(0x");
                 sb.append(Integer.toHexString(mWhat));
@@ -160,9 +279,10 @@ public class StateMachine {
             } else {
                 sb.append(what);
             }
-            if (!TextUtils.isEmpty(mInfo)) {
+            String info = getInfo();
+            if (info != null && !info.isEmpty()) {
                 sb.append(" ");
-                sb.append(mInfo);
+                sb.append(info);
             }
             return sb.toString();
         }
@@ -178,21 +298,117 @@ public class StateMachine {
      * count which is the number of records processed since the
      * the last setSize, get which returns a record and
      * add which adds a record.
+     * <p>
+     * The records are kept in a ring of primitive columns, states are
+     * stored by id. add is only called on the state machine's thread and
+     * takes no lock and allocates nothing. Readers on other threads use the
+     * sequence number of each slot to detect a record being overwritten
+     * while they read it and retry, LogRec objects are only created for them.
+     * <p>
+     * When the info is deferred the message payload (what, arg1, arg2 and
+     * obj) is stored instead of the getLogRecString result and the string is
+     * rendered by the reader, off the state machine's thread.
+     * <p>
+     * 环形缓冲区，单线程写入，其他线程无锁读取
      */
     private static class LogRecords {
 
         private static final int DEFAULT_SIZE = 20;
 
-        private Vector<LogRec> mLogRecVector = new Vector<LogRec>();
-        private int mMaxSize = DEFAULT_SIZE;
-        private int mOldestIndex = 0;
-        private int mCount = 0;
-        private boolean mLogOnlyTransitions = false;
+        /**
+         * The columns of the records of one setSize
+         */
+        private static final class Ring {
+            final int capacity;
+
+            /**
+             * Wall clock and System.nanoTime when the ring was created,
+             * used to convert the record times to milliseconds.
+             */
+            final long baseTimeMillis = System.currentTimeMillis();
+            final long baseNanos = System.nanoTime();
+
+            /**
+             * Sequence of each slot. 2n+1 while record n is written, 2n+2 once it is complete.
+             * <p>
+             * The columns are allocated by the writer with the first record,
+             * a state machine that never processes a message does not pay for
+             * them. Readers only touch them once count is not 0.
+             */
+            AtomicLongArray seqs;
+            AtomicLongArray times;
+            AtomicIntegerArray whats;
+            AtomicIntegerArray states;
+            AtomicIntegerArray orgStates;
+            AtomicIntegerArray dstStates;
+            AtomicReferenceArray<String> infos;
+
+            /**
+             * The message payload, only allocated when the info is deferred
+             */
+            final boolean deferInfo;
+            AtomicIntegerArray arg1s;
+            AtomicIntegerArray arg2s;
+            AtomicReferenceArray<Object> objs;
+
+            /**
+             * Number of records added, published after each record is complete
+             */
+            final AtomicLong count = new AtomicLong();
+
+            /**
+             * Writer only: number of records added and the slot of the next one
+             */
+            long writeCount;
+            int writeSlot;
+
+            Ring(int capacity, boolean deferInfo) {
+                this.capacity = capacity;
+                this.deferInfo = deferInfo;
+            }
+
+            /**
+             * Writer only, the columns are published by the count of the first record.
+             */
+            void allocate() {
+                seqs = new AtomicLongArray(capacity);
+                times = new AtomicLongArray(capacity);
+                whats = new AtomicIntegerArray(capacity);
+                states = new AtomicIntegerArray(capacity);
+                orgStates = new AtomicIntegerArray(capacity);
+                dstStates = new AtomicIntegerArray(capacity);
+                infos = new AtomicReferenceArray<String>(capacity);
+                arg1s = deferInfo ? new AtomicIntegerArray(capacity) : null;
+                arg2s = deferInfo ? new AtomicIntegerArray(capacity) : null;
+                objs = deferInfo ? new AtomicReferenceArray<Object>(capacity) : null;
+            }
+        }
+
+        /**
+         * The state machine whose states the ids refer to
+         */
+        private final SmHandler mSmHandler;
+
+        private volatile Ring mRing = new Ring(DEFAULT_SIZE, false);
+        private volatile boolean mLogOnlyTransitions = false;
+
+        /**
+         * Persistent copy of the records, set before the state machine is started
+         */
+        private LogRecFile mFile;
+
+        /**
+         * Writer only: true inside a batch of messages, the records of a
+         * batch share the time read when it began.
+         */
+        private boolean mInBatch;
+        private long mBatchTime;
 
         /**
          * private constructor use add
          */
-        private LogRecords() {
+        private LogRecords(SmHandler smh) {
+            mSmHandler = smh;
         }
 
         /**
@@ -200,39 +416,47 @@ public class StateMachine {
          *
          * @param maxSize number of records to maintain at anyone time.
          */
-        synchronized void setSize(int maxSize) {
-            mMaxSize = maxSize;
-            mCount = 0;
-            mLogRecVector.clear();
+        void setSize(int maxSize) {
+            mRing = new Ring(Math.max(maxSize, 0), mRing.deferInfo);
+        }
+
+        /**
+         * Set whether the info of a processed message is rendered when the
+         * record is read rather than when it is added, clears all current records.
+         */
+        void setInfoDeferred(boolean enable) {
+            mRing = new Ring(mRing.capacity, enable);
         }
 
-        synchronized void setLogOnlyTransitions(boolean enable) {
+        void setLogOnlyTransitions(boolean enable) {
             mLogOnlyTransitions = enable;
         }
 
-        synchronized boolean logOnlyTransitions() {
+        boolean logOnlyTransitions() {
             return mLogOnlyTransitions;
         }
 
         /**
          * @return the number of recent records.
          */
-        synchronized int size() {
-            return mLogRecVector.size();
+        int size() {
+            Ring ring = mRing;
+            return (int) Math.min(ring.count.get(), ring.capacity);
         }
 
         /**
          * @return the total number of records processed since size was set.
          */
-        synchronized int count() {
-            return mCount;
+        int count() {
+            return (int) mRing.count.get();
         }
 
         /**
          * Clear the list of records.
          */
-        synchronized void cleanup() {
-            mLogRecVector.clear();
+        void cleanup() {
+            Ring ring = mRing;
+            mRing = new Ring(ring.capacity, ring.deferInfo);
         }
 
         /**
@@ -240,16 +464,88 @@ public class StateMachine {
          * record and size()-1 is the newest record. If the index is to
          * large null is returned.
          */
-        synchronized LogRec get(int index) {
-            int nextIndex = mOldestIndex + index;
-            if (nextIndex >= mMaxSize) {
-                nextIndex -= mMaxSize;
+        LogRec get(int index) {
+            Ring ring = mRing;
+            while (true) {
+                long count = ring.count.get();
+                int size = (int) Math.min(count, ring.capacity);
+                if (index < 0 || index >= size) {
+                    return null;
+                }
+                LogRec rec = read(ring, count - size + index);
+                if (rec != null) {
+                    return rec;
+                }
+                // Overwritten while reading, the oldest record has moved on
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Copy the records, oldest first, skipping any that are overwritten while copying.
+         */
+        void copyTo(Collection<LogRec> out) {
+            Ring ring = mRing;
+            long count = ring.count.get();
+            for (long n = Math.max(count - ring.capacity, 0); n < count; n++) {
+                LogRec rec = read(ring, n);
+                if (rec != null) {
+                    out.add(rec);
+                }
+            }
+        }
+
+        /**
+         * Read record number n.
+         *
+         * @return the record or null if it has been overwritten
+         */
+        private LogRec read(Ring ring, long n) {
+            int slot = (int) (n % ring.capacity);
+            long seq = 2 * n + 2;
+            if (ring.seqs.get(slot) != seq) {
+                return null;
             }
-            if (nextIndex >= size()) {
+            long time = ring.times.get(slot);
+            int what = ring.whats.get(slot);
+            int state = ring.states.get(slot);
+            int orgState = ring.orgStates.get(slot);
+            int dstState = ring.dstStates.get(slot);
+            String info = ring.infos.get(slot);
+            boolean deferred = ring.deferInfo && (info == null);
+            int arg1 = deferred ? ring.arg1s.get(slot) : 0;
+            int arg2 = deferred ? ring.arg2s.get(slot) : 0;
+            Object obj = deferred ? ring.objs.get(slot) : null;
+            if (ring.seqs.get(slot) != seq) {
                 return null;
-            } else {
-                return mLogRecVector.get(nextIndex);
             }
+            long timeMillis = ring.baseTimeMillis + (time - ring.baseNanos) / 1000000;
+            if (deferred) {
+                return new LogRec(mSmHandler.mSm, timeMillis, what, arg1, arg2, obj,
+                        mSmHandler.getState(state), mSmHandler.getState(orgState),
+                        mSmHandler.getState(dstState));
+            }
+            return new LogRec(mSmHandler.mSm, timeMillis, what, info,
+                    mSmHandler.getState(state), mSmHandler.getState(orgState),
+                    mSmHandler.getState(dstState));
+        }
+
+        /**
+         * Add a processed message, its info is either rendered now with
+         * getLogRecString or, when deferred, rendered from the stored payload
+         * when the record is read.
+         *
+         * @param msg          that was processed
+         * @param state        id of the state that handled the message
+         * @param orgState     id of the first state the received the message but
+         *                     did not processes the message.
+         * @param transToState id of the state that was transitioned to after the message was
+         *                     processed.
+         */
+        void addMessage(Message msg, int state, int orgState, int transToState) {
+            Ring ring = mRing;
+            String info = ring.deferInfo ? null : mSmHandler.mSm.getLogRecString(msg);
+            add(ring, msg, info, state, orgState, transToState);
         }
 
         /**
@@ -257,35 +553,81 @@ public class StateMachine {
          *
          * @param msg
          * @param messageInfo  to be stored
-         * @param state        that handled the message
-         * @param orgState     is the first state the received the message but
+         * @param state        id of the state that handled the message
+         * @param orgState     id of the first state the received the message but
          *                     did not processes the message.
-         * @param transToState is the state that was transitioned to after the message was
+         * @param transToState id of the state that was transitioned to after the message was
          *                     processed.
          */
-        synchronized void add(StateMachine sm, Message msg, String messageInfo, IState state,
-                              IState orgState, IState transToState) {
-            mCount += 1;
-            if (mLogRecVector.size() < mMaxSize) {
-                mLogRecVector.add(new LogRec(sm, msg, messageInfo, state, orgState, transToState));
-            } else {
-                LogRec pmi = mLogRecVector.get(mOldestIndex);
-                mOldestIndex += 1;
-                if (mOldestIndex >= mMaxSize) {
-                    mOldestIndex = 0;
-                }
-                pmi.update(sm, msg, messageInfo, state, orgState, transToState);
+        void add(Message msg, String messageInfo, int state, int orgState, int transToState) {
+            add(mRing, msg, messageInfo, state, orgState, transToState);
+        }
+
+        /**
+         * Start a batch of records, the records of the file are published
+         * once the batch ends.
+         */
+        void beginBatch() {
+            mInBatch = true;
+            mBatchTime = System.nanoTime();
+            if (mFile != null) mFile.beginBatch();
+        }
+
+        void endBatch() {
+            mInBatch = false;
+            if (mFile != null) mFile.endBatch();
+        }
+
+        private void add(Ring ring, Message msg, String messageInfo, int state, int orgState,
+                         int transToState) {
+            long time = mInBatch ? mBatchTime : System.nanoTime();
+            int what = (msg != null) ? msg.what : 0;
+            if (mFile != null) {
+                mFile.append(time, what, state, orgState, transToState);
+            }
+            if (ring.capacity == 0) {
+                return;
+            }
+            if (ring.seqs == null) {
+                ring.allocate();
             }
+            long n = ring.writeCount;
+            int slot = ring.writeSlot;
+            // Each lazySet is ordered after the stores before it, readers see
+            // the odd sequence before any column of the new record.
+            ring.seqs.lazySet(slot, 2 * n + 1);
+            ring.times.lazySet(slot, time);
+            ring.whats.lazySet(slot, what);
+            ring.states.lazySet(slot, state);
+            ring.orgStates.lazySet(slot, orgState);
+            ring.dstStates.lazySet(slot, transToState);
+            ring.infos.lazySet(slot, messageInfo);
+            if (ring.deferInfo) {
+                ring.arg1s.lazySet(slot, (msg != null) ? msg.arg1 : 0);
+                ring.arg2s.lazySet(slot, (msg != null) ? msg.arg2 : 0);
+                ring.objs.lazySet(slot, (msg != null) ? msg.obj : null);
+            }
+            ring.seqs.lazySet(slot, 2 * n + 2);
+            ring.writeCount = n + 1;
+            ring.writeSlot = (slot + 1 == ring.capacity) ? 0 : slot + 1;
+            ring.count.lazySet(n + 1);
         }
     }
 
-    private static class SmHandler extends Handler {
+    private static class SmHandler implements MessageLoop.BatchCallback {
 
         /**
          * true if StateMachine has quit
          */
         private boolean mHasQuit = false;
 
+        /**
+         * The lanes whose quit message has been dispatched, bit
+         * MessageLoop.LANE_* of each
+         */
+        private int mQuitLanes;
+        private static final int ALL_QUIT_LANES = (1 << (MessageLoop.LANE_BULK + 1)) - 1;
+
         /**
          * The debug flag
          */
@@ -304,7 +646,7 @@ public class StateMachine {
         /**
          * A list of log records including messages this state machine has processed
          */
-        private LogRecords mLogRecords = new LogRecords();
+        private LogRecords mLogRecords = new LogRecords(this);
 
         /**
          * true if construction of the state machine has not been completed
@@ -314,11 +656,11 @@ public class StateMachine {
         private boolean mIsConstructionCompleted;
 
         /**
-         * Stack used to manage the current hierarchy of states
+         * Stack used to manage the current hierarchy of states, holds state ids
          * <p>
          * 状态堆栈
          */
-        private StateInfo mStateStack[];
+        private int mStateStack[];
 
         /**
          * Top of mStateStack
@@ -330,7 +672,7 @@ public class StateMachine {
          * <p>
          * 临时状态堆栈
          */
-        private StateInfo mTempStateStack[];
+        private int mTempStateStack[];
 
         /**
          * The top of the mTempStateStack
@@ -338,6 +680,15 @@ public class StateMachine {
          */
         private int mTempStateStackCount;
 
+        /**
+         * Cache of the transition plans, indexed by a hash of the
+         * (current state, destination state) pair. A slot holds the most
+         * recent plan that hashed to it.
+         * <p>
+         * 状态切换计划缓存
+         */
+        private TransitionPlan mTransitionPlans[];
+
         /**
          * State used when state machine is halted
          */
@@ -354,41 +705,187 @@ public class StateMachine {
         private StateMachine mSm;
 
         /**
-         * Information about a state.
-         * Used to maintain the hierarchy.
+         * The loop that queues and dispatches our messages
+         */
+        private final MessageLoop mLoop;
+
+        /**
+         * No state, used for the parent of a top level state and for a
+         * transition without a common ancestor.
+         */
+        private static final int NO_STATE = -1;
+
+        /**
+         * Initial capacity of the state arrays
+         */
+        private static final int INITIAL_STATE_CAPACITY = 8;
+
+        /**
+         * The states of the state machine indexed by their id. Ids are
+         * assigned densely in the order states are added.
+         * <p>
+         * 所有状态，下标为状态 id
+         */
+        private State mStates[];
+
+        /**
+         * The id of the parent of each state, NO_STATE if there is no parent
+         */
+        private int mParentIds[];
+
+        /**
+         * The depth of each state, 1 for a state without a parent.
+         * Computed by completeConstruction.
+         */
+        private int mDepths[];
+
+        /**
+         * The name of each state, cached when the state is added
+         */
+        private String mStateNames[];
+
+        /**
+         * True when the state has been entered and on the stack
+         */
+        private boolean mActive[];
+
+        /**
+         * The shared definition the structure comes from, null if the
+         * states are added to this state machine. With a definition
+         * mParentIds, mDepths, mStateNames, mTransitionPlans and the
+         * timeout and deferred capacity settings are its arrays, read only.
+         */
+        private final StateMachineDefinition mDefinition;
+
+        /**
+         * The number of states
          */
-        private class StateInfo {
+        private int mStateCount;
+
+        /**
+         * Ids of states that were first added to another state machine with
+         * another id, null until such a state is added. Every other state
+         * carries its own id.
+         */
+        private HashMap<State, Integer> mForeignStateIds;
+
+        /**
+         * Message handlers registered for a state, or the handlers that
+         * apply to an active leaf state, sorted by what.
+         */
+        private static class DispatchTable {
+            int whats[] = new int[4];
+
             /**
-             * The state
+             * The id of the state each handler belongs to. In a resolved
+             * table the id of the first state to ask, the handler is null
+             * unless that is the state it belongs to.
              */
-            State state;
+            int owners[] = new int[4];
+
+            MessageHandler handlers[] = new MessageHandler[4];
+
+            int size;
 
             /**
-             * The parent of this state, null if there is no parent
+             * @return index of what, or a negative value if there is no handler for it
              */
-            StateInfo parentStateInfo;
+            int indexOf(int what) {
+                return Arrays.binarySearch(whats, 0, size, what);
+            }
 
             /**
-             * True when the state has been entered and on the stack
+             * Insert or replace the handler for what
              */
-            boolean active;
+            void put(int what, int owner, MessageHandler handler) {
+                int index = indexOf(what);
+                if (index < 0) {
+                    index = -index - 1;
+                    if (size == whats.length) {
+                        whats = Arrays.copyOf(whats, size * 2);
+                        owners = Arrays.copyOf(owners, size * 2);
+                        handlers = Arrays.copyOf(handlers, size * 2);
+                    }
+                    System.arraycopy(whats, index, whats, index + 1, size - index);
+                    System.arraycopy(owners, index, owners, index + 1, size - index);
+                    System.arraycopy(handlers, index, handlers, index + 1, size - index);
+                    size++;
+                }
+                whats[index] = what;
+                owners[index] = owner;
+                handlers[index] = handler;
+            }
+        }
+
+        /**
+         * Deferred messages, oldest first, each with the sequence number it
+         * was deferred with so lists can be merged back in that order.
+         */
+        private static class DeferredList {
+            Message msgs[] = new Message[4];
+            long seqs[] = new long[4];
 
             /**
-             * Convert StateInfo to string
+             * With latency tracking, when each message was first deferred
+             * and how many times it was put back on the queue
              */
-            @Override
-            public String toString() {
-                return "state=" + state.getName() + ",active=" + active + ",parent="
-                        + ((parentStateInfo == null) ? "null" : parentStateInfo.state.getName());
+            long deferredAt[] = new long[4];
+            int requeues[] = new int[4];
+            int size;
+
+            void add(Message msg, long seq) {
+                add(msg, seq, 0, 0);
+            }
+
+            void add(Message msg, long seq, long firstDeferredAt, int requeueCount) {
+                if (size == msgs.length) {
+                    msgs = Arrays.copyOf(msgs, size * 2);
+                    seqs = Arrays.copyOf(seqs, size * 2);
+                    deferredAt = Arrays.copyOf(deferredAt, size * 2);
+                    requeues = Arrays.copyOf(requeues, size * 2);
+                }
+                msgs[size] = msg;
+                seqs[size] = seq;
+                deferredAt[size] = firstDeferredAt;
+                requeues[size] = requeueCount;
+                size++;
+            }
+
+            void clear() {
+                Arrays.fill(msgs, 0, size, null);
+                size = 0;
             }
         }
 
         /**
-         * The map of all of the states in the state machine
+         * The message handlers registered for each state, indexed by state id.
+         * null for a state without handlers.
+         */
+        private DispatchTable mMessageHandlers[];
+
+        /**
+         * For each state, the handlers of the state and its ancestors with
+         * the innermost state winning, each with the first state to ask.
+         * Built the first time the state is the current state and a message
+         * arrives.
+         */
+        private DispatchTable mResolvedHandlers[];
+
+        /**
+         * mResolvedHandlers of the current state, null after the current state changes
+         */
+        private DispatchTable mCurrentHandlers;
+
+        /**
+         * The timeout of each state, indexed by state id, and the timer armed
+         * while the state is active. null until a timeout is set, a timeout
+         * of 0 is no timeout.
          * <p>
-         * // key 为 State；value 为 StateInfo
+         * 状态超时，进入时启动，退出时取消
          */
-        private HashMap<State, StateInfo> mStateInfoHashMap = new HashMap<State, StateInfo>();
+        private long mTimeoutMillis[];
+        private int mTimeoutWhats[];
+        private Object mTimeouts[];
 
         /**
          * The initial state that will process the first message
@@ -403,9 +900,67 @@ public class StateMachine {
         private State mDestState;
 
         /**
-         * The list of deferred messages
+         * The messages deferred until the next transition
+         */
+        private final DeferredList mDeferredMessages = new DeferredList();
+
+        /**
+         * The messages deferred until a state exits, indexed by state id,
+         * and the maximum each state holds, 0 for no limit. null until used.
+         * <p>
+         * 按状态暂存的延迟消息，状态退出时一次性放回队列
+         */
+        private DeferredList mStateDeferred[];
+        private int mDeferredCaps[];
+
+        /**
+         * The lists to put back at the front of the queue after the
+         * current transition and the sequence number of the next deferral
+         */
+        private DeferredList mSplice[] = new DeferredList[4];
+        private int mSpliceCount;
+
+        /**
+         * Journal replay only: the deferred messages the replayed transitions
+         * put back on the queue whose dispatch has not been replayed yet, in
+         * the order they were to be dispatched
+         */
+        private ArrayList<Message> mRequeued;
+        private long mDeferSeq;
+
+        /**
+         * Start of a snapshot, "SMS1", and how the Message.obj of a deferred
+         * message is saved
+         */
+        private static final int SNAPSHOT_MAGIC = 0x534d5331;
+        private static final int OBJ_NULL = 0;
+        private static final int OBJ_STATE = 1;
+        private static final int OBJ_CUSTOM = 2;
+
+        /**
+         * true if started from a snapshot, the states are activated without enter
+         */
+        private boolean mRestored;
+
+        /**
+         * The journal the messages and transitions are appended to, set
+         * before the state machine is started, and true inside a batch of
+         * messages, the journal is committed when it ends.
+         */
+        private TransitionJournal mJournal;
+        private boolean mInBatch;
+
+        /**
+         * Set before the state machine is started to time processMsg and
+         * the enter and exit methods, and the histograms, created on start
+         */
+        private boolean mTrackLatency;
+        private LatencyStats mLatency;
+
+        /**
+         * Observer of the state machine, null if none
          */
-        private ArrayList<Message> mDeferredMessages = new ArrayList<Message>();
+        private TransitionListener mListener;
 
         /**
          * State entered when transitionToHaltingState is called.
@@ -443,10 +998,27 @@ public class StateMachine {
                 mMsg = msg;
 
                 /** State that processed the message */
-                State msgProcessedState = null;
+                int msgProcessedState = NO_STATE;
                 if (mIsConstructionCompleted) {
                     /** Normal path */
-                    msgProcessedState = processMsg(msg);
+                    if (mJournal != null && msg.obj != mSmHandlerObj) {
+                        journalMessage(TransitionJournal.RECORD_MESSAGE, NO_STATE, msg);
+                    }
+                    if (mListener != null) {
+                        mListener.onDispatch(mSm, msg, mStates[mStateStack[mStateStackTopIndex]]);
+                    }
+                    if (mLatency == null) {
+                        msgProcessedState = processMsg(msg);
+                    } else {
+                        long start = System.nanoTime();
+                        mLatency.dispatched(msg, start, mLoop.getEnqueueTime());
+                        msgProcessedState = processMsg(msg);
+                        long end = mLatency.stamp = System.nanoTime();
+                        mLatency.recordMessage(msg.what, end - start);
+                    }
+                    if (mListener != null && msgProcessedState != NO_STATE) {
+                        mListener.onHandled(mSm, msg, mStates[msgProcessedState]);
+                    }
                 }
                 // 接收到 初始化完成的消息
                 else if (!mIsConstructionCompleted
@@ -455,25 +1027,56 @@ public class StateMachine {
                     // 初始化完成
                     mIsConstructionCompleted = true;
                     // 调用堆栈中状态的enter方法，并将堆栈中的状态设置为活跃状态
-                    invokeEnterMethods(0);
+                    if (mRestored) {
+                        activateRestoredStates();
+                    } else {
+                        if (mLatency != null) mLatency.stamp = System.nanoTime();
+                        invokeEnterMethods(0);
+                    }
                 } else {
                     throw new RuntimeException("StateMachine.handleMessage: "
                             + "The start method not called, received msg: " + msg);
                 }
                 // 执行Transition
                 performTransitions(msgProcessedState, msg);
+                if (mJournal != null && !mInBatch) commitJournal();
+                if (mLatency != null) {
+                    mLatency.handled();
+                    if (mLatency.hasRequeued() && mLoop.getQueueDepth() == 0) {
+                        mLatency.clearRequeued();
+                    }
+                }
 
                 // We need to check if mSm == null here as we could be quitting.
                 if (mDbg && mSm != null) mSm.log("handleMessage: X");
             }
         }
 
+        /**
+         * A batch of messages is about to be handled
+         */
+        @Override
+        public final void beginBatch() {
+            mInBatch = true;
+            mLogRecords.beginBatch();
+        }
+
+        /**
+         * The batch of messages has been handled
+         */
+        @Override
+        public final void endBatch() {
+            mInBatch = false;
+            mLogRecords.endBatch();
+            if (mJournal != null) commitJournal();
+        }
+
         /**
          * Do any transitions
          *
-         * @param msgProcessedState is the state that processed the message
+         * @param msgProcessedState is the id of the state that processed the message
          */
-        private void performTransitions(State msgProcessedState, Message msg) {
+        private void performTransitions(int msgProcessedState, Message msg) {
 
             /**
              * If transitionTo has been called, exit and then enter
@@ -481,7 +1084,7 @@ public class StateMachine {
              * enter and exit methods to use transitionTo.
              */
             // 当前状态
-            State orgState = mStateStack[mStateStackTopIndex].state;
+            int orgState = mStateStack[mStateStackTopIndex];
 
             /**
              * Record whether message needs to be logged before we transition and
@@ -493,13 +1096,13 @@ public class StateMachine {
             if (mLogRecords.logOnlyTransitions()) {
                 /** Record only if there is a transition */
                 if (mDestState != null) {
-                    mLogRecords.add(mSm, mMsg, mSm.getLogRecString(mMsg), msgProcessedState,
-                            orgState, mDestState);
+                    mLogRecords.addMessage(mMsg, msgProcessedState, orgState,
+                            getStateId(mDestState));
                 }
             } else if (recordLogMsg) {
                 /** Record message */
-                mLogRecords.add(mSm, mMsg, mSm.getLogRecString(mMsg), msgProcessedState, orgState,
-                        mDestState);
+                mLogRecords.addMessage(mMsg, msgProcessedState, orgState,
+                        (mDestState != null) ? getStateId(mDestState) : NO_STATE);
             }
 
             State destState = mDestState;
@@ -511,14 +1114,21 @@ public class StateMachine {
                     if (mDbg) mSm.log("handleMessage: new destination call exit/enter");
 
                     /**
-                     * Determine the states to exit and enter and return the
-                     * common ancestor state of the enter/exit states. Then
+                     * Look up the states to exit and enter and the common
+                     * ancestor state of the enter/exit states. Then
                      * invoke the exit methods then the enter methods.
                      */
-                    StateInfo commonStateInfo = setupTempStateStackWithStatesToEnter(destState);
-                    invokeExitMethods(commonStateInfo);
-                    int stateStackEnteringIndex = moveTempStateStackToStateStack();
+                    int fromId = mStateStack[mStateStackTopIndex];
+                    TransitionPlan plan = getTransitionPlan(getStateId(destState));
+                    invokeExitMethods(plan.common);
+                    int stateStackEnteringIndex = pushStatesToEnter(plan.statesToEnter);
                     invokeEnterMethods(stateStackEnteringIndex);
+                    if (mJournal != null && destState != mQuittingState) {
+                        journalTransition(getStateId(destState));
+                    }
+                    if (mListener != null) {
+                        mListener.onTransition(mSm, mStates[fromId], destState);
+                    }
 
                     /**
                      * Since we have transitioned to a new state we need to have
@@ -565,10 +1175,13 @@ public class StateMachine {
          * Cleanup all the static variables and the looper after the SM has been quit.
          */
         private final void cleanupAfterQuitting() {
-            if (mSm.mSmThread != null) {
-                // If we made the thread then quit looper which stops the thread.
-                getLooper().quit();
-                mSm.mSmThread = null;
+            // If the loop made its thread this also stops the thread.
+            mLoop.quit();
+
+            if (mJournal != null) {
+                // The journal is closed by its owner
+                mJournal.commit();
+                mJournal = null;
             }
 
             mSm.mSmHandler = null;
@@ -577,7 +1190,27 @@ public class StateMachine {
             mLogRecords.cleanup();
             mStateStack = null;
             mTempStateStack = null;
-            mStateInfoHashMap.clear();
+            mTransitionPlans = null;
+            mMessageHandlers = null;
+            mResolvedHandlers = null;
+            mCurrentHandlers = null;
+            mTimeoutMillis = null;
+            mTimeoutWhats = null;
+            mTimeouts = null;
+            mStateDeferred = null;
+            mDeferredCaps = null;
+            for (int i = 0; i < mSpliceCount; i++) {
+                mSplice[i] = null;
+            }
+            mSpliceCount = 0;
+            for (int id = 0; id < mStateCount; id++) {
+                // Let the state be added to another state machine, its id
+                // stays for the state machines still sharing it
+                if (mStates[id].mOwner == this) mStates[id].mOwner = null;
+                mStates[id] = null;
+            }
+            mStateCount = 0;
+            mForeignStateIds = null;
             mInitialState = null;
             mDestState = null;
             mDeferredMessages.clear();
@@ -589,36 +1222,94 @@ public class StateMachine {
          * <p>
          * 完成 状态机 建设
          */
-        private final void completeConstruction() {
+        private final void completeConstruction(byte snapshot[]) {
             if (mDbg) mSm.log("completeConstruction: E");
 
-            /**
-             * Determine the maximum depth of the state hierarchy
-             * so we can allocate the state stacks.
-             */
             int maxDepth = 0;
-            // 循环判断所有状态，看看哪一个链最长，得出深度
-            for (StateInfo si : mStateInfoHashMap.values()) {
-                int depth = 0;
-                for (StateInfo i = si; i != null; depth++) {
-                    i = i.parentStateInfo;
+            if (mDefinition != null) {
+                if (mInitialState == null) {
+                    throw new RuntimeException("start: setStates not called");
+                }
+                // Depths and transition plans come with the definition
+                maxDepth = mDefinition.getMaxDepth();
+                mTransitionPlans = mDefinition.getTransitionPlans();
+            } else {
+                /**
+                 * Determine the maximum depth of the state hierarchy
+                 * so we can allocate the state stacks.
+                 */
+                // 循环判断所有状态，看看哪一个链最长，得出深度
+                for (int id = 0; id < mStateCount; id++) {
+                    int depth = 0;
+                    for (int i = id; i != NO_STATE; depth++) {
+                        i = mParentIds[i];
+                    }
+                    mDepths[id] = depth;
+                    if (maxDepth < depth) {
+                        maxDepth = depth;
+                    }
+                }
+                // 状态切换计划缓存，大小为 2 的幂
+                int planCount = mStateCount * mStateCount;
+                int cacheSize = 1;
+                while (cacheSize < planCount && cacheSize < MAX_TRANSITION_PLANS) {
+                    cacheSize <<= 1;
+                }
+                mTransitionPlans = new TransitionPlan[cacheSize];
+                if (mDeferredCaps != null) {
+                    mDeferredCaps = Arrays.copyOf(mDeferredCaps, mStateCount);
                 }
-                if (maxDepth < depth) {
-                    maxDepth = depth;
+                if (mTimeoutMillis != null) {
+                    mTimeoutMillis = Arrays.copyOf(mTimeoutMillis, mStateCount);
+                    mTimeoutWhats = Arrays.copyOf(mTimeoutWhats, mStateCount);
                 }
             }
 
             if (mDbg) mSm.log("completeConstruction: maxDepth=" + maxDepth);
             // 状态堆栈
-            mStateStack = new StateInfo[maxDepth];
+            mStateStack = new int[maxDepth];
             // 临时状态堆栈
-            mTempStateStack = new StateInfo[maxDepth];
+            mTempStateStack = new int[maxDepth];
+            if (mMessageHandlers != null) {
+                mMessageHandlers = Arrays.copyOf(mMessageHandlers, mStateCount);
+                mResolvedHandlers = new DispatchTable[mStateCount];
+            }
+            if (mTimeoutMillis != null) {
+                mTimeouts = new Object[mStateCount];
+            }
+            if (mLogRecords.mFile != null) {
+                mLogRecords.mFile.open(mSm.getName(), Arrays.copyOf(mStateNames, mStateCount));
+            }
+            if (mTrackLatency) {
+                mLatency = new LatencyStats(mStateCount);
+            }
             // 初始化堆栈
-            setupInitialStateStack();
+            if (mJournal != null) {
+                if (snapshot != null) {
+                    throw new RuntimeException("start: a state machine with a journal starts from it");
+                }
+                snapshot = mJournal.open();
+            }
+            if (snapshot != null) {
+                restore(snapshot);
+            } else {
+                setupInitialStateStack();
+            }
+            if (mJournal != null) {
+                replayJournal();
+            }
 
             /** Sending SM_INIT_CMD message to invoke enter methods asynchronously */
             // 发送初始化完成的消息（消息放入到队列的最前边）
-            sendMessageAtFrontOfQueue(obtainMessage(SM_INIT_CMD, mSmHandlerObj));
+            if (mRequeued != null && mRequeued.size() > 0) {
+                // The messages the journal left requeued follow it, in one step
+                // so that none of them can be dispatched first
+                mRequeued.add(0, obtainMessage(SM_INIT_CMD, mSmHandlerObj));
+                mLoop.sendMessagesAtFrontOfQueue(mRequeued.toArray(new Message[mRequeued.size()]));
+            } else {
+                sendMessageAtFrontOfQueue(obtainMessage(SM_INIT_CMD, mSmHandlerObj));
+            }
+            mRequeued = null;
 
             if (mDbg) mSm.log("completeConstruction: X");
         }
@@ -628,48 +1319,159 @@ public class StateMachine {
          * it, call the states parent and so on. If it is never handled then
          * call the state machines unhandledMessage method.
          *
-         * @return the state that processed the message
+         * @return the id of the state that processed the message
          */
-        private final State processMsg(Message msg) {
-            StateInfo curStateInfo = mStateStack[mStateStackTopIndex];
+        private final int processMsg(Message msg) {
+            int curStateId = mStateStack[mStateStackTopIndex];
             if (mDbg) {
-                mSm.log("processMsg: " + curStateInfo.state.getName());
+                mSm.log("processMsg: " + mStateNames[curStateId]);
             }
 
             if (isQuit(msg)) {
+                if (msg.what != SM_QUIT_CMD) {
+                    // The quit message of a lane, quit with the last one
+                    mQuitLanes |= 1 << (SM_QUIT_CONTROL_CMD - msg.what);
+                    if (mQuitLanes != ALL_QUIT_LANES) return curStateId;
+                }
                 transitionTo(mQuittingState);
-            } else {
-                while (!curStateInfo.state.processMessage(msg)) {
+                return curStateId;
+            }
+
+            if (mMessageHandlers != null) {
+                /**
+                 * Skip the active states below the innermost one with a handler
+                 * for msg.what that keep the default processMessage, go straight
+                 * to the handler unless one below overrides it.
+                 */
+                DispatchTable current = mCurrentHandlers;
+                if (current == null) {
+                    current = mCurrentHandlers = getResolvedHandlers(curStateId);
+                }
+                int index = current.indexOf(msg.what);
+                if (index >= 0 && current.handlers[index] == null) {
+                    curStateId = current.owners[index];
+                } else if (index >= 0) {
+                    curStateId = current.owners[index];
+                    if (mDbg) mSm.log("processMsg: handler of " + mStateNames[curStateId]);
+                    if (current.handlers[index].handleMessage(msg)) {
+                        return curStateId;
+                    }
+                    curStateId = mParentIds[curStateId];
+                    if (curStateId == NO_STATE) {
+                        mSm.unhandledMessage(msg);
+                        if (mListener != null) mListener.onUnhandled(mSm, msg);
+                        return NO_STATE;
+                    }
+                    if (mDbg) mSm.log("processMsg: " + mStateNames[curStateId]);
+                }
+            }
+
+            while (!processMsgInState(curStateId, msg)) {
+                /**
+                 * Not processed
+                 */
+                curStateId = mParentIds[curStateId];
+                if (curStateId == NO_STATE) {
                     /**
-                     * Not processed
+                     * No parents left so it's not handled
                      */
-                    curStateInfo = curStateInfo.parentStateInfo;
-                    if (curStateInfo == null) {
-                        /**
-                         * No parents left so it's not handled
-                         */
-                        mSm.unhandledMessage(msg);
-                        break;
+                    mSm.unhandledMessage(msg);
+                    if (mListener != null) mListener.onUnhandled(mSm, msg);
+                    break;
+                }
+                if (mDbg) {
+                    mSm.log("processMsg: " + mStateNames[curStateId]);
+                }
+            }
+            return curStateId;
+        }
+
+        /**
+         * Let one state process the message, using the handler registered
+         * for msg.what if there is one and processMessage otherwise.
+         */
+        private final boolean processMsgInState(int stateId, Message msg) {
+            DispatchTable table = (mMessageHandlers != null) ? mMessageHandlers[stateId] : null;
+            if (table != null) {
+                int index = table.indexOf(msg.what);
+                if (index >= 0) {
+                    return table.handlers[index].handleMessage(msg);
+                }
+            }
+            return mStates[stateId].processMessage(msg);
+        }
+
+        /**
+         * @return the handlers that apply while stateId is the current state
+         */
+        private final DispatchTable getResolvedHandlers(int stateId) {
+            DispatchTable resolved = mResolvedHandlers[stateId];
+            if (resolved == null) {
+                resolved = new DispatchTable();
+                // Innermost first, the first state below a handler that overrides
+                // processMessage must be asked before it
+                int firstAsked = NO_STATE;
+                for (int id = stateId; id != NO_STATE; id = mParentIds[id]) {
+                    DispatchTable table = mMessageHandlers[id];
+                    for (int k = 0; table != null && k < table.size; k++) {
+                        if (resolved.indexOf(table.whats[k]) >= 0) continue;
+                        if (firstAsked == NO_STATE) {
+                            resolved.put(table.whats[k], id, table.handlers[k]);
+                        } else {
+                            resolved.put(table.whats[k], firstAsked, null);
+                        }
                     }
-                    if (mDbg) {
-                        mSm.log("processMsg: " + curStateInfo.state.getName());
+                    if (firstAsked == NO_STATE && overridesProcessMessage(mStates[id])) {
+                        firstAsked = id;
                     }
                 }
+                mResolvedHandlers[stateId] = resolved;
+            }
+            return resolved;
+        }
+
+        /**
+         * @return false if state keeps State.processMessage, which handles nothing
+         */
+        private static boolean overridesProcessMessage(State state) {
+            try {
+                return state.getClass().getMethod("processMessage", Message.class)
+                        .getDeclaringClass() != State.class;
+            } catch (NoSuchMethodException e) {
+                return true;
             }
-            return (curStateInfo != null) ? curStateInfo.state : null;
         }
 
         /**
          * Call the exit method for each state from the top of stack
          * up to the common ancestor state.
          */
-        private final void invokeExitMethods(StateInfo commonStateInfo) {
+        private final void invokeExitMethods(int commonStateId) {
             while ((mStateStackTopIndex >= 0)
-                    && (mStateStack[mStateStackTopIndex] != commonStateInfo)) {
-                State curState = mStateStack[mStateStackTopIndex].state;
-                if (mDbg) mSm.log("invokeExitMethods: " + curState.getName());
-                curState.exit();
-                mStateStack[mStateStackTopIndex].active = false;
+                    && (mStateStack[mStateStackTopIndex] != commonStateId)) {
+                int curStateId = mStateStack[mStateStackTopIndex];
+                if (mDbg) mSm.log("invokeExitMethods: " + mStateNames[curStateId]);
+                if (mTimeouts != null && mTimeouts[curStateId] != null) {
+                    mLoop.cancelTimer(mTimeouts[curStateId]);
+                    mTimeouts[curStateId] = null;
+                }
+                if (mStateDeferred != null && mStateDeferred[curStateId] != null
+                        && mStateDeferred[curStateId].size > 0) {
+                    addSplice(mStateDeferred[curStateId]);
+                }
+                if (mLatency == null) {
+                    mStates[curStateId].exit();
+                } else {
+                    LatencyStats latency = mLatency;
+                    long start = latency.stamp;
+                    mStates[curStateId].exit();
+                    long end = latency.stamp = System.nanoTime();
+                    latency.recordState(LATENCY_DWELL, curStateId,
+                            start - latency.enteredAt[curStateId]);
+                    latency.recordState(LATENCY_EXIT, curStateId, end - start);
+                }
+                if (mListener != null) mListener.onExit(mSm, mStates[curStateId]);
+                mActive[curStateId] = false;
                 mStateStackTopIndex -= 1;
             }
         }
@@ -681,28 +1483,395 @@ public class StateMachine {
          */
         private final void invokeEnterMethods(int stateStackEnteringIndex) {
             for (int i = stateStackEnteringIndex; i <= mStateStackTopIndex; i++) {
-                if (mDbg) mSm.log("invokeEnterMethods: " + mStateStack[i].state.getName());
-                mStateStack[i].state.enter();
-                mStateStack[i].active = true;
+                int curStateId = mStateStack[i];
+                if (mDbg) mSm.log("invokeEnterMethods: " + mStateNames[curStateId]);
+                if (mLatency == null) {
+                    mStates[curStateId].enter();
+                } else {
+                    long start = mLatency.stamp;
+                    mStates[curStateId].enter();
+                    long end = mLatency.stamp = System.nanoTime();
+                    mLatency.recordState(LATENCY_ENTER, curStateId, end - start);
+                    mLatency.enteredAt[curStateId] = end;
+                }
+                if (mListener != null) mListener.onEnter(mSm, mStates[curStateId]);
+                activate(curStateId);
+            }
+        }
+
+        /**
+         * Mark the states of a restored stack active without calling enter,
+         * the state timeouts start again.
+         */
+        private final void activateRestoredStates() {
+            for (int i = 0; i <= mStateStackTopIndex; i++) {
+                if (mDbg) mSm.log("activateRestoredStates: " + mStateNames[mStateStack[i]]);
+                if (mLatency != null) mLatency.enteredAt[mStateStack[i]] = System.nanoTime();
+                activate(mStateStack[i]);
+            }
+        }
+
+        private final void activate(int stateId) {
+            mActive[stateId] = true;
+            if (mTimeoutMillis != null && mTimeoutMillis[stateId] > 0) {
+                mTimeouts[stateId] = mLoop.sendTimer(
+                        obtainMessage(mTimeoutWhats[stateId], mStates[stateId]),
+                        mTimeoutMillis[stateId]);
+            }
+        }
+
+        /**
+         * @see StateMachine#snapshot()
+         */
+        private final byte[] snapshot() {
+            if (!mIsConstructionCompleted) {
+                throw new RuntimeException("snapshot: state machine not started");
+            }
+            if (mDestState != null) {
+                throw new RuntimeException("snapshot: transition in progress");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(mStateCount);
+                // The stack is the leaf and its ancestors
+                out.writeInt(mStateStack[mStateStackTopIndex]);
+                writeDeferred(out, mDeferredMessages);
+                int lists = 0;
+                if (mStateDeferred != null) {
+                    for (DeferredList list : mStateDeferred) {
+                        if (list != null && list.size > 0) lists++;
+                    }
+                }
+                out.writeInt(lists);
+                for (int id = 0; lists > 0 && id < mStateDeferred.length; id++) {
+                    DeferredList list = mStateDeferred[id];
+                    if (list != null && list.size > 0) {
+                        out.writeInt(id);
+                        writeDeferred(out, list);
+                    }
+                }
+                mSm.onSaveState(out);
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("snapshot: " + e.getMessage(), e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private final void writeDeferred(DataOutput out, DeferredList list) throws IOException {
+            out.writeInt(list.size);
+            for (int i = 0; i < list.size; i++) {
+                out.writeLong(list.seqs[i]);
+                writeMessage(out, list.msgs[i]);
             }
         }
 
+        /**
+         * Write the what, arg1, arg2 and obj of a message to a snapshot or
+         * the journal.
+         */
+        private final void writeMessage(DataOutput out, Message msg) throws IOException {
+            out.writeInt(msg.what);
+            out.writeInt(msg.arg1);
+            out.writeInt(msg.arg2);
+            int id = (msg.obj instanceof State) ? getStateId((State) msg.obj) : NO_STATE;
+            if (msg.obj == null) {
+                out.writeByte(OBJ_NULL);
+            } else if (id != NO_STATE) {
+                out.writeByte(OBJ_STATE);
+                out.writeInt(id);
+            } else {
+                out.writeByte(OBJ_CUSTOM);
+                mSm.onSaveMessageObj(msg.obj, out);
+            }
+        }
+
+        /**
+         * Set up the state stack and the deferred messages from a snapshot
+         * taken by {@link #snapshot()} and let the state machine read its data.
+         */
+        private final void restore(byte snapshot[]) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+            try {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new RuntimeException("start: not a state machine snapshot");
+                }
+                if (in.readInt() != mStateCount) {
+                    throw new RuntimeException("start: snapshot of a state machine with other states");
+                }
+                int leafId = in.readInt();
+                if (leafId < 0 || leafId >= mStateCount) {
+                    throw new RuntimeException("start: snapshot state " + leafId + " out of range");
+                }
+                if (mDbg) mSm.log("restore: leaf=" + mStateNames[leafId]);
+                setupStateStack(leafId);
+                readDeferred(in, mDeferredMessages);
+                for (int lists = in.readInt(); lists > 0; lists--) {
+                    int id = in.readInt();
+                    if (id < 0 || id >= mStateCount) {
+                        throw new RuntimeException("start: snapshot state " + id + " out of range");
+                    }
+                    if (mStateDeferred == null) {
+                        mStateDeferred = new DeferredList[mStateCount];
+                    }
+                    mStateDeferred[id] = new DeferredList();
+                    readDeferred(in, mStateDeferred[id]);
+                }
+                mSm.onRestoreState(in);
+            } catch (IOException e) {
+                throw new RuntimeException("start: corrupt snapshot", e);
+            }
+            mRestored = true;
+        }
+
+        private final void readDeferred(DataInput in, DeferredList list) throws IOException {
+            for (int n = in.readInt(); n > 0; n--) {
+                long seq = in.readLong();
+                list.add(readMessage(in), seq);
+                mDeferSeq = Math.max(mDeferSeq, seq + 1);
+            }
+        }
+
+        private final Message readMessage(DataInput in) throws IOException {
+            Message msg = obtainMessage();
+            msg.what = in.readInt();
+            msg.arg1 = in.readInt();
+            msg.arg2 = in.readInt();
+            int kind = in.readByte();
+            if (kind == OBJ_STATE) {
+                msg.obj = mStates[readStateId(in)];
+            } else if (kind == OBJ_CUSTOM) {
+                msg.obj = mSm.onRestoreMessageObj(in);
+            } else if (kind != OBJ_NULL) {
+                throw new IOException("obj kind " + kind);
+            }
+            return msg;
+        }
+
+        private final int readStateId(DataInput in) throws IOException {
+            int id = in.readInt();
+            if (id < 0 || id >= mStateCount) throw new IOException("state " + id);
+            return id;
+        }
+
+        /**
+         * Append a message handled or deferred, to the states' list if
+         * stateId is not NO_STATE, to the journal. The journal stops if the
+         * message cannot be written.
+         */
+        private final void journalMessage(int type, int stateId, Message msg) {
+            DataOutput out = mJournal.startRecord(type);
+            if (out == null) return;
+            try {
+                if (type == TransitionJournal.RECORD_DEFER) out.writeInt(stateId);
+                writeMessage(out, msg);
+                mJournal.endRecord();
+            } catch (IOException e) {
+                mJournal.abortRecord(e);
+            }
+        }
+
+        private final void journalTransition(int stateId) {
+            DataOutput out = mJournal.startRecord(TransitionJournal.RECORD_TRANSITION);
+            if (out == null) return;
+            try {
+                out.writeInt(stateId);
+                mJournal.endRecord();
+            } catch (IOException e) {
+                mJournal.abortRecord(e);
+            }
+        }
+
+        /**
+         * Write the records of a batch, or fold the journal into a snapshot
+         * which covers them once it holds enough records.
+         */
+        private final void commitJournal() {
+            if (mJournal.needsCompaction()) {
+                mJournal.compact(snapshot());
+            } else {
+                mJournal.commit();
+            }
+        }
+
+        /**
+         * Apply the records of the journal written after its snapshot:
+         * transitions move the state stack without calling exit or enter,
+         * deferred messages are deferred again, handled messages are passed
+         * to onReplayMessage. The deferred messages a transition put back on
+         * the queue are kept until their own dispatch is replayed, those the
+         * journal does not show dispatched go back to the front of the queue
+         * behind SM_INIT_CMD.
+         */
+        private final void replayJournal() {
+            int replayed = mJournal.replay(new TransitionJournal.Replayer() {
+                @Override
+                public void replay(int type, DataInput in) throws IOException {
+                    if (type == TransitionJournal.RECORD_MESSAGE) {
+                        mMsg = readMessage(in);
+                        removeRequeued(mMsg);
+                        mSm.onReplayMessage(mMsg);
+                        mMsg = null;
+                    } else if (type == TransitionJournal.RECORD_DEFER) {
+                        int id = in.readInt();
+                        Message msg = readMessage(in);
+                        if (id == NO_STATE) {
+                            mDeferredMessages.add(msg, mDeferSeq++);
+                        } else {
+                            if (id < 0 || id >= mStateCount) throw new IOException("state " + id);
+                            if (mStateDeferred == null) {
+                                mStateDeferred = new DeferredList[mStateCount];
+                            }
+                            if (mStateDeferred[id] == null) {
+                                mStateDeferred[id] = new DeferredList();
+                            }
+                            mStateDeferred[id].add(msg, mDeferSeq++);
+                        }
+                    } else if (type == TransitionJournal.RECORD_TRANSITION) {
+                        replayTransition(readStateId(in));
+                    } else {
+                        throw new IOException("record type " + type);
+                    }
+                }
+            });
+            if (mDbg) mSm.log("replayJournal: " + replayed + " records");
+            if (replayed > 0) mRestored = true;
+        }
+
+        private final void replayTransition(int destId) {
+            // The states are not active, find the common ancestor on the stack
+            int common = mParentIds[destId];
+            while (common != NO_STATE && !isOnStateStack(common)) {
+                common = mParentIds[common];
+            }
+            for (int i = mStateStackTopIndex; i >= 0 && mStateStack[i] != common; i--) {
+                // Spliced back on the queue when the state exited
+                int id = mStateStack[i];
+                if (mStateDeferred != null && mStateDeferred[id] != null
+                        && mStateDeferred[id].size > 0) {
+                    addSplice(mStateDeferred[id]);
+                }
+            }
+            if (mDeferredMessages.size > 0) addSplice(mDeferredMessages);
+            if (mSpliceCount > 0) {
+                Message msgs[] = new Message[getSpliceSize()];
+                takeSplices(msgs, null, null);
+                if (mRequeued == null) mRequeued = new ArrayList<Message>();
+                // At the front of the queue, ahead of those requeued before
+                mRequeued.addAll(0, Arrays.asList(msgs));
+            }
+            setupStateStack(destId);
+            mCurrentHandlers = null;
+        }
+
+        /**
+         * The replayed message was dispatched, it is no longer pending if it
+         * was requeued. Its obj may be a copy read back from the journal, the
+         * oldest requeued message with the same what and args is the one.
+         */
+        private final void removeRequeued(Message msg) {
+            if (mRequeued == null) return;
+            for (int i = 0; i < mRequeued.size(); i++) {
+                Message requeued = mRequeued.get(i);
+                if (requeued.what == msg.what && requeued.arg1 == msg.arg1
+                        && requeued.arg2 == msg.arg2) {
+                    mRequeued.remove(i);
+                    return;
+                }
+            }
+        }
+
+        private final boolean isOnStateStack(int stateId) {
+            for (int i = 0; i <= mStateStackTopIndex; i++) {
+                if (mStateStack[i] == stateId) return true;
+            }
+            return false;
+        }
+
+        private final void addSplice(DeferredList list) {
+            if (mSpliceCount == mSplice.length) {
+                mSplice = Arrays.copyOf(mSplice, mSpliceCount * 2);
+            }
+            mSplice[mSpliceCount++] = list;
+        }
+
         /**
          * Move the deferred message to the front of the message queue.
+         * <p>
+         * The messages deferred until this transition and those of the
+         * states it exited go back in one step, merged in the order they
+         * were deferred in, the oldest being processed first.
          */
         private final void moveDeferredMessageAtFrontOfQueue() {
-            /**
-             * The oldest messages on the deferred list must be at
-             * the front of the queue so start at the back, which
-             * as the most resent message and end with the oldest
-             * messages at the front of the queue.
-             */
-            for (int i = mDeferredMessages.size() - 1; i >= 0; i--) {
-                Message curMsg = mDeferredMessages.get(i);
-                if (mDbg) mSm.log("moveDeferredMessageAtFrontOfQueue; what=" + curMsg.what);
-                sendMessageAtFrontOfQueue(curMsg);
+            if (mDeferredMessages.size > 0) addSplice(mDeferredMessages);
+            if (mSpliceCount == 0) return;
+
+            int total = getSpliceSize();
+            Message msgs[] = new Message[total];
+            long deferredAt[] = (mLatency != null) ? new long[total] : null;
+            int requeues[] = (mLatency != null) ? new int[total] : null;
+            takeSplices(msgs, deferredAt, requeues);
+            if (mDbg) {
+                for (Message curMsg : msgs) {
+                    mSm.log("moveDeferredMessageAtFrontOfQueue; what=" + curMsg.what);
+                }
             }
-            mDeferredMessages.clear();
+            if (mLatency != null) {
+                for (int i = 0; i < total; i++) {
+                    requeues[i]++;
+                }
+                mLatency.requeue(msgs, deferredAt, requeues);
+            }
+            mLoop.sendMessagesAtFrontOfQueue(msgs);
+        }
+
+        private final int getSpliceSize() {
+            int total = 0;
+            for (int i = 0; i < mSpliceCount; i++) {
+                total += mSplice[i].size;
+            }
+            return total;
+        }
+
+        /**
+         * Merge the spliced lists into msgs, oldest deferred first, and clear
+         * them. deferredAt and requeues are filled unless null.
+         */
+        private final void takeSplices(Message msgs[], long deferredAt[], int requeues[]) {
+            int total = msgs.length;
+            if (mSpliceCount == 1) {
+                System.arraycopy(mSplice[0].msgs, 0, msgs, 0, total);
+                if (deferredAt != null) {
+                    System.arraycopy(mSplice[0].deferredAt, 0, deferredAt, 0, total);
+                    System.arraycopy(mSplice[0].requeues, 0, requeues, 0, total);
+                }
+            } else {
+                // A merge of a few sorted lists, take the oldest head each time
+                int heads[] = new int[mSpliceCount];
+                for (int n = 0; n < total; n++) {
+                    int oldest = -1;
+                    for (int i = 0; i < mSpliceCount; i++) {
+                        if (heads[i] < mSplice[i].size && (oldest < 0
+                                || mSplice[i].seqs[heads[i]] < mSplice[oldest].seqs[heads[oldest]])) {
+                            oldest = i;
+                        }
+                    }
+                    DeferredList list = mSplice[oldest];
+                    int head = heads[oldest]++;
+                    msgs[n] = list.msgs[head];
+                    if (deferredAt != null) {
+                        deferredAt[n] = list.deferredAt[head];
+                        requeues[n] = list.requeues[head];
+                    }
+                }
+            }
+            for (int i = 0; i < mSpliceCount; i++) {
+                mSplice[i].clear();
+                mSplice[i] = null;
+            }
+            mSpliceCount = 0;
         }
 
         /**
@@ -734,41 +1903,83 @@ public class StateMachine {
             if (mDbg) {
                 mSm.log("moveTempStackToStateStack: X mStateStackTop=" + mStateStackTopIndex
                         + ",startingIndex=" + startingIndex + ",Top="
-                        + mStateStack[mStateStackTopIndex].state.getName());
+                        + mStateNames[mStateStack[mStateStackTopIndex]]);
+            }
+            return startingIndex;
+        }
+
+        /**
+         * Push the states of a transition plan on to the state stack.
+         *
+         * @return index into mStateStack where entering needs to start
+         */
+        private final int pushStatesToEnter(int statesToEnter[]) {
+            int startingIndex = mStateStackTopIndex + 1;
+            System.arraycopy(statesToEnter, 0, mStateStack, startingIndex, statesToEnter.length);
+            mStateStackTopIndex = startingIndex + statesToEnter.length - 1;
+            mCurrentHandlers = null;
+
+            if (mDbg) {
+                mSm.log("pushStatesToEnter: X mStateStackTop=" + mStateStackTopIndex
+                        + ",startingIndex=" + startingIndex + ",Top="
+                        + mStateNames[mStateStack[mStateStackTopIndex]]);
             }
             return startingIndex;
         }
 
         /**
-         * Setup the mTempStateStack with the states we are going to enter.
+         * Get the plan for a transition from the current state to destStateId,
+         * from the cache or by building it. With a definition the cache is
+         * shared, a plan stored by another state machine's thread is safe to
+         * use as its fields are final.
+         */
+        private final TransitionPlan getTransitionPlan(int destStateId) {
+            int source = mStateStack[mStateStackTopIndex];
+            // Exact index while every pair fits in the cache
+            int index = (source * mStateCount + destStateId) & (mTransitionPlans.length - 1);
+            TransitionPlan plan = mTransitionPlans[index];
+            if (plan == null || plan.source != source || plan.dest != destStateId) {
+                plan = buildTransitionPlan(source, destStateId);
+                mTransitionPlans[index] = plan;
+            }
+            return plan;
+        }
+
+        /**
+         * Build the plan for a transition from the current state to destStateId.
          * <p>
          * This is found by searching up the destState's ancestors for a
-         * state that is already active i.e. StateInfo.active == true.
-         * The destStae and all of its inactive parents will be on the
-         * TempStateStack as the list of states to enter.
-         *
-         * @return StateInfo of the common ancestor for the destState and
-         * current state or null if there is no common parent.
+         * state that is already active i.e. mActive[id] == true.
+         * The destState and all of its inactive parents are the states
+         * to enter. As the state stack always holds the current state and
+         * all of its ancestors the result only depends on the two states.
          */
-        private final StateInfo setupTempStateStackWithStatesToEnter(State destState) {
+        private final TransitionPlan buildTransitionPlan(int source, int destStateId) {
             /**
              * Search up the parent list of the destination state for an active
              * state. Use a do while() loop as the destState must always be entered
              * even if it is active. This can happen if we are exiting/entering
              * the current state.
              */
-            mTempStateStackCount = 0;
-            StateInfo curStateInfo = mStateInfoHashMap.get(destState);
+            int count = 0;
+            int curStateId = destStateId;
             do {
-                mTempStateStack[mTempStateStackCount++] = curStateInfo;
-                curStateInfo = curStateInfo.parentStateInfo;
-            } while ((curStateInfo != null) && !curStateInfo.active);
+                count++;
+                curStateId = mParentIds[curStateId];
+            } while ((curStateId != NO_STATE) && !mActive[curStateId]);
+
+            int statesToEnter[] = new int[count];
+            int id = destStateId;
+            for (int i = count - 1; i >= 0; i--) {
+                statesToEnter[i] = id;
+                id = mParentIds[id];
+            }
 
             if (mDbg) {
-                mSm.log("setupTempStateStackWithStatesToEnter: X mTempStateStackCount="
-                        + mTempStateStackCount + ",curStateInfo: " + curStateInfo);
+                mSm.log("buildTransitionPlan: X statesToEnter=" + count
+                        + ",common: " + stateToString(curStateId));
             }
-            return curStateInfo;
+            return new TransitionPlan(source, destStateId, curStateId, statesToEnter);
         }
 
         /**
@@ -780,14 +1991,20 @@ public class StateMachine {
             if (mDbg) {
                 mSm.log("setupInitialStateStack: E mInitialState=" + mInitialState.getName());
             }
-            // 获取初始状态信息
-            StateInfo curStateInfo = mStateInfoHashMap.get(mInitialState);
-            //
-            for (mTempStateStackCount = 0; curStateInfo != null; mTempStateStackCount++) {
+            // 获取初始状态 id
+            setupStateStack(getStateId(mInitialState));
+        }
+
+        /**
+         * Set the state stack to a state and its ancestors.
+         */
+        private final void setupStateStack(int leafId) {
+            int curStateId = leafId;
+            for (mTempStateStackCount = 0; curStateId != NO_STATE; mTempStateStackCount++) {
                 // 初始状态 放入临时堆栈
-                mTempStateStack[mTempStateStackCount] = curStateInfo;
+                mTempStateStack[mTempStateStackCount] = curStateId;
                 // 当前状态的 所有父状态 一级级放入堆栈
-                curStateInfo = curStateInfo.parentStateInfo;
+                curStateId = mParentIds[curStateId];
             }
 
             // 清空 状态堆栈
@@ -808,7 +2025,84 @@ public class StateMachine {
          * @return current state
          */
         private final IState getCurrentState() {
-            return mStateStack[mStateStackTopIndex].state;
+            return mStates[mStateStack[mStateStackTopIndex]];
+        }
+
+        /**
+         * @return name of the current state
+         */
+        private final String getCurrentStateName() {
+            return mStateNames[mStateStack[mStateStackTopIndex]];
+        }
+
+        /**
+         * @return the state with the given id, null for NO_STATE or if the state machine has quit
+         */
+        private final State getState(int id) {
+            State states[] = mStates;
+            return (id >= 0 && id < states.length) ? states[id] : null;
+        }
+
+        /**
+         * @return the id of the state or NO_STATE if it has not been added
+         */
+        private final int getStateId(State state) {
+            int id = state.mStateId;
+            // A state shared by state machines with the same definition has the same id in all
+            if (state.mOwner == this || (id >= 0 && id < mStateCount && mStates[id] == state)) {
+                return id;
+            }
+            Integer foreignId = (mForeignStateIds != null) ? mForeignStateIds.get(state) : null;
+            return (foreignId != null) ? foreignId : NO_STATE;
+        }
+
+        /**
+         * Convert the entry of a state to string
+         */
+        private final String stateToString(int id) {
+            if (id == NO_STATE) return "null";
+            int parentId = mParentIds[id];
+            return "state=" + mStateNames[id] + ",active=" + mActive[id] + ",parent="
+                    + ((parentId == NO_STATE) ? "null" : mStateNames[parentId]);
+        }
+
+        /**
+         * Assign the next id to a state, growing the state arrays as needed.
+         */
+        private final int newStateId(State state) {
+            int id = mStateCount;
+            if (id == mStates.length) {
+                int capacity = id * 2;
+                mStates = Arrays.copyOf(mStates, capacity);
+                mParentIds = Arrays.copyOf(mParentIds, capacity);
+                mDepths = Arrays.copyOf(mDepths, capacity);
+                mStateNames = Arrays.copyOf(mStateNames, capacity);
+                mActive = Arrays.copyOf(mActive, capacity);
+            }
+            mStates[id] = state;
+            mParentIds[id] = NO_STATE;
+            mStateNames[id] = state.getName();
+            mStateCount = id + 1;
+            bindStateId(state, id);
+            return id;
+        }
+
+        /**
+         * Let getStateId find a state without hashing
+         */
+        private final void bindStateId(State state, int id) {
+            if (state.mOwner == null && (state.mStateId == NO_STATE || state.mStateId == id)) {
+                state.mOwner = this;
+                state.mStateId = id;
+            } else if (state.mStateId != id) {
+                // Already added to another state machine with another id. A
+                // state shared by the machines of a definition has the same
+                // id in all of them, getStateId finds it in mStates.
+                if (mForeignStateIds == null) {
+                    mForeignStateIds = new HashMap<State, Integer>();
+                }
+                mForeignStateIds.put(state, id);
+            }
         }
 
         /**
@@ -822,67 +2116,200 @@ public class StateMachine {
          * @param parent the parent of state
          * @return stateInfo for this state
          */
-        private final StateInfo addState(State state, State parent) {
+        private final int addState(State state, State parent) {
+            if (mDefinition != null) {
+                throw new RuntimeException("addState: state machine has a definition");
+            }
             if (mDbg) {
                 mSm.log("addStateInternal: E state=" + state.getName() + ",parent="
                         + ((parent == null) ? "" : parent.getName()));
             }
-            // 父亲的状态信息
-            StateInfo parentStateInfo = null;
+            // 父状态 id
+            int parentId = NO_STATE;
             // 存在父状态
             if (parent != null) {
                 // 获取存在的父状态
-                parentStateInfo = mStateInfoHashMap.get(parent);
+                parentId = getStateId(parent);
                 // 如果状态列表中，没有这个状态，则把这个状态加进来，作为其父状态
-                if (parentStateInfo == null) {
+                if (parentId == NO_STATE) {
                     // Recursively add our parent as it's not been added yet.
-                    parentStateInfo = addState(parent, null);
+                    parentId = addState(parent, null);
                 }
             }
             // 查询该状态是否在列表中
-            StateInfo stateInfo = mStateInfoHashMap.get(state);
-            // 不在列表中，新建一个 StateInfo 加入进去
-            if (stateInfo == null) {
-                stateInfo = new StateInfo();
-                mStateInfoHashMap.put(state, stateInfo);
+            int id = getStateId(state);
+            // 不在列表中，分配一个新的 id
+            if (id == NO_STATE) {
+                id = newStateId(state);
             }
             // 重复加入了某个状态
             // Validate that we aren't adding the same state in two different hierarchies.
-            if ((stateInfo.parentStateInfo != null)
-                    && (stateInfo.parentStateInfo != parentStateInfo)) {
+            if ((mParentIds[id] != NO_STATE) && (mParentIds[id] != parentId)) {
                 throw new RuntimeException("state already added");
             }
-            // StateInfo赋值
-            stateInfo.state = state;
             // 父状态
-            stateInfo.parentStateInfo = parentStateInfo;
+            mParentIds[id] = parentId;
             // active
-            stateInfo.active = false;
+            mActive[id] = false;
             // 状态添加完成
-            if (mDbg) mSm.log("addStateInternal: X stateInfo: " + stateInfo);
-            return stateInfo;
+            if (mDbg) mSm.log("addStateInternal: X stateInfo: " + stateToString(id));
+            return id;
         }
 
         /**
          * Constructor
          *
-         * @param looper for dispatching messages
-         * @param sm     the hierarchical state machine
+         * @param loop for dispatching messages
+         * @param sm   the hierarchical state machine
          */
-        private SmHandler(Looper looper, StateMachine sm) {
-            super(looper);
+        private SmHandler(MessageLoop loop, StateMachine sm) {
+            mLoop = loop;
             mSm = sm;
+            mDefinition = null;
+            mStates = new State[INITIAL_STATE_CAPACITY];
+            mParentIds = new int[INITIAL_STATE_CAPACITY];
+            mDepths = new int[INITIAL_STATE_CAPACITY];
+            mStateNames = new String[INITIAL_STATE_CAPACITY];
+            mActive = new boolean[INITIAL_STATE_CAPACITY];
+            loop.setCallback(this);
+            setQuitLanes();
 
             addState(mHaltingState, null);
             addState(mQuittingState, null);
         }
 
+        /**
+         * Constructor of a state machine whose structure is shared, the
+         * states are bound by setStates.
+         *
+         * @param definition the structure, sealed on first use
+         */
+        private SmHandler(MessageLoop loop, StateMachine sm, StateMachineDefinition definition) {
+            definition.seal();
+            mLoop = loop;
+            mSm = sm;
+            mDefinition = definition;
+            mStateCount = definition.getCount();
+            mStates = new State[mStateCount];
+            mParentIds = definition.getParentIds();
+            mDepths = definition.getDepths();
+            mStateNames = definition.getNames();
+            mActive = new boolean[mStateCount];
+            mTimeoutMillis = definition.getTimeoutMillis();
+            mTimeoutWhats = definition.getTimeoutWhats();
+            mDeferredCaps = definition.getDeferredCaps();
+            loop.setCallback(this);
+            setQuitLanes();
+
+            mStates[StateMachineDefinition.HALTING_STATE] = mHaltingState;
+            bindStateId(mHaltingState, StateMachineDefinition.HALTING_STATE);
+            mStates[StateMachineDefinition.QUITTING_STATE] = mQuittingState;
+            bindStateId(mQuittingState, StateMachineDefinition.QUITTING_STATE);
+        }
+
+        /**
+         * Queue the quit message of each lane in its lane, once the loop is attached.
+         */
+        private void setQuitLanes() {
+            mLoop.setLane(SM_QUIT_CONTROL_CMD, MessageLoop.LANE_CONTROL);
+            mLoop.setLane(SM_QUIT_NORMAL_CMD, MessageLoop.LANE_NORMAL);
+            mLoop.setLane(SM_QUIT_BULK_CMD, MessageLoop.LANE_BULK);
+        }
+
+        /**
+         * @see StateMachine#setStates(State...)
+         */
+        private final void setStates(State states[]) {
+            if (mDefinition == null) {
+                throw new RuntimeException("setStates: state machine has no definition");
+            }
+            if (mStateStack != null) {
+                throw new RuntimeException("setStates: state machine already started");
+            }
+            if (mInitialState != null) {
+                throw new RuntimeException("setStates: states already set");
+            }
+            int first = StateMachineDefinition.FIRST_STATE;
+            if (states.length != mStateCount - first) {
+                throw new IllegalArgumentException("setStates: " + states.length
+                        + " states, the definition has " + (mStateCount - first));
+            }
+            for (int i = 0; i < states.length; i++) {
+                State state = states[i];
+                if (state == null) {
+                    throw new IllegalArgumentException("setStates: state " + i + " is null");
+                }
+                if (getStateId(state) != NO_STATE) {
+                    throw new RuntimeException("state already added");
+                }
+                mStates[first + i] = state;
+                bindStateId(state, first + i);
+            }
+            mInitialState = mStates[mDefinition.getInitialStateId()];
+            if (mDbg) mSm.log("setStates: " + states.length + " states");
+        }
+
+        /**
+         * @see StateMachine#addMessageHandler(State, int, MessageHandler)
+         */
+        private final void addMessageHandler(State state, int what, MessageHandler handler) {
+            if (mStateStack != null) {
+                throw new RuntimeException("addMessageHandler: state machine already started");
+            }
+            int id = getStateId(state);
+            if (id == NO_STATE) {
+                throw new RuntimeException("addMessageHandler: state not added");
+            }
+            if (mDbg) mSm.log("addMessageHandler: state=" + mStateNames[id] + ",what=" + what);
+            if (mMessageHandlers == null) {
+                mMessageHandlers = new DispatchTable[mStates.length];
+            } else if (mMessageHandlers.length <= id) {
+                mMessageHandlers = Arrays.copyOf(mMessageHandlers, mStates.length);
+            }
+            if (mMessageHandlers[id] == null) {
+                mMessageHandlers[id] = new DispatchTable();
+            }
+            mMessageHandlers[id].put(what, id, handler);
+        }
+
+        /**
+         * @see StateMachine#setStateTimeout(State, int, long)
+         */
+        private final void setStateTimeout(State state, int what, long timeoutMillis) {
+            if (mStateStack != null) {
+                throw new RuntimeException("setStateTimeout: state machine already started");
+            }
+            if (mDefinition != null) {
+                throw new RuntimeException("setStateTimeout: state machine has a definition");
+            }
+            int id = getStateId(state);
+            if (id == NO_STATE) {
+                throw new RuntimeException("setStateTimeout: state not added");
+            }
+            if (mDbg) {
+                mSm.log("setStateTimeout: state=" + mStateNames[id] + ",what=" + what
+                        + ",timeoutMillis=" + timeoutMillis);
+            }
+            if (mTimeoutMillis == null || mTimeoutMillis.length <= id) {
+                int length = mStates.length;
+                mTimeoutMillis = (mTimeoutMillis == null) ? new long[length]
+                        : Arrays.copyOf(mTimeoutMillis, length);
+                mTimeoutWhats = (mTimeoutWhats == null) ? new int[length]
+                        : Arrays.copyOf(mTimeoutWhats, length);
+            }
+            mTimeoutMillis[id] = Math.max(timeoutMillis, 0);
+            mTimeoutWhats[id] = what;
+        }
+
         /**
          * 设置初始化的状态
          *
          * @see StateMachine#setInitialState(State)
          */
         private final void setInitialState(State initialState) {
+            if (mDefinition != null) {
+                throw new RuntimeException("setInitialState: state machine has a definition");
+            }
             if (mDbg) mSm.log("setInitialState: initialState=" + initialState.getName());
             mInitialState = initialState;
         }
@@ -905,7 +2332,88 @@ public class StateMachine {
             Message newMsg = obtainMessage();
             newMsg.copyFrom(msg);
 
-            mDeferredMessages.add(newMsg);
+            if (mLatency == null) {
+                mDeferredMessages.add(newMsg, mDeferSeq++);
+            } else {
+                mDeferredMessages.add(newMsg, mDeferSeq++, deferredAt(msg), requeues(msg));
+            }
+            if (mJournal != null) journalMessage(TransitionJournal.RECORD_DEFER, NO_STATE, newMsg);
+            if (mListener != null) mListener.onDeferred(mSm, msg, null);
+        }
+
+        /**
+         * @see StateMachine#deferMessageUntilExit(Message, State)
+         */
+        private final boolean deferMessageUntilExit(Message msg, State state) {
+            int id = getStateId(state);
+            if (id == NO_STATE || !mActive[id]) {
+                throw new RuntimeException("deferMessageUntilExit: state not active");
+            }
+            if (mDbg) mSm.log("deferMessageUntilExit: msg=" + msg.what + ",state=" + mStateNames[id]);
+            if (mStateDeferred == null) {
+                mStateDeferred = new DeferredList[mStateCount];
+            }
+            DeferredList list = mStateDeferred[id];
+            if (list == null) {
+                list = mStateDeferred[id] = new DeferredList();
+            }
+            if (mDeferredCaps != null && mDeferredCaps[id] > 0 && list.size >= mDeferredCaps[id]) {
+                if (mDbg) mSm.log("deferMessageUntilExit: " + mStateNames[id] + " full");
+                return false;
+            }
+
+            /* Copy the "msg" to "newMsg" as "msg" will be recycled */
+            Message newMsg = obtainMessage();
+            newMsg.copyFrom(msg);
+
+            if (mLatency == null) {
+                list.add(newMsg, mDeferSeq++);
+            } else {
+                list.add(newMsg, mDeferSeq++, deferredAt(msg), requeues(msg));
+            }
+            if (mJournal != null) journalMessage(TransitionJournal.RECORD_DEFER, id, newMsg);
+            if (mListener != null) mListener.onDeferred(mSm, msg, state);
+            return true;
+        }
+
+        /**
+         * @return when msg was first deferred: now, unless it is the message
+         * being processed and was deferred and put back before
+         */
+        private final long deferredAt(Message msg) {
+            if (msg == mMsg && mLatency.currentDeferredAt != 0) {
+                mLatency.redeferred = true;
+                return mLatency.currentDeferredAt;
+            }
+            return System.nanoTime();
+        }
+
+        private final int requeues(Message msg) {
+            return (msg == mMsg && mLatency.currentDeferredAt != 0) ? mLatency.currentRequeues : 0;
+        }
+
+        /**
+         * @see StateMachine#setDeferredCapacity(State, int)
+         */
+        private final void setDeferredCapacity(State state, int capacity) {
+            if (mStateStack != null) {
+                throw new RuntimeException("setDeferredCapacity: state machine already started");
+            }
+            if (mDefinition != null) {
+                throw new RuntimeException("setDeferredCapacity: state machine has a definition");
+            }
+            int id = getStateId(state);
+            if (id == NO_STATE) {
+                throw new RuntimeException("setDeferredCapacity: state not added");
+            }
+            if (mDbg) {
+                mSm.log("setDeferredCapacity: state=" + mStateNames[id] + ",capacity=" + capacity);
+            }
+            if (mDeferredCaps == null || mDeferredCaps.length <= id) {
+                mDeferredCaps = (mDeferredCaps == null) ? new int[mStates.length]
+                        : Arrays.copyOf(mDeferredCaps, mStates.length);
+            }
+            mDeferredCaps[id] = Math.max(capacity, 0);
         }
 
         /**
@@ -913,7 +2421,18 @@ public class StateMachine {
          */
         private final void quit() {
             if (mDbg) mSm.log("quit:");
-            sendMessage(obtainMessage(SM_QUIT_CMD, mSmHandlerObj));
+            /**
+             * A quit message in each lane, behind the messages already
+             * queued there, the state machine quits once all of them have
+             * been dispatched. A loop with a single queue ignores the lanes
+             * and dispatches them in a row. Sent in one call that is never
+             * refused or dropped by a full loop, either all three are
+             * queued or the loop has quit.
+             */
+            mLoop.sendReservedMessages(new Message[]{
+                    obtainMessage(SM_QUIT_CONTROL_CMD, mSmHandlerObj),
+                    obtainMessage(SM_QUIT_NORMAL_CMD, mSmHandlerObj),
+                    obtainMessage(SM_QUIT_BULK_CMD, mSmHandlerObj)});
         }
 
         /**
@@ -924,11 +2443,43 @@ public class StateMachine {
             sendMessageAtFrontOfQueue(obtainMessage(SM_QUIT_CMD, mSmHandlerObj));
         }
 
+        private final Message obtainMessage() {
+            return Message.obtain(mLoop.getHandler());
+        }
+
+        private final Message obtainMessage(int what, Object obj) {
+            return Message.obtain(mLoop.getHandler(), what, obj);
+        }
+
+        private final boolean sendMessage(Message msg) {
+            return mLoop.sendMessage(msg);
+        }
+
+        private final boolean trySendMessage(Message msg) {
+            return mLoop.trySendMessage(msg);
+        }
+
+        private final boolean sendMessages(Message msgs[]) {
+            return mLoop.sendMessages(msgs);
+        }
+
+        private final boolean sendMessageDelayed(Message msg, long delayMillis) {
+            return mLoop.sendMessageDelayed(msg, delayMillis);
+        }
+
+        private final boolean sendMessageAtFrontOfQueue(Message msg) {
+            return mLoop.sendMessageAtFrontOfQueue(msg);
+        }
+
+        private final void removeMessages(int what) {
+            mLoop.removeMessages(what);
+        }
+
         /**
          * Validate that the message was sent by quit or quitNow.
          */
         private final boolean isQuit(Message msg) {
-            return (msg.what == SM_QUIT_CMD) && (msg.obj == mSmHandlerObj);
+            return isQuitWhat(msg.what) && (msg.obj == mSmHandlerObj);
         }
 
         /**
@@ -947,20 +2498,18 @@ public class StateMachine {
 
     }
 
-    // HandlerThread 对应的Handler
+    // 消息循环 对应的 SmHandler
     private SmHandler mSmHandler;
-    // HandlerThread
-    private HandlerThread mSmThread;
 
     /**
      * Initialize.
      *
-     * @param looper for this state machine  mSmThread对应的Looper
-     * @param name   of the state machine   StateMachine名
+     * @param loop for this state machine  消息循环
+     * @param name of the state machine   StateMachine名
      */
-    private void initStateMachine(String name, Looper looper) {
+    private void initStateMachine(String name, MessageLoop loop) {
         mName = name;
-        mSmHandler = new SmHandler(looper, this);
+        mSmHandler = new SmHandler(loop, this);
     }
 
     /**
@@ -969,13 +2518,8 @@ public class StateMachine {
      * @param name of the state machine
      */
     protected StateMachine(String name) {
-        // 创建 HandlerThread
-        mSmThread = new HandlerThread(name);
-        mSmThread.start();
-        // 获取HandlerThread对应的Looper
-        Looper looper = mSmThread.getLooper();
-        // 初始化 StateMachine
-        initStateMachine(name, looper);
+        // 创建 HandlerThread，并初始化 StateMachine
+        initStateMachine(name, LooperMessageLoop.newThreadLoop(name));
     }
 
     /**
@@ -984,7 +2528,7 @@ public class StateMachine {
      * @param name of the state machine
      */
     protected StateMachine(String name, Looper looper) {
-        initStateMachine(name, looper);
+        initStateMachine(name, new LooperMessageLoop(looper));
     }
 
     /**
@@ -993,7 +2537,49 @@ public class StateMachine {
      * @param name of the state machine
      */
     protected StateMachine(String name, Handler handler) {
-        initStateMachine(name, handler.getLooper());
+        initStateMachine(name, new LooperMessageLoop(handler.getLooper()));
+    }
+
+    /**
+     * Constructor creates a StateMachine using the message loop, for example
+     * a {@link QueueMessageLoop} to run without android.os.Looper.
+     *
+     * @param name of the state machine
+     * @param loop that queues and dispatches the messages, it must not be
+     *             shared with another state machine
+     */
+    protected StateMachine(String name, MessageLoop loop) {
+        initStateMachine(name, loop);
+    }
+
+    /**
+     * Constructor creates a StateMachine whose structure is shared with the
+     * other state machines of the definition: the hierarchy, the initial
+     * state, the state timeouts and deferred capacities and the transition
+     * plans are not built again. The subclass then calls
+     * {@link #setStates(State...)}, addState, setInitialState,
+     * setStateTimeout and setDeferredCapacity throw.
+     *
+     * @param name       of the state machine
+     * @param loop       that queues and dispatches the messages
+     * @param definition the structure, it cannot change once used
+     */
+    protected StateMachine(String name, MessageLoop loop, StateMachineDefinition definition) {
+        mName = name;
+        mSmHandler = new SmHandler(loop, this, definition);
+    }
+
+    /**
+     * Bind the states of a state machine constructed with a
+     * {@link StateMachineDefinition}, in the order the definition named
+     * them, see {@link StateMachineDefinition#indexOf(String)}. A state may
+     * be shared by state machines of the same definition if it keeps no
+     * per machine data. Must be called once, before start.
+     *
+     * @param states one per state of the definition
+     */
+    protected final void setStates(State... states) {
+        mSmHandler.setStates(states);
     }
 
     /**
@@ -1015,6 +2601,114 @@ public class StateMachine {
         mSmHandler.addState(state, null);
     }
 
+    /**
+     * Register a handler for one message what in a state, opt-in
+     * alternative to switching on msg.what in processMessage.
+     * <p>
+     * While the state is active a message with this what goes straight to
+     * the handler of the innermost active state that registered it, the
+     * states below it that keep the default processMessage are skipped. If
+     * one of them overrides processMessage the message goes through the
+     * states from there up as usual, each asked before the handler. If the
+     * handler returns NOT_HANDLED the message continues with the parents of
+     * that state as usual. Messages without a registered handler go through
+     * processMessage.
+     * <p>
+     * Must be called before {@link #start()}.
+     *
+     * @param state   the state, it must have been added
+     * @param what    the Message.what to handle
+     * @param handler called instead of state.processMessage for what
+     */
+    protected final void addMessageHandler(State state, int what, MessageHandler handler) {
+        mSmHandler.addMessageHandler(state, what, handler);
+    }
+
+    /**
+     * Give a state a timeout. Each time the state is entered the state
+     * machine sends itself a message with the given what, and the state as
+     * obj, after timeoutMillis. Exiting the state cancels it, without the
+     * search of the queue a removeMessages in exit would cost with a
+     * {@link QueueMessageLoop}.
+     * <p>
+     * Must be called before {@link #start()}.
+     *
+     * @param state         the state, it must have been added
+     * @param what          the Message.what of the timeout message
+     * @param timeoutMillis time spent in the state before the message is sent, 0 for none
+     */
+    protected final void setStateTimeout(State state, int what, long timeoutMillis) {
+        mSmHandler.setStateTimeout(state, what, timeoutMillis);
+    }
+
+    /**
+     * Merge a burst of messages with the given what into one: a message
+     * sent while another with the same what is still pending is merged into
+     * it by the coalescer, for instance {@link MessageCoalescer#KEEP_LATEST}
+     * for sensor readings or progress updates where only the newest value
+     * matters. With a window the first message of a burst is held that
+     * long, a debounce bounding how often the message is processed.
+     * <p>
+     * Only the messages sent with sendMessage are merged, may be called at
+     * any time. Needs a {@link QueueMessageLoop} or a
+     * {@link StateMachineGroup}.
+     *
+     * @param what         the Message.what to merge
+     * @param coalescer    how a message is merged, null to stop merging
+     * @param windowMillis time the first message of a burst is held, 0 for none
+     * @throws IllegalStateException if the loop cannot merge messages, as a
+     *                               {@link LooperMessageLoop}
+     */
+    protected final void setCoalescing(int what, MessageCoalescer coalescer, long windowMillis) {
+        try {
+            mSmHandler.mLoop.setCoalescing(what, coalescer, windowMillis);
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalStateException("setCoalescing needs a QueueMessageLoop or a "
+                    + "StateMachineGroup, not a " + mSmHandler.mLoop.getClass().getSimpleName(), e);
+        }
+    }
+
+    /**
+     * Queue the messages with the given what in a lane of the loop, for
+     * instance {@link MessageLoop#LANE_CONTROL} for commands that must not
+     * wait behind a backlog, {@link MessageLoop#LANE_BULK} for a flood of
+     * events that may wait. Messages keep their order within a lane, not
+     * across lanes. A {@link LooperMessageLoop} has a single lane and
+     * ignores it.
+     *
+     * @param what the Message.what
+     * @param lane one of the MessageLoop.LANE_* lanes
+     */
+    protected final void setMessageLane(int what, int lane) {
+        mSmHandler.mLoop.setLane(what, lane);
+    }
+
+    /**
+     * Bound the number of messages pending for this state machine, so
+     * producers faster than the state machine cannot fill the memory. The
+     * overflow policy decides what a message sent beyond the capacity does:
+     * wait for room, fail, make room by dropping the oldest message, be
+     * dropped or replace the pending message of its what, see
+     * {@link MessageLoop#OVERFLOW_BLOCK} and the following. The messages the
+     * state machine sends itself, deferred messages and state timeouts are
+     * always accepted, so are the quit messages, which are never dropped
+     * to make room either. Needs a {@link QueueMessageLoop} or a
+     * {@link StateMachineGroup}.
+     *
+     * @param capacity       maximum number of pending messages
+     * @param overflowPolicy one of the MessageLoop.OVERFLOW_* policies
+     * @throws IllegalStateException if the loop cannot count its pending
+     *                               messages, as a {@link LooperMessageLoop}
+     */
+    protected final void setCapacity(int capacity, int overflowPolicy) {
+        try {
+            mSmHandler.mLoop.setCapacity(capacity, overflowPolicy);
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalStateException("setCapacity needs a QueueMessageLoop or a "
+                    + "StateMachineGroup, not a " + mSmHandler.mLoop.getClass().getSimpleName(), e);
+        }
+    }
+
     /**
      * Set the initial state. This must be invoked before
      * and messages are sent to the state machine.
@@ -1089,6 +2783,36 @@ public class StateMachine {
         mSmHandler.deferMessage(msg);
     }
 
+    /**
+     * Defer this message until the given state exits. Transitions between
+     * the state's substates leave it where it is, instead of putting it back
+     * on the queue to be deferred again. When the state exits the messages
+     * it holds go back to the front of the queue in one step, along with
+     * those deferred by deferMessage, in the order they were deferred.
+     *
+     * @param msg   is deferred until state exits
+     * @param state an active state, usually the one processing msg
+     * @return false if the state already holds its capacity of deferred
+     * messages, see {@link #setDeferredCapacity(State, int)}, msg is not deferred
+     */
+    protected final boolean deferMessageUntilExit(Message msg, State state) {
+        return mSmHandler.deferMessageUntilExit(msg, state);
+    }
+
+    /**
+     * Limit the number of messages a state holds with
+     * {@link #deferMessageUntilExit(Message, State)}, so a flood of messages
+     * it cannot handle yet does not pile up.
+     * <p>
+     * Must be called before {@link #start()}.
+     *
+     * @param state    the state, it must have been added
+     * @param capacity maximum number of messages held, 0 for no limit
+     */
+    protected final void setDeferredCapacity(State state, int capacity) {
+        mSmHandler.setDeferredCapacity(state, capacity);
+    }
+
     /**
      * Called when message wasn't handled
      *
@@ -1122,6 +2846,61 @@ public class StateMachine {
     protected void onQuitting() {
     }
 
+    /**
+     * Write the data of the state machine that a snapshot must keep, such
+     * as counters or the fields states share. Called by {@link #snapshot()}.
+     *
+     * @param out the snapshot
+     */
+    protected void onSaveState(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Read back what {@link #onSaveState(DataOutput)} wrote, called by
+     * {@link #start(byte[])} before the first message is processed.
+     *
+     * @param in the snapshot
+     */
+    protected void onRestoreState(DataInput in) throws IOException {
+    }
+
+    /**
+     * Write the Message.obj of a deferred message to a snapshot. null and
+     * the states of this state machine are saved without it, any other
+     * object needs this to be overridden.
+     *
+     * @param obj the non null Message.obj
+     * @param out the snapshot
+     */
+    protected void onSaveMessageObj(Object obj, DataOutput out) throws IOException {
+        throw new IOException("Message.obj " + obj.getClass().getName()
+                + " needs onSaveMessageObj");
+    }
+
+    /**
+     * Read back a Message.obj written by {@link #onSaveMessageObj(Object, DataOutput)}.
+     *
+     * @param in the snapshot
+     * @return the Message.obj
+     */
+    protected Object onRestoreMessageObj(DataInput in) throws IOException {
+        throw new IOException("Message.obj needs onRestoreMessageObj");
+    }
+
+    /**
+     * Apply a message read back from the {@link TransitionJournal} to the
+     * data of the state machine, as processing it did, without its side
+     * effects: nothing may be sent, the states are not active. Called by
+     * {@link #start()} for each message handled since the journal's
+     * snapshot, in order, with {@link #getCurrentState()} the state that
+     * was current when it was handled. The transitions and deferrals it
+     * led to are replayed from the journal.
+     *
+     * @param msg the message handled
+     */
+    protected void onReplayMessage(Message msg) {
+    }
+
     /**
      * @return the name
      */
@@ -1147,6 +2926,176 @@ public class StateMachine {
         mSmHandler.mLogRecords.setLogOnlyTransitions(enable);
     }
 
+    /**
+     * Set whether the info string of a log record is rendered when the record
+     * is read instead of when the message is processed, clears all current records.
+     * <p>
+     * When enabled the what, arg1, arg2 and obj of each processed message are
+     * kept and {@link #getLogRecString(Message)} is called with a copy of them
+     * the first time {@link LogRec#getInfo()} or {@link LogRec#toString()} is
+     * called, on the reader's thread. getLogRecString must then only look at
+     * the message, and obj must not be modified after it is sent. obj is
+     * referenced by the log until its record is overwritten.
+     *
+     * @param enable {@code true} to enable, {@code false} to disable
+     */
+    public final void setLogRecInfoDeferred(boolean enable) {
+        mSmHandler.mLogRecords.setInfoDeferred(enable);
+    }
+
+    /**
+     * Also append every log record to a memory-mapped file, for a history
+     * longer than the in-memory records. Must be called before start, the
+     * file is not closed by the state machine.
+     *
+     * @param file to append to, it may only be used by one state machine
+     */
+    public final void setLogRecFile(LogRecFile file) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) return;
+        if (smh.mStateStack != null) {
+            throw new RuntimeException("setLogRecFile: state machine already started");
+        }
+        smh.mLogRecords.mFile = file;
+    }
+
+    /**
+     * Observe the messages dispatched, handled, unhandled and deferred, the
+     * states entered and exited and the transitions, without the strings
+     * of the debug log. Call before start or on the state machine's thread,
+     * from processMessage for instance.
+     *
+     * @param listener to call on the state machine's thread, null for none
+     */
+    public final void setTransitionListener(TransitionListener listener) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) return;
+        smh.mListener = listener;
+    }
+
+    /**
+     * Append every message handled, every message deferred and every
+     * transition to a journal, and rebuild the state machine from it when
+     * it is started: {@link #start()} restores the journal's last snapshot
+     * and replays the records written after it, the current states become
+     * active without their enter methods being called. The deferred
+     * messages a transition put back on the queue that were not dispatched
+     * again are queued behind the start. Message.obj is written like in a
+     * {@link #snapshot()}. Must be called before start, the journal is not
+     * closed by the state machine.
+     *
+     * @param journal to append to, it may only be used by one state machine
+     */
+    public final void setJournal(TransitionJournal journal) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) return;
+        if (smh.mStateStack != null) {
+            throw new RuntimeException("setJournal: state machine already started");
+        }
+        smh.mJournal = journal;
+    }
+
+    /**
+     * Time, in nanoseconds, each call to processMessage per message what and
+     * each state's enter and exit methods and the time spent in it, see
+     * {@link #getStateLatency(IState, int)} and {@link #getMessageLatency(int)}.
+     * Costs two System.nanoTime calls per message and one per state entered
+     * or exited. Must be called before start.
+     *
+     * @param enable {@code true} to enable, {@code false} to disable
+     */
+    public final void setLatencyTracking(boolean enable) {
+        SmHandler smh = mSmHandler;
+        if (smh == null) return;
+        if (smh.mStateStack != null) {
+            throw new RuntimeException("setLatencyTracking: state machine already started");
+        }
+        smh.mTrackLatency = enable;
+        smh.mLoop.setQueueTiming(enable);
+    }
+
+    /**
+     * Read the timings of a state without stopping the state machine, from
+     * any thread. The time spent in a state is recorded when it exits.
+     *
+     * @param kind LATENCY_DWELL, LATENCY_ENTER or LATENCY_EXIT
+     * @return a copy of the histogram, null if there is no value yet or
+     * latency tracking is not enabled
+     */
+    public final LatencyHistogram getStateLatency(IState state, int kind) {
+        if (kind < LATENCY_DWELL || kind > LATENCY_EXIT) {
+            throw new IllegalArgumentException("getStateLatency: no kind " + kind);
+        }
+        SmHandler smh = mSmHandler;
+        LatencyStats latency = (smh != null) ? smh.mLatency : null;
+        if (latency == null) return null;
+        int id = (state instanceof State) ? smh.getStateId((State) state) : SmHandler.NO_STATE;
+        return (id != SmHandler.NO_STATE) ? latency.copyState(kind, id) : null;
+    }
+
+    /**
+     * Read the time processMessage took for the messages with the given
+     * what, including the parent states that were asked, without stopping
+     * the state machine, from any thread.
+     *
+     * @return a copy of the histogram, null if there is no value yet or
+     * latency tracking is not enabled
+     */
+    public final LatencyHistogram getMessageLatency(int what) {
+        SmHandler smh = mSmHandler;
+        LatencyStats latency = (smh != null) ? smh.mLatency : null;
+        return (latency != null) ? latency.copyMessage(what) : null;
+    }
+
+    /**
+     * Read the time messages waited between being sent and being
+     * dispatched, without stopping the state machine, from any thread.
+     * Delayed messages count from when they were due. Deferred messages
+     * put back on the queue are left out, see {@link #getDeferredLatency()}.
+     *
+     * @return a copy of the histogram, null if latency tracking is not enabled
+     */
+    public final LatencyHistogram getQueueLatency() {
+        SmHandler smh = mSmHandler;
+        LatencyStats latency = (smh != null) ? smh.mLatency : null;
+        return (latency != null) ? latency.queue.copy() : null;
+    }
+
+    /**
+     * Read the time deferred messages waited between being deferred the
+     * first time and the dispatch that processed them without deferring
+     * them again, from any thread.
+     *
+     * @return a copy of the histogram, null if latency tracking is not enabled
+     */
+    public final LatencyHistogram getDeferredLatency() {
+        SmHandler smh = mSmHandler;
+        LatencyStats latency = (smh != null) ? smh.mLatency : null;
+        return (latency != null) ? latency.deferred.copy() : null;
+    }
+
+    /**
+     * Read how many times each deferred message was put back on the queue
+     * before being processed, from any thread. The values are counts.
+     *
+     * @return a copy of the histogram, null if latency tracking is not enabled
+     */
+    public final LatencyHistogram getRequeueCounts() {
+        SmHandler smh = mSmHandler;
+        LatencyStats latency = (smh != null) ? smh.mLatency : null;
+        return (latency != null) ? latency.requeues.copy() : null;
+    }
+
+    /**
+     * @return how long, in nanoseconds, the oldest pending message has
+     * waited, 0 if there is none, -1 if unknown: the loop must time stamp
+     * messages, a QueueMessageLoop does with latency tracking enabled
+     */
+    public final long getOldestPendingAge() {
+        SmHandler smh = mSmHandler;
+        return (smh != null) ? smh.mLoop.getOldestPendingAge() : -1;
+    }
+
     /**
      * @return number of log records
      */
@@ -1184,9 +3133,7 @@ public class StateMachine {
         Vector<LogRec> vlr = new Vector<LogRec>();
         SmHandler smh = mSmHandler;
         if (smh != null) {
-            for (LogRec lr : smh.mLogRecords.mLogRecVector) {
-                vlr.add(lr);
-            }
+            smh.mLogRecords.copyTo(vlr);
         }
         return vlr;
     }
@@ -1200,8 +3147,9 @@ public class StateMachine {
         // mSmHandler can be null if the state machine has quit.
         SmHandler smh = mSmHandler;
         if (smh == null) return;
-        smh.mLogRecords.add(this, smh.getCurrentMessage(), string, smh.getCurrentState(),
-                smh.mStateStack[smh.mStateStackTopIndex].state, smh.mDestState);
+        int curStateId = smh.mStateStack[smh.mStateStackTopIndex];
+        smh.mLogRecords.add(smh.getCurrentMessage(), string, curStateId, curStateId,
+                (smh.mDestState != null) ? smh.getStateId(smh.mDestState) : SmHandler.NO_STATE);
     }
 
     /**
@@ -1222,6 +3170,22 @@ public class StateMachine {
         return "";
     }
 
+    /**
+     * Render the info of a deferred log record from its stored payload.
+     */
+    String getLogRecString(int what, int arg1, int arg2, Object obj) {
+        Message msg = Message.obtain();
+        msg.what = what;
+        msg.arg1 = arg1;
+        msg.arg2 = arg2;
+        msg.obj = obj;
+        try {
+            return getLogRecString(msg);
+        } finally {
+            msg.recycle();
+        }
+    }
+
     /**
      * @return the string for msg.what
      */
@@ -1230,10 +3194,14 @@ public class StateMachine {
     }
 
     /**
-     * @return Handler, maybe null if state machine has quit.
+     * @return Handler, maybe null if state machine has quit or
+     * the message loop is not backed by a Looper.
      */
     public final Handler getHandler() {
-        return mSmHandler;
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) return null;
+        return smh.mLoop.getHandler();
     }
 
     /**
@@ -1247,7 +3215,7 @@ public class StateMachine {
      * @return A Message object from the global pool
      */
     public final Message obtainMessage() {
-        return Message.obtain(mSmHandler);
+        return Message.obtain(getHandler());
     }
 
     /**
@@ -1262,7 +3230,7 @@ public class StateMachine {
      * @return A Message object from the global pool
      */
     public final Message obtainMessage(int what) {
-        return Message.obtain(mSmHandler, what);
+        return Message.obtain(getHandler(), what);
     }
 
     /**
@@ -1279,7 +3247,7 @@ public class StateMachine {
      * @return A Message object from the global pool
      */
     public final Message obtainMessage(int what, Object obj) {
-        return Message.obtain(mSmHandler, what, obj);
+        return Message.obtain(getHandler(), what, obj);
     }
 
     /**
@@ -1297,7 +3265,7 @@ public class StateMachine {
      */
     public final Message obtainMessage(int what, int arg1) {
         // use this obtain so we don't match the obtain(h, what, Object) method
-        return Message.obtain(mSmHandler, what, arg1, 0);
+        return Message.obtain(getHandler(), what, arg1, 0);
     }
 
     /**
@@ -1315,7 +3283,7 @@ public class StateMachine {
      * @return A Message object from the global pool
      */
     public final Message obtainMessage(int what, int arg1, int arg2) {
-        return Message.obtain(mSmHandler, what, arg1, arg2);
+        return Message.obtain(getHandler(), what, arg1, arg2);
     }
 
     /**
@@ -1334,7 +3302,7 @@ public class StateMachine {
      * @return A Message object from the global pool
      */
     public final Message obtainMessage(int what, int arg1, int arg2, Object obj) {
-        return Message.obtain(mSmHandler, what, arg1, arg2, obj);
+        return Message.obtain(getHandler(), what, arg1, arg2, obj);
     }
 
     /**
@@ -1415,6 +3383,79 @@ public class StateMachine {
         smh.sendMessage(msg);
     }
 
+    /**
+     * Enqueue a message to this state machine if there is room for it, see
+     * {@link #setCapacity(int, int)}. Never waits and never throws.
+     *
+     * @return true if the message was accepted, false if the state machine
+     * is full or has quit
+     */
+    public final boolean trySendMessage(int what) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) return false;
+
+        return smh.trySendMessage(obtainMessage(what));
+    }
+
+    /**
+     * Enqueue a message to this state machine if there is room for it.
+     *
+     * @return true if the message was accepted
+     * @see #trySendMessage(int)
+     */
+    public final boolean trySendMessage(int what, Object obj) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) return false;
+
+        return smh.trySendMessage(obtainMessage(what, obj));
+    }
+
+    /**
+     * Enqueue a message to this state machine if there is room for it.
+     *
+     * @return true if the message was accepted
+     * @see #trySendMessage(int)
+     */
+    public final boolean trySendMessage(Message msg) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) return false;
+
+        return smh.trySendMessage(msg);
+    }
+
+    /**
+     * The number of messages waiting for this state machine, a gauge to
+     * shed load on before latency grows.
+     *
+     * @return the number of pending messages, -1 if the loop does not
+     * count them or the state machine has quit
+     */
+    public final int getQueueDepth() {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) return -1;
+
+        return smh.mLoop.getQueueDepth();
+    }
+
+    /**
+     * Enqueue messages to this state machine, in order. With a
+     * {@link QueueMessageLoop} they are enqueued in one step, no message
+     * sent by another thread comes between them.
+     * <p>
+     * Messages are ignored if state machine has quit.
+     */
+    public final void sendMessages(Message... msgs) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) return;
+
+        smh.sendMessages(msgs);
+    }
+
     /**
      * Enqueue a message to this state machine after a delay.
      * <p>
@@ -1598,13 +3639,20 @@ public class StateMachine {
     protected final boolean isQuit(Message msg) {
         // mSmHandler can be null if the state machine has quit.
         SmHandler smh = mSmHandler;
-        if (smh == null) return msg.what == SM_QUIT_CMD;
+        if (smh == null) return isQuitWhat(msg.what);
 
         return smh.isQuit(msg);
     }
 
+    private static boolean isQuitWhat(int what) {
+        return (what == SM_QUIT_CMD) || (what <= SM_QUIT_CONTROL_CMD && what >= SM_QUIT_BULK_CMD);
+    }
+
     /**
      * Quit the state machine after all currently queued up messages are processed.
+     * With a loop that has lanes, see {@link #setMessageLane(int, int)}, this
+     * includes the messages queued in every lane, and the messages sent to
+     * another lane after quit may still be processed before it quits.
      */
     protected final void quit() {
         // mSmHandler can be null if the state machine is already stopped.
@@ -1662,7 +3710,52 @@ public class StateMachine {
         }
         // 完成状态机建设
         /** Send the complete construction message */
-        smh.completeConstruction();
+        smh.completeConstruction(null);
+    }
+
+    /**
+     * Start the state machine in the configuration saved by
+     * {@link #snapshot()}, instead of replaying the messages that led to
+     * it. The states of the saved stack become active without their enter
+     * methods being called and no initial state is needed, their state
+     * timeouts start again. The deferred messages are restored, then
+     * {@link #onRestoreState(DataInput)} reads the state machine's data.
+     * <p>
+     * The state machine must be built the same way as the one that took the
+     * snapshot: the same states added in the same order.
+     *
+     * @param snapshot bytes returned by snapshot
+     * @throws RuntimeException if the snapshot is corrupt or of another
+     *                          state machine
+     */
+    public void start(byte snapshot[]) {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            return;
+        }
+        smh.completeConstruction(snapshot);
+    }
+
+    /**
+     * Capture the active state configuration in a compact binary snapshot:
+     * the current state, which stands for the whole state stack, the
+     * deferred messages and the data written by
+     * {@link #onSaveState(DataOutput)}. Messages still in the queue are not
+     * part of it. Restore it with {@link #start(byte[])}.
+     * <p>
+     * Must be called on the state machine's thread, for instance while
+     * processing a message, and not during a transition.
+     *
+     * @return the snapshot
+     */
+    public final byte[] snapshot() {
+        // mSmHandler can be null if the state machine has quit.
+        SmHandler smh = mSmHandler;
+        if (smh == null) {
+            throw new RuntimeException("snapshot: state machine has quit");
+        }
+        return smh.snapshot();
     }
 
     /**
@@ -1675,11 +3768,33 @@ public class StateMachine {
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println(getName() + ":");
         pw.println(" total records=" + getLogRecCount());
-        for (int i = 0; i < getLogRecSize(); i++) {
-            pw.printf(" rec[%d]: %s\n", i, getLogRec(i).toString());
+        int i = 0;
+        for (LogRec rec : copyLogRecs()) {
+            pw.printf(" rec[%d]: %s\n", i++, rec.toString());
             pw.flush();
         }
-        pw.println("curState=" + getCurrentState().getName());
+        pw.println("curState=" + mSmHandler.getCurrentStateName());
+        LatencyStats latency = mSmHandler.mLatency;
+        if (latency != null) {
+            for (int id = 0; id < mSmHandler.mStateCount; id++) {
+                for (int kind = LATENCY_DWELL; kind <= LATENCY_EXIT; kind++) {
+                    LatencyHistogram histogram = latency.copyState(kind, id);
+                    if (histogram != null) {
+                        pw.println(" " + mSmHandler.mStateNames[id] + " "
+                                + LATENCY_NAMES[kind] + ": " + histogram);
+                    }
+                }
+            }
+            pw.println(" queue: " + latency.queue.copy());
+            pw.println(" deferred: " + latency.deferred.copy());
+            LatencyHistogram requeues = latency.requeues.copy();
+            pw.println(" requeues: count=" + requeues.getCount() + " max=" + requeues.getMax());
+            for (int what : latency.getWhats()) {
+                String name = getWhatToString(what);
+                pw.println(" what=" + ((name != null) ? name : String.valueOf(what)) + ": "
+                        + latency.copyMessage(what));
+            }
+        }
     }
 
     /**
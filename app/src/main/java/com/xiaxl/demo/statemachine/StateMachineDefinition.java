@@ -0,0 +1,317 @@
+package com.xiaxl.demo.statemachine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * The structure of a state machine, built once and shared by any number of
+ * instances: the state hierarchy and depths, the initial state, the state
+ * timeouts and deferred capacities and the transition plans. A state
+ * machine constructed with a definition only holds its State objects, its
+ * active configuration and its queue, see
+ * {@link StateMachine#StateMachine(String, MessageLoop, StateMachineDefinition)}.
+ * <p>
+ * States are named here and given ids in the order they are first named,
+ * a parent named before it is added gets its id then, like
+ * {@link StateMachine#addState(State, State)}. Each instance binds its
+ * State objects to the ids in that order with
+ * {@link StateMachine#setStates(State...)}.
+ * <p>
+ * The definition is sealed, validated and its depths and plans computed,
+ * when the first state machine is constructed with it, it cannot change
+ * afterwards. The transition plans of a definition with up to 14 states
+ * are all computed then, larger ones fill a shared cache as the machines
+ * transition: a plan has only final fields so it is safe to publish
+ * without a lock, a race only computes the same plan twice.
+ * <p>
+ * 共享的状态机定义：状态层级、深度与状态切换计划只构建一次
+ */
+public final class StateMachineDefinition {
+
+    /**
+     * No state, the parent of a top level state
+     */
+    static final int NO_STATE = -1;
+
+    /**
+     * Every state machine has a halting and a quitting state, with these ids
+     */
+    static final int HALTING_STATE = 0;
+    static final int QUITTING_STATE = 1;
+    static final int FIRST_STATE = 2;
+
+    private static final int INITIAL_STATE_CAPACITY = 8;
+
+    private String mNames[] = new String[INITIAL_STATE_CAPACITY];
+    private int mParentIds[] = new int[INITIAL_STATE_CAPACITY];
+    private int mDepths[];
+    private int mStateCount;
+    private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+
+    private int mInitialStateId = NO_STATE;
+
+    /**
+     * Per state, null until one is set
+     */
+    private long mTimeoutMillis[];
+    private int mTimeoutWhats[];
+    private int mDeferredCaps[];
+
+    /**
+     * Computed by seal
+     */
+    private int mMaxDepth;
+    private StateMachine.TransitionPlan mTransitionPlans[];
+    private boolean mSealed;
+
+    public StateMachineDefinition() {
+        newStateId("HaltingState");
+        newStateId("QuittingState");
+    }
+
+    /**
+     * Add a state, see {@link StateMachine#addState(State, State)}.
+     *
+     * @param name   of the state, unique in the definition
+     * @param parent name of its parent, null for a top level state
+     */
+    public synchronized void addState(String name, String parent) {
+        checkNotSealed("addState");
+        addStateInternal(name, parent);
+    }
+
+    /**
+     * Add a top level state
+     */
+    public void addState(String name) {
+        addState(name, null);
+    }
+
+    /**
+     * @see StateMachine#setInitialState(State)
+     */
+    public synchronized void setInitialState(String name) {
+        checkNotSealed("setInitialState");
+        mInitialStateId = getStateIdOrThrow(name);
+    }
+
+    /**
+     * @see StateMachine#setStateTimeout(State, int, long)
+     */
+    public synchronized void setStateTimeout(String name, int what, long timeoutMillis) {
+        checkNotSealed("setStateTimeout");
+        int id = getStateIdOrThrow(name);
+        if (mTimeoutMillis == null || mTimeoutMillis.length <= id) {
+            int length = mNames.length;
+            mTimeoutMillis = (mTimeoutMillis == null) ? new long[length]
+                    : Arrays.copyOf(mTimeoutMillis, length);
+            mTimeoutWhats = (mTimeoutWhats == null) ? new int[length]
+                    : Arrays.copyOf(mTimeoutWhats, length);
+        }
+        mTimeoutMillis[id] = Math.max(timeoutMillis, 0);
+        mTimeoutWhats[id] = what;
+    }
+
+    /**
+     * @see StateMachine#setDeferredCapacity(State, int)
+     */
+    public synchronized void setDeferredCapacity(String name, int capacity) {
+        checkNotSealed("setDeferredCapacity");
+        int id = getStateIdOrThrow(name);
+        if (mDeferredCaps == null || mDeferredCaps.length <= id) {
+            mDeferredCaps = (mDeferredCaps == null) ? new int[mNames.length]
+                    : Arrays.copyOf(mDeferredCaps, mNames.length);
+        }
+        mDeferredCaps[id] = Math.max(capacity, 0);
+    }
+
+    /**
+     * @return the number of states added, the order {@link StateMachine#setStates(State...)}
+     * expects them in
+     */
+    public synchronized int getStateCount() {
+        return mStateCount - FIRST_STATE;
+    }
+
+    /**
+     * @return the position of a state in {@link StateMachine#setStates(State...)},
+     * -1 if it has not been added
+     */
+    public synchronized int indexOf(String name) {
+        Integer id = mIds.get(name);
+        return (id != null && id >= FIRST_STATE) ? id - FIRST_STATE : -1;
+    }
+
+    private int addStateInternal(String name, String parent) {
+        int parentId = NO_STATE;
+        if (parent != null) {
+            Integer id = mIds.get(parent);
+            // Like StateMachine.addState, a parent not added yet becomes a top level state
+            parentId = (id != null) ? id : addStateInternal(parent, null);
+        }
+        Integer existing = mIds.get(name);
+        int id = (existing != null) ? existing : newStateId(name);
+        if (id < FIRST_STATE) {
+            throw new IllegalArgumentException("addState: " + name + " is reserved");
+        }
+        if ((mParentIds[id] != NO_STATE) && (mParentIds[id] != parentId)) {
+            throw new RuntimeException("state already added");
+        }
+        mParentIds[id] = parentId;
+        return id;
+    }
+
+    private int newStateId(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("addState: name is null");
+        }
+        int id = mStateCount;
+        if (id == mNames.length) {
+            mNames = Arrays.copyOf(mNames, id * 2);
+            mParentIds = Arrays.copyOf(mParentIds, id * 2);
+        }
+        mNames[id] = name;
+        mParentIds[id] = NO_STATE;
+        mIds.put(name, id);
+        mStateCount = id + 1;
+        return id;
+    }
+
+    private int getStateIdOrThrow(String name) {
+        Integer id = mIds.get(name);
+        if (id == null || id < FIRST_STATE) {
+            throw new IllegalArgumentException("state not added: " + name);
+        }
+        return id;
+    }
+
+    private void checkNotSealed(String method) {
+        if (mSealed) {
+            throw new RuntimeException(method + ": definition already in use");
+        }
+    }
+
+    /**
+     * Validate the definition and compute the depths and the transition
+     * plans, once. Called by every state machine constructed with it, the
+     * lock publishes the arrays to the constructing thread.
+     */
+    synchronized void seal() {
+        if (mSealed) return;
+        if (mStateCount == FIRST_STATE) {
+            throw new RuntimeException("definition has no state");
+        }
+        if (mInitialStateId == NO_STATE) {
+            throw new RuntimeException("definition has no initial state");
+        }
+        int count = mStateCount;
+        mNames = Arrays.copyOf(mNames, count);
+        mParentIds = Arrays.copyOf(mParentIds, count);
+        if (mTimeoutMillis != null) {
+            mTimeoutMillis = Arrays.copyOf(mTimeoutMillis, count);
+            mTimeoutWhats = Arrays.copyOf(mTimeoutWhats, count);
+        }
+        if (mDeferredCaps != null) {
+            mDeferredCaps = Arrays.copyOf(mDeferredCaps, count);
+        }
+        mDepths = new int[count];
+        for (int id = 0; id < count; id++) {
+            int depth = 0;
+            for (int i = id; i != NO_STATE; depth++) {
+                i = mParentIds[i];
+            }
+            mDepths[id] = depth;
+            mMaxDepth = Math.max(mMaxDepth, depth);
+        }
+
+        // Same sizing and indexing as the cache of a state machine
+        int planCount = count * count;
+        int cacheSize = 1;
+        while (cacheSize < planCount && cacheSize < StateMachine.MAX_TRANSITION_PLANS) {
+            cacheSize <<= 1;
+        }
+        mTransitionPlans = new StateMachine.TransitionPlan[cacheSize];
+        if (planCount <= cacheSize) {
+            for (int source = 0; source < count; source++) {
+                for (int dest = 0; dest < count; dest++) {
+                    mTransitionPlans[source * count + dest] = buildTransitionPlan(source, dest);
+                }
+            }
+        }
+        mSealed = true;
+    }
+
+    /**
+     * The plan SmHandler builds from its active states: the state stack
+     * holds source and its ancestors, so the common state is the first
+     * ancestor of dest that is source or one of its ancestors.
+     */
+    private StateMachine.TransitionPlan buildTransitionPlan(int source, int dest) {
+        int count = 0;
+        int common = dest;
+        do {
+            count++;
+            common = mParentIds[common];
+        } while ((common != NO_STATE) && !isAncestorOrSelf(common, source));
+
+        int statesToEnter[] = new int[count];
+        int id = dest;
+        for (int i = count - 1; i >= 0; i--) {
+            statesToEnter[i] = id;
+            id = mParentIds[id];
+        }
+        return new StateMachine.TransitionPlan(source, dest, common, statesToEnter);
+    }
+
+    private boolean isAncestorOrSelf(int ancestor, int id) {
+        for (int i = id; i != NO_STATE; i = mParentIds[i]) {
+            if (i == ancestor) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The sealed arrays, shared by the state machines and never written
+     * except for the transition plan cache
+     */
+    int getCount() {
+        return mStateCount;
+    }
+
+    String[] getNames() {
+        return mNames;
+    }
+
+    int[] getParentIds() {
+        return mParentIds;
+    }
+
+    int[] getDepths() {
+        return mDepths;
+    }
+
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    int getInitialStateId() {
+        return mInitialStateId;
+    }
+
+    long[] getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    int[] getTimeoutWhats() {
+        return mTimeoutWhats;
+    }
+
+    int[] getDeferredCaps() {
+        return mDeferredCaps;
+    }
+
+    StateMachine.TransitionPlan[] getTransitionPlans() {
+        return mTransitionPlans;
+    }
+}
@@ -0,0 +1,323 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Handler;
+import android.os.Message;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Many instances of a state machine, one per entity, spread over a fixed
+ * number of single-threaded partitions.
+ * <p>
+ * The instance of a key is created by the {@link Factory} and started the
+ * first time a message is sent to the key. All the instances of a partition
+ * share its thread and its {@link QueueMessageLoop}: their messages go to
+ * one mailbox and each message is dispatched to the instance it was sent
+ * to, so an instance costs no thread, no queue and no task of its own.
+ * Messages of one key are processed in order and never concurrently, as
+ * the key always maps to the same partition.
+ * <p>
+ * An instance that quits is forgotten, the next message sent to its key
+ * creates a new one. A message sent while the instance is quitting is dropped.
+ * <pre>
+ * StateMachineGroup&lt;String&gt; sessions = new StateMachineGroup&lt;String&gt;("sessions", 4,
+ *         new StateMachineGroup.Factory&lt;String&gt;() {
+ *             public StateMachine create(String key, MessageLoop loop) {
+ *                 // SessionStateMachine(String name, MessageLoop loop) calls super(name, loop)
+ *                 return new SessionStateMachine("session-" + key, loop);
+ *             }
+ *         });
+ * sessions.sendMessage("42", CMD_LOGIN);
+ * </pre>
+ * 按实体 ID 分区的状态机组，每个分区一个线程
+ */
+public class StateMachineGroup<K> {
+
+    /**
+     * Creates the instance of a key
+     */
+    public interface Factory<K> {
+        /**
+         * Create the state machine of key, without starting it.
+         *
+         * @param key  the entity the state machine is for
+         * @param loop the loop the state machine must be constructed with
+         */
+        StateMachine create(K key, MessageLoop loop);
+    }
+
+    /**
+     * A single-threaded loop and the instances it runs
+     */
+    private static final class Partition<K> {
+        final QueueMessageLoop loop;
+        final ConcurrentHashMap<K, StateMachine> machines =
+                new ConcurrentHashMap<K, StateMachine>();
+
+        Partition(String name) {
+            loop = new QueueMessageLoop(name);
+        }
+    }
+
+    private final Partition<K> mPartitions[];
+
+    private final Factory<K> mFactory;
+
+    private volatile boolean mShutdown;
+
+    /**
+     * Create a group.
+     *
+     * @param name       prefix of the thread names, name-0, name-1 ...
+     * @param partitions number of partitions and threads
+     * @param factory    creates the instance of a key
+     */
+    @SuppressWarnings("unchecked")
+    public StateMachineGroup(String name, int partitions, Factory<K> factory) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions=" + partitions);
+        }
+        if (factory == null) {
+            throw new NullPointerException("factory");
+        }
+        mPartitions = (Partition<K>[]) new Partition<?>[partitions];
+        for (int i = 0; i < partitions; i++) {
+            mPartitions[i] = new Partition<K>(name + "-" + i);
+        }
+        mFactory = factory;
+    }
+
+    private Partition<K> partitionOf(K key) {
+        int h = key.hashCode();
+        // Spread the high bits, as HashMap does
+        h ^= (h >>> 16);
+        return mPartitions[(h & 0x7fffffff) % mPartitions.length];
+    }
+
+    /**
+     * @return the instance of key, created and started if there is none
+     * @throws IllegalStateException if the group is shut down
+     */
+    public StateMachine getOrCreate(K key) {
+        Partition<K> partition = partitionOf(key);
+        StateMachine sm = partition.machines.get(key);
+        if (sm != null) return sm;
+        synchronized (partition) {
+            sm = partition.machines.get(key);
+            if (sm != null) return sm;
+            if (mShutdown) {
+                throw new IllegalStateException("StateMachineGroup: shut down");
+            }
+            EntityLoop<K> loop = new EntityLoop<K>(partition, key);
+            sm = mFactory.create(key, loop);
+            if (sm == null) {
+                throw new NullPointerException("Factory.create returned null for " + key);
+            }
+            loop.mMachine = sm;
+            // SM_INIT_CMD is queued before any message of another sender
+            sm.start();
+            partition.machines.put(key, sm);
+            return sm;
+        }
+    }
+
+    /**
+     * @return the instance of key or null if it has not been created or has quit
+     */
+    public StateMachine get(K key) {
+        return partitionOf(key).machines.get(key);
+    }
+
+    /**
+     * Send a message to the instance of key, creating it if needed.
+     */
+    public void sendMessage(K key, int what) {
+        getOrCreate(key).sendMessage(what);
+    }
+
+    /**
+     * Send a message to the instance of key, creating it if needed.
+     */
+    public void sendMessage(K key, int what, Object obj) {
+        getOrCreate(key).sendMessage(what, obj);
+    }
+
+    /**
+     * Send a message to the instance of key, creating it if needed.
+     */
+    public void sendMessage(K key, int what, int arg1, int arg2, Object obj) {
+        getOrCreate(key).sendMessage(what, arg1, arg2, obj);
+    }
+
+    /**
+     * @return the number of live instances
+     */
+    public int size() {
+        int size = 0;
+        for (Partition<K> partition : mPartitions) {
+            size += partition.machines.size();
+        }
+        return size;
+    }
+
+    /**
+     * Stop the partition threads once the messages already being dispatched
+     * are done. The pending messages are dropped, the instances do not get
+     * to quit and no instance can be created any more.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (Partition<K> partition : mPartitions) {
+            synchronized (partition) {
+                partition.machines.clear();
+            }
+            // quit() may only be called by the partition's thread
+            partition.loop.shutdown();
+        }
+    }
+
+    /**
+     * The loop of one instance, a view of its partition's loop that tags the
+     * messages with the instance's callback.
+     */
+    private static final class EntityLoop<K> implements MessageLoop {
+        private final Partition<K> mPartition;
+        private final K mKey;
+        private MessageIndex mIndex;
+        private volatile boolean mHasQuit;
+
+        /**
+         * Set once the factory has returned, removed from the partition on quit
+         */
+        StateMachine mMachine;
+
+        EntityLoop(Partition<K> partition, K key) {
+            mPartition = partition;
+            mKey = key;
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+            if (mIndex != null) {
+                throw new IllegalStateException("MessageLoop already attached");
+            }
+            mIndex = new MessageIndex(callback);
+        }
+
+        /**
+         * @return null, the partition loop is not backed by a Looper
+         */
+        @Override
+        public Handler getHandler() {
+            return null;
+        }
+
+        @Override
+        public boolean sendMessage(Message msg) {
+            return !mHasQuit && mPartition.loop.sendMessage(msg, mIndex);
+        }
+
+        @Override
+        public boolean trySendMessage(Message msg) {
+            return !mHasQuit && mPartition.loop.trySendMessage(msg, mIndex);
+        }
+
+        @Override
+        public boolean sendMessages(Message msgs[]) {
+            return !mHasQuit && mPartition.loop.sendMessages(msgs, mIndex);
+        }
+
+        @Override
+        public boolean sendMessageDelayed(Message msg, long delayMillis) {
+            return !mHasQuit && mPartition.loop.sendMessageDelayed(msg, mIndex, delayMillis);
+        }
+
+        @Override
+        public Object sendTimer(Message msg, long delayMillis) {
+            return mHasQuit ? null : mPartition.loop.sendTimer(msg, mIndex, delayMillis);
+        }
+
+        @Override
+        public void cancelTimer(Object timer) {
+            mPartition.loop.cancelTimer(timer);
+        }
+
+        @Override
+        public boolean sendMessagesAtFrontOfQueue(Message msgs[]) {
+            return !mHasQuit && mPartition.loop.sendMessagesAtFrontOfQueue(msgs, mIndex);
+        }
+
+        @Override
+        public boolean sendReservedMessages(Message msgs[]) {
+            return !mHasQuit && mPartition.loop.sendReservedMessages(msgs, mIndex);
+        }
+
+        @Override
+        public void setCoalescing(int what, MessageCoalescer coalescer, long windowMillis) {
+            mPartition.loop.setCoalescing(what, coalescer, windowMillis, mIndex);
+        }
+
+        @Override
+        public void setCapacity(int capacity, int overflowPolicy) {
+            mPartition.loop.setCapacity(capacity, overflowPolicy, mIndex);
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return mIndex.depth();
+        }
+
+        @Override
+        public void setLane(int what, int lane) {
+            mPartition.loop.setLane(what, lane, mIndex);
+        }
+
+        @Override
+        public void setQueueTiming(boolean enable) {
+            mIndex.timed = enable;
+        }
+
+        /**
+         * The partition dispatches one entity's message at a time
+         */
+        @Override
+        public long getEnqueueTime() {
+            return mPartition.loop.getEnqueueTime();
+        }
+
+        @Override
+        public long getOldestPendingAge() {
+            return mPartition.loop.getOldestPendingAge(mIndex);
+        }
+
+        @Override
+        public boolean sendMessageAtFrontOfQueue(Message msg) {
+            return !mHasQuit && mPartition.loop.sendMessageAtFrontOfQueue(msg, mIndex);
+        }
+
+        @Override
+        public void removeMessages(int what) {
+            mPartition.loop.removeMessages(what, mIndex);
+        }
+
+        @Override
+        public boolean hasMessages(int what) {
+            return mIndex.count(what) > 0;
+        }
+
+        /**
+         * Drop the instance's pending messages, the partition carries on.
+         */
+        @Override
+        public void quit() {
+            mHasQuit = true;
+            mPartition.loop.removeAllMessages(mIndex);
+            synchronized (mPartition) {
+                if (mMachine != null) {
+                    mPartition.machines.remove(mKey, mMachine);
+                }
+            }
+        }
+    }
+}
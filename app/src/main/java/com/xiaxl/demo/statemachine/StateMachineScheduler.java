@@ -0,0 +1,106 @@
+package com.xiaxl.demo.statemachine;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs many state machines on a fixed pool of threads.
+ * <p>
+ * Each loop from {@link #newLoop()} is a {@link QueueMessageLoop} on the
+ * pool: a state machine processes its messages one at a time, in order and
+ * to completion as with its own thread, but only holds a pool thread while
+ * it has messages. State machines with pending messages wait in a single
+ * FIFO queue for a thread, one that has dispatched its quota of messages
+ * goes to the back of that queue so a busy state machine cannot starve the
+ * others.
+ * <pre>
+ * StateMachineScheduler scheduler = new StateMachineScheduler("sessions", 4);
+ * // MyStateMachine(String name, MessageLoop loop) calls super(name, loop)
+ * MyStateMachine sm = new MyStateMachine("session-1", scheduler.newLoop());
+ * </pre>
+ * 多个状态机共享一个固定大小的线程池
+ */
+public class StateMachineScheduler {
+
+    /**
+     * Default number of messages a state machine dispatches before it lets
+     * the next one run
+     */
+    public static final int DEFAULT_QUOTA = 64;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    private final int mQuota;
+
+    /**
+     * Create a scheduler with the default quota.
+     *
+     * @param name    prefix of the thread names
+     * @param threads number of threads of the pool
+     */
+    public StateMachineScheduler(String name, int threads) {
+        this(name, threads, DEFAULT_QUOTA);
+    }
+
+    /**
+     * Create a scheduler.
+     *
+     * @param name    prefix of the thread names
+     * @param threads number of threads of the pool
+     * @param quota   number of messages a state machine dispatches before
+     *                it lets the next one run
+     */
+    public StateMachineScheduler(String name, int threads, int quota) {
+        if (threads < 1 || quota < 1) {
+            throw new IllegalArgumentException("threads=" + threads + " quota=" + quota);
+        }
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory(name));
+        mTimer = new ScheduledThreadPoolExecutor(1,
+                QueueMessageLoop.newThreadFactory(name + "-timer"));
+        mTimer.setRemoveOnCancelPolicy(true);
+        mQuota = quota;
+    }
+
+    /**
+     * @return a factory for daemon threads named name-0, name-1 ...
+     */
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + mCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return a new loop for one state machine, run on this scheduler's threads
+     */
+    public QueueMessageLoop newLoop() {
+        QueueMessageLoop loop = new QueueMessageLoop(mExecutor, mTimer);
+        loop.setMaxMessagesPerRun(mQuota);
+        return loop;
+    }
+
+    /**
+     * Stop the threads once the messages already being dispatched are done.
+     * State machines still running on the scheduler can no longer be sent
+     * messages, sendMessage throws RejectedExecutionException.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        mTimer.shutdown();
+    }
+}
@@ -0,0 +1,425 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.SystemClock;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+
+/**
+ * The delayed messages of a {@link Mailbox}, owned by its consumer.
+ * <p>
+ * A hierarchical timer wheel. The inner wheel has one slot per millisecond,
+ * the outer wheel one slot per {@link #OUTER_TICK} milliseconds and covers
+ * about a minute. Adding a timer links it to the slot of its due time, a
+ * slot of the outer wheel is moved into the inner wheel as its time comes
+ * near and a slot of the inner wheel moves to the due list when it expires:
+ * every step takes constant time per timer whatever the number of timers.
+ * The rare timer beyond the outer wheel waits in a heap until it comes in
+ * range. Timers due in the same millisecond are taken in the order they
+ * were added.
+ * <p>
+ * A removed timer is a node that is no longer live, it is dropped when it
+ * is found in the way.
+ * <p>
+ * 分层时间轮，保存延迟消息
+ */
+final class TimerWheel {
+
+    /**
+     * Number of inner slots, one millisecond each
+     */
+    private static final int INNER_SLOTS = 512;
+    private static final int INNER_MASK = INNER_SLOTS - 1;
+
+    /**
+     * Milliseconds per outer slot, at most half the inner wheel so a whole
+     * outer slot fits in the inner wheel once it is near
+     */
+    static final int OUTER_TICK = 256;
+    private static final int OUTER_SHIFT = 8;
+    private static final int OUTER_SLOTS = 256;
+    private static final int OUTER_MASK = OUTER_SLOTS - 1;
+
+    /**
+     * Order of the heap: due time, then the order the timers were added
+     */
+    private static final Comparator<Mailbox.Node> DUE_ORDER = new Comparator<Mailbox.Node>() {
+        @Override
+        public int compare(Mailbox.Node a, Mailbox.Node b) {
+            if (a.when != b.when) return (a.when < b.when) ? -1 : 1;
+            return (a.seq < b.seq) ? -1 : ((a.seq == b.seq) ? 0 : 1);
+        }
+    };
+
+    /**
+     * The timers of each inner slot linked by wheelNext, newest first. An
+     * inner slot only ever holds timers due at the same uptimeMillis.
+     */
+    private final Mailbox.Node mInner[] = new Mailbox.Node[INNER_SLOTS];
+    private final long mInnerOccupied[] = new long[INNER_SLOTS / 64];
+
+    /**
+     * The timers of each outer slot, newest first, and the earliest due
+     * time added to the slot. An outer slot only ever holds the timers of
+     * one period of OUTER_TICK milliseconds.
+     */
+    private final Mailbox.Node mOuter[] = new Mailbox.Node[OUTER_SLOTS];
+    private final long mOuterWhen[] = new long[OUTER_SLOTS];
+    private final long mOuterOccupied[] = new long[OUTER_SLOTS / 64];
+
+    /**
+     * The uptimeMillis of the first inner slot not expired yet, and the
+     * last period, uptimeMillis >> OUTER_SHIFT, moved into the inner wheel.
+     * The inner wheel holds the timers due in [mTime, (mPeriod + 1) << OUTER_SHIFT),
+     * the outer wheel those of the periods up to mPeriod + OUTER_SLOTS.
+     */
+    private long mTime;
+    private long mPeriod;
+
+    /**
+     * Timers beyond the outer wheel
+     */
+    private final PriorityQueue<Mailbox.Node> mOverflow =
+            new PriorityQueue<Mailbox.Node>(11, DUE_ORDER);
+
+    /**
+     * Expired timers not taken yet, in due order
+     */
+    private Mailbox.Node mDueHead;
+    private Mailbox.Node mDueTail;
+
+    /**
+     * Number of timers held and the number in the two wheels
+     */
+    private int mSize;
+    private int mWheelSize;
+
+    TimerWheel() {
+        reset(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Move the wheels to time, they must be empty.
+     */
+    private void reset(long time) {
+        mTime = time;
+        mPeriod = (time + OUTER_TICK - 1) >> OUTER_SHIFT;
+    }
+
+    /**
+     * Add a timer, timers must be added in the order they were sent.
+     */
+    void add(Mailbox.Node node) {
+        mSize++;
+        place(node);
+    }
+
+    private void place(Mailbox.Node node) {
+        node.wheelNext = null;
+        long period = node.when >> OUTER_SHIFT;
+        if (node.when < mTime) {
+            // Collected after its slot expired
+            insertDue(node);
+        } else if (period <= mPeriod) {
+            pushInner(node);
+            mWheelSize++;
+        } else if (period - mPeriod <= OUTER_SLOTS) {
+            int slot = (int) (period & OUTER_MASK);
+            if (mOuter[slot] == null) {
+                mOuterOccupied[slot >>> 6] |= 1L << slot;
+                mOuterWhen[slot] = node.when;
+            } else if (node.when < mOuterWhen[slot]) {
+                mOuterWhen[slot] = node.when;
+            }
+            node.wheelNext = mOuter[slot];
+            mOuter[slot] = node;
+            mWheelSize++;
+        } else {
+            mOverflow.add(node);
+        }
+    }
+
+    private void pushInner(Mailbox.Node node) {
+        int slot = (int) (node.when & INNER_MASK);
+        if (mInner[slot] == null) {
+            mInnerOccupied[slot >>> 6] |= 1L << slot;
+        }
+        node.wheelNext = mInner[slot];
+        mInner[slot] = node;
+    }
+
+    private void insertDue(Mailbox.Node node) {
+        if (mDueTail == null || DUE_ORDER.compare(mDueTail, node) <= 0) {
+            appendDue(node);
+            return;
+        }
+        // Rare, the due list is short
+        if (DUE_ORDER.compare(node, mDueHead) < 0) {
+            node.wheelNext = mDueHead;
+            mDueHead = node;
+            return;
+        }
+        Mailbox.Node pred = mDueHead;
+        while (DUE_ORDER.compare(pred.wheelNext, node) <= 0) {
+            pred = pred.wheelNext;
+        }
+        node.wheelNext = pred.wheelNext;
+        pred.wheelNext = node;
+    }
+
+    private void appendDue(Mailbox.Node node) {
+        if (mDueTail == null) {
+            mDueHead = node;
+        } else {
+            mDueTail.wheelNext = node;
+        }
+        mDueTail = node;
+    }
+
+    /**
+     * @return the first index in [from, to] whose bit is set, -1 if none.
+     * Indexes wrap around the bitmap.
+     */
+    private static long nextOccupied(long occupied[], int mask, long from, long to) {
+        long index = from;
+        while (index <= to) {
+            int slot = (int) (index & mask);
+            long bits = occupied[slot >>> 6] >>> (slot & 63);
+            if (bits != 0) {
+                index += Long.numberOfTrailingZeros(bits);
+                return (index <= to) ? index : -1;
+            }
+            index += 64 - (slot & 63);
+        }
+        return -1;
+    }
+
+    /**
+     * Expire the inner slots up to now, moving the outer slots and the
+     * overflow timers that come in range into the wheels.
+     */
+    private void advance(long now) {
+        while (mTime <= now) {
+            if (mWheelSize == 0) {
+                // Nothing to expire on the way, jump
+                Mailbox.Node next = mOverflow.peek();
+                reset((next == null) ? now + 1 : Math.min(now + 1, next.when));
+                migrateOverflow();
+                if (mWheelSize == 0) return;
+                continue;
+            }
+            long last = Math.min(now, ((mPeriod + 1) << OUTER_SHIFT) - 1);
+            long tick = mTime;
+            while ((tick = nextOccupied(mInnerOccupied, INNER_MASK, tick, last)) >= 0) {
+                int slot = (int) (tick & INNER_MASK);
+                // Newest first, reverse it onto the due list
+                Mailbox.Node oldest = null;
+                for (Mailbox.Node node = mInner[slot], next; node != null; node = next) {
+                    next = node.wheelNext;
+                    node.wheelNext = oldest;
+                    oldest = node;
+                    mWheelSize--;
+                }
+                while (oldest != null) {
+                    Mailbox.Node node = oldest;
+                    oldest = node.wheelNext;
+                    node.wheelNext = null;
+                    appendDue(node);
+                }
+                mInner[slot] = null;
+                mInnerOccupied[slot >>> 6] &= ~(1L << slot);
+                tick++;
+            }
+            mTime = last + 1;
+            // Keep a whole period ahead of mTime in the inner wheel
+            long period = (mTime + OUTER_TICK - 1) >> OUTER_SHIFT;
+            while (mPeriod < period) {
+                mPeriod++;
+                cascade(mPeriod);
+            }
+            migrateOverflow();
+        }
+    }
+
+    /**
+     * Move the outer slot of period into the inner wheel, in the order its timers were added.
+     */
+    private void cascade(long period) {
+        int slot = (int) (period & OUTER_MASK);
+        Mailbox.Node oldest = null;
+        for (Mailbox.Node node = mOuter[slot], next; node != null; node = next) {
+            next = node.wheelNext;
+            node.wheelNext = oldest;
+            oldest = node;
+        }
+        mOuter[slot] = null;
+        mOuterOccupied[slot >>> 6] &= ~(1L << slot);
+        while (oldest != null) {
+            Mailbox.Node node = oldest;
+            oldest = node.wheelNext;
+            if (!node.isLive()) {
+                node.wheelNext = null;
+                mWheelSize--;
+                mSize--;
+            } else {
+                pushInner(node);
+            }
+        }
+    }
+
+    /**
+     * Move the overflow timers that are in range of the outer wheel.
+     */
+    private void migrateOverflow() {
+        Mailbox.Node node;
+        while ((node = mOverflow.peek()) != null
+                && (node.when >> OUTER_SHIFT) - mPeriod <= OUTER_SLOTS) {
+            mOverflow.poll();
+            place(node);
+        }
+    }
+
+    /**
+     * Take the next timer due at now. The node returned may have been
+     * removed since it was checked.
+     *
+     * @return the timer or null if none is due
+     */
+    Mailbox.Node pollDue(long now) {
+        advance(now);
+        Mailbox.Node node;
+        while ((node = mDueHead) != null) {
+            mDueHead = node.wheelNext;
+            if (mDueHead == null) mDueTail = null;
+            node.wheelNext = null;
+            mSize--;
+            if (node.isLive()) return node;
+        }
+        return null;
+    }
+
+    /**
+     * @return the uptimeMillis the earliest pending timer is due at,
+     * Long.MAX_VALUE if there is none. A timer removed from the outer wheel
+     * may still count, the caller then wakes up early once.
+     */
+    long nextTime() {
+        Mailbox.Node node;
+        while ((node = mDueHead) != null) {
+            if (node.isLive()) return node.when;
+            mDueHead = node.wheelNext;
+            if (mDueHead == null) mDueTail = null;
+            node.wheelNext = null;
+            mSize--;
+        }
+        if (mWheelSize > 0) {
+            long last = ((mPeriod + 1) << OUTER_SHIFT) - 1;
+            long tick = mTime;
+            while ((tick = nextOccupied(mInnerOccupied, INNER_MASK, tick, last)) >= 0) {
+                int slot = (int) (tick & INNER_MASK);
+                if (dropRemoved(slot)) return tick;
+                tick++;
+            }
+            long period = nextOccupied(mOuterOccupied, OUTER_MASK, mPeriod + 1,
+                    mPeriod + OUTER_SLOTS);
+            if (period >= 0) return mOuterWhen[(int) (period & OUTER_MASK)];
+        }
+        while ((node = mOverflow.peek()) != null && !node.isLive()) {
+            mOverflow.poll();
+            mSize--;
+        }
+        return (node != null) ? node.when : Long.MAX_VALUE;
+    }
+
+    /**
+     * Drop the removed timers of an inner slot.
+     *
+     * @return true if a timer is left in the slot
+     */
+    private boolean dropRemoved(int slot) {
+        Mailbox.Node pred = null;
+        for (Mailbox.Node node = mInner[slot]; node != null; node = node.wheelNext) {
+            if (node.isLive()) {
+                pred = node;
+                continue;
+            }
+            if (pred == null) {
+                mInner[slot] = node.wheelNext;
+            } else {
+                pred.wheelNext = node.wheelNext;
+            }
+            mWheelSize--;
+            mSize--;
+        }
+        if (mInner[slot] == null) {
+            mInnerOccupied[slot >>> 6] &= ~(1L << slot);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drop every removed timer.
+     */
+    void purge() {
+        for (int slot = 0; slot < INNER_SLOTS; slot++) {
+            if (mInner[slot] != null) dropRemoved(slot);
+        }
+        for (int slot = 0; slot < OUTER_SLOTS; slot++) {
+            Mailbox.Node pred = null;
+            long when = Long.MAX_VALUE;
+            for (Mailbox.Node node = mOuter[slot]; node != null; node = node.wheelNext) {
+                if (node.isLive()) {
+                    pred = node;
+                    when = Math.min(when, node.when);
+                    continue;
+                }
+                if (pred == null) {
+                    mOuter[slot] = node.wheelNext;
+                } else {
+                    pred.wheelNext = node.wheelNext;
+                }
+                mWheelSize--;
+                mSize--;
+            }
+            mOuterWhen[slot] = when;
+            if (mOuter[slot] == null) mOuterOccupied[slot >>> 6] &= ~(1L << slot);
+        }
+        for (Iterator<Mailbox.Node> it = mOverflow.iterator(); it.hasNext(); ) {
+            if (!it.next().isLive()) {
+                it.remove();
+                mSize--;
+            }
+        }
+    }
+
+    /**
+     * @return the number of timers held, removed ones included
+     */
+    int size() {
+        return mSize;
+    }
+
+    void clear() {
+        for (int slot = 0; slot < INNER_SLOTS; slot++) {
+            mInner[slot] = null;
+        }
+        for (int slot = 0; slot < OUTER_SLOTS; slot++) {
+            mOuter[slot] = null;
+        }
+        for (int i = 0; i < mInnerOccupied.length; i++) {
+            mInnerOccupied[i] = 0;
+        }
+        for (int i = 0; i < mOuterOccupied.length; i++) {
+            mOuterOccupied[i] = 0;
+        }
+        mOverflow.clear();
+        mDueHead = null;
+        mDueTail = null;
+        mSize = 0;
+        mWheelSize = 0;
+        reset(SystemClock.uptimeMillis());
+    }
+}
@@ -0,0 +1,522 @@
+package com.xiaxl.demo.statemachine;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * An append-only journal of a {@link StateMachine}, attached with
+ * {@link StateMachine#setJournal(TransitionJournal)}, from which the state
+ * machine is rebuilt when it is started again.
+ * <p>
+ * Every message the state machine handles, every message it defers and
+ * every transition it makes is appended as a record. Records are gathered
+ * in memory and written to the file through a FileChannel once per batch of
+ * messages, the file is then forced to the storage device either at once
+ * or, with a commit interval, by a background thread at most once per
+ * interval: a group commit, durability does not cost one fsync per message.
+ * <p>
+ * Once compactRecords records have been written the state machine takes a
+ * {@link StateMachine#snapshot()}, which is saved next to the journal, and
+ * the journal starts over. Starting the state machine restores the last
+ * snapshot and replays the records written after it: transitions set the
+ * state stack without calling enter or exit, deferred messages are deferred
+ * again and each handled message is passed to
+ * {@link StateMachine#onReplayMessage(android.os.Message)}. Recovery thus never reads
+ * more than compactRecords records.
+ * <p>
+ * The files are prefix.smj, the journal, and prefix.sms, the snapshot.
+ * <p>
+ * 状态机事件日志，重启时由快照和日志尾部恢复状态
+ */
+public class TransitionJournal implements Closeable {
+
+    private static final String TAG = "TransitionJournal";
+
+    public static final long DEFAULT_COMMIT_MILLIS = 0;
+    public static final int DEFAULT_COMPACT_RECORDS = 10000;
+
+    static final String SUFFIX = ".smj";
+    static final String SNAPSHOT_SUFFIX = ".sms";
+
+    /**
+     * Journal layout, all values big endian:
+     * <pre>
+     * int    magic
+     * int    version
+     * ...    records
+     * </pre>
+     * A record is int length of what follows up to the checksum, byte type,
+     * long sequence number, the payload and int CRC32 of type, sequence
+     * number and payload. A record cut short by a crash is dropped when the
+     * journal is opened.
+     * <p>
+     * Snapshot layout: int snapshot magic, long sequence number of the last
+     * record it covers, int length, the snapshot, int CRC32 of the snapshot.
+     */
+    static final int MAGIC = 0x534d4a31;
+    static final int SNAPSHOT_MAGIC = 0x534d4a53;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    /**
+     * Record types: a message handled, a message deferred, the state id or
+     * -1 followed by the message, and a transition, the id of the new
+     * current state
+     */
+    static final int RECORD_MESSAGE = 1;
+    static final int RECORD_DEFER = 2;
+    static final int RECORD_TRANSITION = 3;
+
+    /**
+     * Receives the records read back when the journal is opened
+     */
+    interface Replayer {
+        void replay(int type, DataInput in) throws IOException;
+    }
+
+    /**
+     * A ByteArrayOutputStream whose bytes can be patched and written
+     * without being copied
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(4096);
+        }
+
+        void putInt(int pos, int v) {
+            buf[pos] = (byte) (v >>> 24);
+            buf[pos + 1] = (byte) (v >>> 16);
+            buf[pos + 2] = (byte) (v >>> 8);
+            buf[pos + 3] = (byte) v;
+        }
+
+        void truncate(int size) {
+            count = size;
+        }
+
+        void crc(CRC32 crc, int pos, int length) {
+            crc.reset();
+            crc.update(buf, pos, length);
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(buf, 0, count);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Thread shared by all journals for the commits that are not done at once
+     */
+    private static ScheduledExecutorService sFlusher;
+
+    private final File mFile;
+    private final File mSnapshotFile;
+    private final long mCommitMillis;
+    private final int mCompactRecords;
+
+    /**
+     * null until opened and once closed or failed
+     */
+    private volatile FileChannel mChannel;
+    private boolean mOpened;
+    private boolean mClosed;
+    private volatile boolean mFailed;
+
+    /**
+     * The rest is only used by the state machine's thread once opened
+     */
+    private final RecordBuffer mBuffer = new RecordBuffer();
+    private final DataOutputStream mOut = new DataOutputStream(mBuffer);
+    private final CRC32 mCrc = new CRC32();
+    private int mRecordStart = -1;
+    private long mSeq;
+    private int mRecords;
+
+    /**
+     * true while a forced commit waits for the flusher
+     */
+    private volatile boolean mFlushScheduled;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, a commit written meanwhile schedules another flush
+            mFlushScheduled = false;
+            force();
+        }
+    };
+
+    /**
+     * Create a journal that is forced once per batch and compacted every
+     * DEFAULT_COMPACT_RECORDS records.
+     *
+     * @param dir    directory of the files, created if needed
+     * @param prefix of the file names
+     */
+    public TransitionJournal(File dir, String prefix) {
+        this(dir, prefix, DEFAULT_COMMIT_MILLIS, DEFAULT_COMPACT_RECORDS);
+    }
+
+    /**
+     * Create a journal. An existing journal with the same prefix in dir is
+     * read back when the state machine starts.
+     *
+     * @param dir            directory of the files, created if needed
+     * @param prefix         of the file names
+     * @param commitMillis   maximum time a written batch waits to be forced
+     *                       to the storage device, with the batches written
+     *                       meanwhile, 0 to force each batch as it is written
+     * @param compactRecords number of records after which the journal is
+     *                       folded into a snapshot, 0 to never compact
+     */
+    public TransitionJournal(File dir, String prefix, long commitMillis, int compactRecords) {
+        if (commitMillis < 0 || compactRecords < 0) {
+            throw new IllegalArgumentException("commitMillis=" + commitMillis
+                    + " compactRecords=" + compactRecords);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("TransitionJournal: cannot create " + dir);
+        }
+        mFile = new File(dir, prefix + SUFFIX);
+        mSnapshotFile = new File(dir, prefix + SNAPSHOT_SUFFIX);
+        mCommitMillis = commitMillis;
+        mCompactRecords = compactRecords;
+    }
+
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if (sFlusher == null) {
+            sFlusher = new ScheduledThreadPoolExecutor(1,
+                    QueueMessageLoop.newThreadFactory("StateMachine-journal"));
+        }
+        return sFlusher;
+    }
+
+    /**
+     * @return true if writing failed, nothing is appended any more
+     */
+    public boolean isFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Open the journal, called by the state machine when it is started.
+     *
+     * @return the last snapshot, null if there is none
+     */
+    synchronized byte[] open() {
+        if (mOpened) {
+            throw new RuntimeException("TransitionJournal: already attached to a state machine");
+        }
+        if (mClosed) {
+            throw new RuntimeException("TransitionJournal: closed");
+        }
+        mOpened = true;
+        byte snapshot[] = readSnapshot();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.truncate(0);
+                channel.write(header, 0);
+                channel.force(false);
+            }
+            mChannel = channel;
+        } catch (IOException e) {
+            throw new RuntimeException("TransitionJournal: cannot open " + mFile, e);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the snapshot saved by the last compaction, null if there is none
+     */
+    private byte[] readSnapshot() {
+        if (!mSnapshotFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mSnapshotFile)));
+            try {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("not a journal snapshot");
+                }
+                mSeq = in.readLong();
+                byte snapshot[] = new byte[in.readInt()];
+                in.readFully(snapshot);
+                mCrc.reset();
+                mCrc.update(snapshot, 0, snapshot.length);
+                if (in.readInt() != (int) mCrc.getValue()) {
+                    throw new IOException("checksum mismatch");
+                }
+                return snapshot;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("TransitionJournal: corrupt snapshot " + mSnapshotFile, e);
+        }
+    }
+
+    /**
+     * Pass the records written after the snapshot to replayer, in order.
+     * The journal is cut after the last complete record.
+     *
+     * @return the number of records replayed
+     */
+    int replay(Replayer replayer) {
+        FileChannel channel = mChannel;
+        long snapshotSeq = mSeq;
+        long end = HEADER_SIZE;
+        int replayed = 0;
+        try {
+            channel.position(0);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), 16 * 1024));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new RuntimeException("TransitionJournal: not a journal " + mFile);
+            }
+            long size = channel.size();
+            byte record[] = new byte[256];
+            while (end + 4 <= size) {
+                int length = in.readInt();
+                if (length < RECORD_HEADER_SIZE || end + 8 + length > size) break;
+                if (record.length < length) record = new byte[Math.max(length, record.length * 2)];
+                in.readFully(record, 0, length);
+                mCrc.reset();
+                mCrc.update(record, 0, length);
+                if (in.readInt() != (int) mCrc.getValue()) break;
+                end += 8 + length;
+
+                DataInputStream payload = new DataInputStream(
+                        new ByteArrayInputStream(record, 0, length));
+                int type = payload.readByte();
+                long seq = payload.readLong();
+                if (seq <= snapshotSeq) {
+                    // Folded into the snapshot before the journal was cut
+                    continue;
+                }
+                try {
+                    replayer.replay(type, payload);
+                } catch (IOException e) {
+                    throw new RuntimeException("start: corrupt journal record " + seq, e);
+                }
+                mSeq = seq;
+                replayed++;
+            }
+        } catch (EOFException e) {
+            // A record cut short, end is the last complete one
+        } catch (IOException e) {
+            throw new RuntimeException("TransitionJournal: cannot read " + mFile, e);
+        }
+        try {
+            if (end < channel.size()) {
+                Log.w(TAG, "dropping " + (channel.size() - end) + " bytes at the end of " + mFile);
+                channel.truncate(end);
+            }
+            channel.position(end);
+        } catch (IOException e) {
+            throw new RuntimeException("TransitionJournal: cannot open " + mFile, e);
+        }
+        mRecords = replayed;
+        return replayed;
+    }
+
+    /**
+     * Start a record, called on the state machine's thread.
+     *
+     * @return where the payload is written, null if the journal failed
+     */
+    DataOutput startRecord(int type) {
+        if (mChannel == null) {
+            return null;
+        }
+        mRecordStart = mBuffer.size();
+        try {
+            mOut.writeInt(0);
+            mOut.writeByte(type);
+            mOut.writeLong(++mSeq);
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw
+        }
+        return mOut;
+    }
+
+    /**
+     * Complete the record started last.
+     */
+    void endRecord() {
+        int start = mRecordStart;
+        int length = mBuffer.size() - start - 4;
+        mBuffer.putInt(start, length);
+        mBuffer.crc(mCrc, start + 4, length);
+        try {
+            mOut.writeInt((int) mCrc.getValue());
+        } catch (IOException e) {
+            // A ByteArrayOutputStream does not throw
+        }
+        mRecordStart = -1;
+        mRecords++;
+    }
+
+    /**
+     * Drop the record started last, its payload could not be written.
+     * The journal stops: replaying it would miss the record.
+     */
+    void abortRecord(IOException e) {
+        mBuffer.truncate(mRecordStart);
+        mRecordStart = -1;
+        mSeq--;
+        fail(e);
+    }
+
+    /**
+     * Write the records of a batch and force them to the storage device
+     * now or within the commit interval.
+     */
+    void commit() {
+        FileChannel channel = mChannel;
+        if (channel == null || mBuffer.size() == 0) {
+            return;
+        }
+        try {
+            mBuffer.writeTo(channel);
+            mBuffer.reset();
+            if (mCommitMillis == 0) {
+                channel.force(false);
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                getFlusher().schedule(mFlush, mCommitMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return true if the state machine should hand a snapshot to compact
+     */
+    boolean needsCompaction() {
+        return mCompactRecords > 0 && mRecords >= mCompactRecords && mChannel != null;
+    }
+
+    /**
+     * Replace the saved snapshot with one covering every record appended
+     * so far and start the journal over. The snapshot is written to a new
+     * file renamed over the old one, the records it covers are skipped
+     * should a crash leave them in the journal.
+     */
+    void compact(byte snapshot[]) {
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            return;
+        }
+        // The records not written yet are part of the snapshot
+        mBuffer.reset();
+        File tmp = new File(mSnapshotFile.getPath() + ".tmp");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                mCrc.reset();
+                mCrc.update(snapshot, 0, snapshot.length);
+                ByteBuffer bytes = ByteBuffer.allocate(20 + snapshot.length);
+                bytes.putInt(SNAPSHOT_MAGIC).putLong(mSeq).putInt(snapshot.length);
+                bytes.put(snapshot).putInt((int) mCrc.getValue()).flip();
+                raf.setLength(0);
+                FileChannel out = raf.getChannel();
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                out.force(true);
+            } finally {
+                raf.close();
+            }
+            if (!tmp.renameTo(mSnapshotFile)) {
+                throw new IOException("cannot rename " + tmp);
+            }
+            channel.truncate(HEADER_SIZE);
+            channel.position(HEADER_SIZE);
+            channel.force(false);
+            mRecords = 0;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void force() {
+        FileChannel channel = mChannel;
+        if (channel == null) return;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        Log.e(TAG, "stop journaling to " + mFile, e);
+        mFailed = true;
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        FileChannel channel = mChannel;
+        mChannel = null;
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "cannot close " + mFile, e);
+        }
+    }
+
+    /**
+     * Write and force the records not committed yet and close the files.
+     * Call once the state machine has quit, the journal cannot be reopened.
+     */
+    @Override
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        FileChannel channel = mChannel;
+        if (channel != null) {
+            try {
+                if (mBuffer.size() > 0) {
+                    mBuffer.writeTo(channel);
+                    mBuffer.reset();
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                Log.e(TAG, "cannot write " + mFile, e);
+            }
+        }
+        closeChannel();
+    }
+}
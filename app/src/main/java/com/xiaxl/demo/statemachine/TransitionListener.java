@@ -0,0 +1,105 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+
+/**
+ * Observes a state machine, set with
+ * {@link StateMachine#setTransitionListener(TransitionListener)}. Unlike
+ * the debug log no string is built: the callbacks get the message and the
+ * states themselves, so metrics, tracing or audit sinks can attach without
+ * allocating on the hot path. A machine without a listener pays a null
+ * check per hook.
+ * <p>
+ * All callbacks are called on the state machine's thread, in order, and
+ * must not block it. The message is the one being processed, it is
+ * recycled afterwards and must not be kept.
+ * <p>
+ * 状态机的观察接口，回调在状态机线程中执行
+ */
+public interface TransitionListener {
+
+    /**
+     * A message is about to be processed.
+     *
+     * @param current the innermost active state
+     */
+    void onDispatch(StateMachine sm, Message msg, IState current);
+
+    /**
+     * A message was processed.
+     *
+     * @param state the state whose processMessage or MessageHandler
+     *              returned HANDLED
+     */
+    void onHandled(StateMachine sm, Message msg, IState state);
+
+    /**
+     * No active state handled a message, called after
+     * StateMachine.unhandledMessage.
+     */
+    void onUnhandled(StateMachine sm, Message msg);
+
+    /**
+     * A message was deferred.
+     *
+     * @param untilExitOf the state given to deferMessageUntilExit, null
+     *                    for deferMessage
+     */
+    void onDeferred(StateMachine sm, Message msg, IState untilExitOf);
+
+    /**
+     * A state's exit method returned.
+     */
+    void onExit(StateMachine sm, IState state);
+
+    /**
+     * A state's enter method returned.
+     */
+    void onEnter(StateMachine sm, IState state);
+
+    /**
+     * A transition completed: from was exited, to and its ancestors up to
+     * the common one entered. A transition requested by an enter or exit
+     * method is reported as a transition of its own.
+     *
+     * @param from the innermost active state before the transition
+     * @param to   the destination state
+     */
+    void onTransition(StateMachine sm, IState from, IState to);
+
+    /**
+     * A listener that ignores everything, to extend when only a few
+     * callbacks are of interest.
+     */
+    class Adapter implements TransitionListener {
+
+        @Override
+        public void onDispatch(StateMachine sm, Message msg, IState current) {
+        }
+
+        @Override
+        public void onHandled(StateMachine sm, Message msg, IState state) {
+        }
+
+        @Override
+        public void onUnhandled(StateMachine sm, Message msg) {
+        }
+
+        @Override
+        public void onDeferred(StateMachine sm, Message msg, IState untilExitOf) {
+        }
+
+        @Override
+        public void onExit(StateMachine sm, IState state) {
+        }
+
+        @Override
+        public void onEnter(StateMachine sm, IState state) {
+        }
+
+        @Override
+        public void onTransition(StateMachine sm, IState from, IState to) {
+        }
+    }
+}
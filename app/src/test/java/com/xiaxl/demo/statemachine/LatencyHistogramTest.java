@@ -0,0 +1,110 @@
+package com.xiaxl.demo.statemachine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The bucket bounds of a {@link LatencyHistogram} and what it reports of
+ * the values recorded.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveABucketEach() {
+        for (int value = 0; value < 2 * LatencyHistogram.SUB_BUCKETS; value++) {
+            assertEquals(value, LatencyHistogram.bucketOf(value));
+            assertEquals(value, LatencyHistogram.getBucketLowerBound(value));
+            assertEquals(value, LatencyHistogram.getBucketUpperBound(value));
+        }
+    }
+
+    @Test
+    public void bucketsCoverEveryValueWithoutGaps() {
+        assertEquals(0, LatencyHistogram.getBucketLowerBound(0));
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lower = LatencyHistogram.getBucketLowerBound(bucket);
+            long upper = LatencyHistogram.getBucketUpperBound(bucket);
+            assertTrue("bucket " + bucket, lower <= upper);
+            assertEquals("lower bound of " + bucket, bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals("upper bound of " + bucket, bucket, LatencyHistogram.bucketOf(upper));
+            if (bucket + 1 < LatencyHistogram.BUCKETS) {
+                assertEquals("after " + bucket, upper + 1,
+                        LatencyHistogram.getBucketLowerBound(bucket + 1));
+            }
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.getBucketUpperBound(LatencyHistogram.BUCKETS - 1));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketWidthIsAnEighthOfItsValue() {
+        for (int bucket = 2 * LatencyHistogram.SUB_BUCKETS; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lower = LatencyHistogram.getBucketLowerBound(bucket);
+            long width = LatencyHistogram.getBucketUpperBound(bucket) - lower + 1;
+            assertTrue("bucket " + bucket, width <= lower / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void powersOfTwoStartABucket() {
+        for (int exp = 4; exp < 63; exp++) {
+            long value = 1L << exp;
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertEquals(value, LatencyHistogram.getBucketLowerBound(bucket));
+            assertEquals(bucket - 1, LatencyHistogram.bucketOf(value - 1));
+        }
+    }
+
+    @Test
+    public void recordKeepsCountSumAndExactMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        histogram.record(100);
+        histogram.record(200);
+        histogram.record(-5);
+        assertEquals(3, histogram.getCount());
+        assertEquals(1, histogram.getBucketCount(0));
+        assertEquals(1, histogram.getBucketCount(LatencyHistogram.bucketOf(100)));
+        assertEquals(100, histogram.getMean(), 0.001);
+        assertEquals(200, histogram.getMax());
+    }
+
+    @Test
+    public void percentileIsTheUpperBoundOfItsBucketAtMostTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(5000);
+        int bucket = LatencyHistogram.bucketOf(1000);
+        assertEquals(LatencyHistogram.getBucketUpperBound(bucket), histogram.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.getBucketUpperBound(bucket), histogram.getValueAtPercentile(99));
+        // The bucket of 5000 reaches past it, the max is exact
+        assertEquals(5000, histogram.getValueAtPercentile(100));
+        assertEquals(LatencyHistogram.getBucketUpperBound(bucket), histogram.getValueAtPercentile(0));
+        try {
+            histogram.getValueAtPercentile(101);
+            fail("percentile 101");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void copyDoesNotChange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        LatencyHistogram copy = histogram.copy();
+        histogram.record(20000);
+        assertEquals(1, copy.getCount());
+        assertEquals(10, copy.getMax());
+        assertEquals(10, copy.getMean(), 0);
+        assertEquals(1, copy.getBucketCount(10));
+        assertEquals(2, histogram.getCount());
+    }
+}
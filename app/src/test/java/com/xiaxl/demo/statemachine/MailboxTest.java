@@ -0,0 +1,217 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The order messages leave a {@link Mailbox} in, and the counts and
+ * removals of its {@link MessageIndex}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MailboxTest {
+
+    private Mailbox mMailbox;
+    private MessageIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mMailbox = new Mailbox();
+        mIndex = new MessageIndex(null);
+    }
+
+    private static Message message(int what) {
+        Message msg = Message.obtain();
+        msg.what = what;
+        return msg;
+    }
+
+    private Mailbox.Node add(int what) {
+        return mMailbox.add(message(what), mIndex.counter(what));
+    }
+
+    private int pollWhat() {
+        Message msg = mMailbox.poll();
+        return (msg != null) ? msg.what : -1;
+    }
+
+    @Test
+    public void dueTimerWaitsForMessagesSentBeforeIt() {
+        add(1);
+        add(2);
+        add(3);
+        add(4);
+        mMailbox.addDelayed(message(6), mIndex, SystemClock.uptimeMillis() + 5);
+        assertEquals(1, pollWhat());
+        // Processing 1 takes past the due time of 6
+        SystemClock.sleep(10);
+        assertEquals(2, pollWhat());
+        add(7);
+        assertEquals(3, pollWhat());
+        assertEquals(4, pollWhat());
+        assertEquals(6, pollWhat());
+        assertEquals(7, pollWhat());
+        assertNull(mMailbox.poll());
+    }
+
+    @Test
+    public void dueTimerGoesBeforeMessagesSentAfterItsDueTime() {
+        mMailbox.addDelayed(message(6), mIndex, SystemClock.uptimeMillis() + 2);
+        SystemClock.sleep(5);
+        // Sent once 6 is due, before the consumer saw it come due
+        add(7);
+        add(8);
+        assertEquals(6, pollWhat());
+        assertEquals(7, pollWhat());
+        assertEquals(8, pollWhat());
+        assertNull(mMailbox.poll());
+    }
+
+    @Test
+    public void messagesSentBeforeTheDueTimeGoFirst() {
+        mMailbox.addDelayed(message(6), mIndex, SystemClock.uptimeMillis() + 5);
+        add(1);
+        SystemClock.sleep(10);
+        add(7);
+        assertEquals(1, pollWhat());
+        assertEquals(6, pollWhat());
+        assertEquals(7, pollWhat());
+        assertNull(mMailbox.poll());
+    }
+
+    @Test
+    public void dueTimerOfAnotherLaneKeepsItsLane() {
+        mIndex.setLane(6, MessageLoop.LANE_BULK);
+        mMailbox.addDelayed(message(6), mIndex, SystemClock.uptimeMillis() + 2);
+        SystemClock.sleep(5);
+        add(7);
+        // The normal lane is drained first, due order holds within a lane
+        assertEquals(7, pollWhat());
+        assertEquals(6, pollWhat());
+        assertNull(mMailbox.poll());
+    }
+
+    @Test
+    public void dueTimersKeepTheirOrder() {
+        long now = SystemClock.uptimeMillis();
+        mMailbox.addDelayed(message(2), mIndex, now + 2);
+        mMailbox.addDelayed(message(1), mIndex, now + 1);
+        mMailbox.addDelayed(message(3), mIndex, now + 2);
+        assertNull(mMailbox.poll());
+        SystemClock.sleep(5);
+        assertEquals(1, pollWhat());
+        assertEquals(2, pollWhat());
+        assertEquals(3, pollWhat());
+        assertNull(mMailbox.poll());
+    }
+
+    @Test
+    public void frontMessagesStillComeFirst() {
+        add(1);
+        mMailbox.addDelayed(message(6), mIndex, SystemClock.uptimeMillis());
+        mMailbox.addAtFront(message(0), mIndex);
+        SystemClock.sleep(1);
+        assertEquals(0, pollWhat());
+        assertEquals(1, pollWhat());
+        assertEquals(6, pollWhat());
+    }
+
+    @Test
+    public void cancelledDueTimerIsNotDispatched() {
+        add(1);
+        Mailbox.Node timer = mMailbox.addDelayed(message(6), mIndex, SystemClock.uptimeMillis());
+        SystemClock.sleep(1);
+        // 6 came due, it waits behind 1 sent before it
+        assertEquals(1, pollWhat());
+        mMailbox.cancel(timer);
+        add(2);
+        assertEquals(2, pollWhat());
+        assertNull(mMailbox.poll());
+        assertEquals(0, mIndex.count(6));
+    }
+
+    @Test
+    public void countIncludesFrontAndDelayedMessages() {
+        add(1);
+        add(1);
+        mMailbox.addAtFront(message(1), mIndex);
+        mMailbox.addDelayed(message(1), mIndex, SystemClock.uptimeMillis() + 1000);
+        add(2);
+        assertEquals(4, mIndex.count(1));
+        assertEquals(1, mIndex.count(2));
+        assertEquals(0, mIndex.count(3));
+        assertEquals(1, pollWhat());
+        assertEquals(3, mIndex.count(1));
+    }
+
+    @Test
+    public void removeDropsThePendingMessagesOfItsWhat() {
+        add(1);
+        add(2);
+        mMailbox.addAtFront(message(1), mIndex);
+        mMailbox.addDelayed(message(1), mIndex, SystemClock.uptimeMillis());
+        add(1);
+        add(3);
+        mMailbox.remove(1, mIndex);
+        assertEquals(0, mIndex.count(1));
+        SystemClock.sleep(1);
+        assertEquals(2, pollWhat());
+        assertEquals(3, pollWhat());
+        assertNull(mMailbox.poll());
+    }
+
+    @Test
+    public void messageSentAfterRemoveIsKept() {
+        add(1).msg.arg1 = 10;
+        add(1).msg.arg1 = 11;
+        mMailbox.remove(1, mIndex);
+        // A new generation of the what, the removed nodes are still linked
+        add(1).msg.arg1 = 12;
+        assertEquals(1, mIndex.count(1));
+        Message msg = mMailbox.poll();
+        assertEquals(12, msg.arg1);
+        assertNull(mMailbox.poll());
+        assertEquals(0, mIndex.count(1));
+    }
+
+    @Test
+    public void removeAllDropsEveryWhatOfItsIndexOnly() {
+        MessageIndex other = new MessageIndex(null);
+        add(1);
+        mMailbox.add(message(7), other.counter(7));
+        add(2);
+        mMailbox.addAtFront(message(3), mIndex);
+        mMailbox.addDelayed(message(4), mIndex, SystemClock.uptimeMillis());
+        mMailbox.removeAll(mIndex);
+        assertEquals(0, mIndex.count(1));
+        assertEquals(0, mIndex.count(2));
+        assertEquals(0, mIndex.count(3));
+        assertEquals(0, mIndex.count(4));
+        assertTrue(other.count(7) > 0);
+        add(5);
+        SystemClock.sleep(1);
+        assertEquals(7, pollWhat());
+        assertEquals(5, pollWhat());
+        assertNull(mMailbox.poll());
+    }
+
+    @Test
+    public void cancelOfRemovedTimerKeepsNewOnesCounted() {
+        Mailbox.Node timer = mMailbox.addDelayed(message(6), mIndex, SystemClock.uptimeMillis() + 1000);
+        mMailbox.remove(6, mIndex);
+        mMailbox.cancel(timer);
+        mMailbox.addDelayed(message(6), mIndex, SystemClock.uptimeMillis() + 1000);
+        // The cancel of the removed timer does not uncount the new one
+        assertEquals(1, mIndex.count(6));
+    }
+}
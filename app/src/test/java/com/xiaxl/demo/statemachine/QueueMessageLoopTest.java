@@ -0,0 +1,186 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The overflow policies of a {@link QueueMessageLoop} with a capacity.
+ * <p>
+ * Message 0 holds the loop's thread until the gate opens, so the messages
+ * sent meanwhile stay pending.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class QueueMessageLoopTest {
+
+    private static final int HOLD = 0;
+    private static final int SEND_THREE = 9;
+
+    private QueueMessageLoop mLoop;
+    private final BlockingQueue<Message> mHandled = new LinkedBlockingQueue<Message>();
+    private final CountDownLatch mHolding = new CountDownLatch(1);
+    private final CountDownLatch mGate = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        mLoop = new QueueMessageLoop("QueueMessageLoopTest");
+        mLoop.setCallback(new MessageLoop.Callback() {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == HOLD) {
+                    mHolding.countDown();
+                    try {
+                        mGate.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return;
+                }
+                if (msg.what == SEND_THREE) {
+                    for (int i = 1; i <= 3; i++) {
+                        mLoop.sendMessage(message(10 + i, 0));
+                    }
+                }
+                Message copy = Message.obtain();
+                copy.copyFrom(msg);
+                mHandled.add(copy);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mGate.countDown();
+        mLoop.shutdown();
+    }
+
+    private static Message message(int what, int arg1) {
+        Message msg = Message.obtain();
+        msg.what = what;
+        msg.arg1 = arg1;
+        return msg;
+    }
+
+    /**
+     * Hold the loop's thread, then fill the capacity of 2 with 1 and 2
+     */
+    private void fill(int overflowPolicy) throws InterruptedException {
+        mLoop.setCapacity(2, overflowPolicy);
+        mLoop.sendMessage(message(HOLD, 0));
+        assertTrue(mHolding.await(5, TimeUnit.SECONDS));
+        assertTrue(mLoop.sendMessage(message(1, 0)));
+        assertTrue(mLoop.sendMessage(message(2, 0)));
+        assertEquals(2, mLoop.getQueueDepth());
+    }
+
+    private int takeWhat() throws InterruptedException {
+        Message msg = mHandled.poll(5, TimeUnit.SECONDS);
+        return (msg != null) ? msg.what : -1;
+    }
+
+    private void assertNothingElseHandled() throws InterruptedException {
+        assertNull(mHandled.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception {
+        fill(MessageLoop.OVERFLOW_BLOCK);
+        assertFalse(mLoop.trySendMessage(message(3, 0)));
+        final CountDownLatch sent = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mLoop.sendMessage(message(3, 0));
+                sent.countDown();
+            }
+        }).start();
+        assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+        mGate.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(1, takeWhat());
+        assertEquals(2, takeWhat());
+        assertEquals(3, takeWhat());
+        assertNothingElseHandled();
+    }
+
+    @Test
+    public void failThrows() throws Exception {
+        fill(MessageLoop.OVERFLOW_FAIL);
+        try {
+            mLoop.sendMessage(message(3, 0));
+            fail("sendMessage beyond the capacity");
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse(mLoop.trySendMessage(message(3, 0)));
+        mGate.countDown();
+        assertEquals(1, takeWhat());
+        assertEquals(2, takeWhat());
+        assertNothingElseHandled();
+    }
+
+    @Test
+    public void dropOldestMakesRoom() throws Exception {
+        fill(MessageLoop.OVERFLOW_DROP_OLDEST);
+        assertTrue(mLoop.sendMessage(message(3, 0)));
+        assertEquals(2, mLoop.getQueueDepth());
+        mGate.countDown();
+        assertEquals(2, takeWhat());
+        assertEquals(3, takeWhat());
+        assertNothingElseHandled();
+    }
+
+    @Test
+    public void dropNewestDropsTheMessage() throws Exception {
+        fill(MessageLoop.OVERFLOW_DROP_NEWEST);
+        assertFalse(mLoop.sendMessage(message(3, 0)));
+        assertEquals(2, mLoop.getQueueDepth());
+        mGate.countDown();
+        assertEquals(1, takeWhat());
+        assertEquals(2, takeWhat());
+        assertNothingElseHandled();
+    }
+
+    @Test
+    public void coalesceReplacesThePendingMessageOfItsWhat() throws Exception {
+        fill(MessageLoop.OVERFLOW_COALESCE);
+        assertTrue(mLoop.sendMessage(message(1, 5)));
+        // No pending message of 3 to merge into
+        assertFalse(mLoop.sendMessage(message(3, 0)));
+        assertEquals(2, mLoop.getQueueDepth());
+        mGate.countDown();
+        Message msg = mHandled.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, msg.what);
+        assertEquals(5, msg.arg1);
+        assertEquals(2, takeWhat());
+        assertNothingElseHandled();
+    }
+
+    @Test
+    public void loopThreadIsNeverRefused() throws Exception {
+        mLoop.setCapacity(1, MessageLoop.OVERFLOW_FAIL);
+        // Sends three messages to itself beyond the capacity of one
+        mLoop.sendMessage(message(SEND_THREE, 0));
+        assertEquals(SEND_THREE, takeWhat());
+        assertEquals(11, takeWhat());
+        assertEquals(12, takeWhat());
+        assertEquals(13, takeWhat());
+        assertNothingElseHandled();
+    }
+}
@@ -0,0 +1,211 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state machine of the snapshot and journal tests, top with the
+ * children idle, the initial state, and busy, whose child is working.
+ * Its data is a total, saved in snapshots and rebuilt from the journal.
+ * What it does is recorded as events the tests take in order.
+ */
+class RecordingMachine extends StateMachine {
+
+    /**
+     * top adds arg1 to the total
+     */
+    static final int ADD = 1;
+    /**
+     * idle goes to working
+     */
+    static final int GO = 2;
+    /**
+     * working goes back to idle
+     */
+    static final int STOP = 3;
+    /**
+     * idle defers it, working records "work obj"
+     */
+    static final int WORK = 4;
+    /**
+     * working holds it until it exits, top records "later arg1"
+     */
+    static final int LATER = 5;
+    /**
+     * top takes a snapshot
+     */
+    static final int SNAPSHOT = 6;
+    /**
+     * top records "current total"
+     */
+    static final int MARK = 7;
+
+    final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+    final BlockingQueue<byte[]> mSnapshots = new LinkedBlockingQueue<byte[]>();
+
+    /**
+     * When set, working takes a permit before recording each WORK
+     */
+    volatile Semaphore mWorkGate;
+
+    int mTotal;
+
+    private class Recording extends State {
+        private final String mName;
+
+        Recording(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void enter() {
+            mEvents.add("enter " + mName);
+        }
+
+        @Override
+        public void exit() {
+            mEvents.add("exit " + mName);
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private final State mTop = new Recording("top") {
+        @Override
+        public boolean processMessage(Message msg) {
+            switch (msg.what) {
+                case ADD:
+                    mTotal += msg.arg1;
+                    return HANDLED;
+                case LATER:
+                    mEvents.add("later " + msg.arg1);
+                    return HANDLED;
+                case SNAPSHOT:
+                    mSnapshots.add(snapshot());
+                    return HANDLED;
+                case MARK:
+                    mEvents.add(getCurrentState().getName() + " " + mTotal);
+                    return HANDLED;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
+    };
+
+    final State mIdle = new Recording("idle") {
+        @Override
+        public boolean processMessage(Message msg) {
+            switch (msg.what) {
+                case GO:
+                    transitionTo(mWorking);
+                    return HANDLED;
+                case WORK:
+                    deferMessage(msg);
+                    return HANDLED;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
+    };
+
+    private final State mBusy = new Recording("busy");
+
+    final State mWorking = new Recording("working") {
+        @Override
+        public boolean processMessage(Message msg) {
+            switch (msg.what) {
+                case STOP:
+                    transitionTo(mIdle);
+                    return HANDLED;
+                case WORK:
+                    Semaphore gate = mWorkGate;
+                    if (gate != null) gate.acquireUninterruptibly();
+                    mEvents.add("work " + msg.obj);
+                    return HANDLED;
+                case LATER:
+                    deferMessageUntilExit(msg, this);
+                    return HANDLED;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
+    };
+
+    RecordingMachine(String name) {
+        super(name, new QueueMessageLoop(name));
+        addState(mTop);
+        addState(mIdle, mTop);
+        addState(mBusy, mTop);
+        addState(mWorking, mBusy);
+        setInitialState(mIdle);
+    }
+
+    @Override
+    protected void onSaveState(DataOutput out) throws IOException {
+        out.writeInt(mTotal);
+    }
+
+    @Override
+    protected void onRestoreState(DataInput in) throws IOException {
+        mTotal = in.readInt();
+    }
+
+    @Override
+    protected void onSaveMessageObj(Object obj, DataOutput out) throws IOException {
+        out.writeUTF((String) obj);
+    }
+
+    @Override
+    protected Object onRestoreMessageObj(DataInput in) throws IOException {
+        return in.readUTF();
+    }
+
+    @Override
+    protected void onReplayMessage(Message msg) {
+        if (msg.what == ADD) mTotal += msg.arg1;
+    }
+
+    @Override
+    protected void onQuitting() {
+        mEvents.add("quit");
+    }
+
+    /**
+     * @return the next event, null if there is none within 5 seconds
+     */
+    String takeEvent() throws InterruptedException {
+        return mEvents.poll(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Record the current state and the total once the messages sent before
+     * are processed.
+     *
+     * @return the next event, that record if the events before were taken
+     */
+    String mark() throws InterruptedException {
+        sendMessage(MARK);
+        return takeEvent();
+    }
+
+    /**
+     * Quit now and wait until the state machine has quit
+     */
+    void quitAndWait() throws InterruptedException {
+        quitNow();
+        String event;
+        while ((event = takeEvent()) != null && !event.equals("quit")) {
+            // Skip the events before
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Messages deferred with deferMessageUntilExit and deferMessage, and put
+ * back at the front of the queue in one step when their state exits or at
+ * the next transition.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineDeferTest {
+
+    /**
+     * outer holds it until it exits and records "hold arg1", other records "run arg1"
+     */
+    private static final int HOLD = 1;
+    /**
+     * a defers it until the next transition, other records "run arg1"
+     */
+    private static final int LATE = 2;
+    private static final int TO_A = 3;
+    private static final int TO_B = 4;
+    private static final int TO_OUTER = 5;
+    private static final int TO_OTHER = 6;
+    /**
+     * top records "mark" and the current state
+     */
+    private static final int MARK = 7;
+
+    /**
+     * top > outer > a, the initial state, and b, top > other
+     */
+    private static class DeferMachine extends StateMachine {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+
+        private class Named extends State {
+            private final String mName;
+
+            Named(String name) {
+                mName = name;
+            }
+
+            @Override
+            public String getName() {
+                return mName;
+            }
+        }
+
+        private final State mTop = new Named("top") {
+            @Override
+            public boolean processMessage(Message msg) {
+                switch (msg.what) {
+                    case MARK:
+                        mEvents.add("mark " + getCurrentState().getName());
+                        return HANDLED;
+                    case TO_A:
+                        transitionTo(mA);
+                        return HANDLED;
+                    case TO_B:
+                        transitionTo(mB);
+                        return HANDLED;
+                    case TO_OUTER:
+                        transitionTo(mOuter);
+                        return HANDLED;
+                    case TO_OTHER:
+                        transitionTo(mOther);
+                        return HANDLED;
+                    default:
+                        return NOT_HANDLED;
+                }
+            }
+        };
+
+        private final State mOuter = new Named("outer") {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what != HOLD) return NOT_HANDLED;
+                if (deferMessageUntilExit(msg, this)) {
+                    mEvents.add("hold " + msg.arg1);
+                } else {
+                    mEvents.add("full " + msg.arg1);
+                }
+                return HANDLED;
+            }
+        };
+
+        private final State mA = new Named("a") {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what != LATE) return NOT_HANDLED;
+                deferMessage(msg);
+                return HANDLED;
+            }
+        };
+
+        private final State mB = new Named("b");
+
+        private final State mOther = new Named("other") {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what != HOLD && msg.what != LATE) return NOT_HANDLED;
+                mEvents.add("run " + msg.arg1);
+                return HANDLED;
+            }
+        };
+
+        DeferMachine(int outerCapacity) {
+            super("DeferMachine", new QueueMessageLoop("DeferMachine"));
+            addState(mTop);
+            addState(mOuter, mTop);
+            addState(mA, mOuter);
+            addState(mB, mOuter);
+            addState(mOther, mTop);
+            setInitialState(mA);
+            if (outerCapacity > 0) setDeferredCapacity(mOuter, outerCapacity);
+        }
+    }
+
+    private DeferMachine mMachine;
+
+    private DeferMachine newMachine(int outerCapacity) {
+        mMachine = new DeferMachine(outerCapacity);
+        mMachine.start();
+        return mMachine;
+    }
+
+    @After
+    public void tearDown() {
+        if (mMachine != null) mMachine.quitNow();
+    }
+
+    private void assertEvents(String... events) throws InterruptedException {
+        for (String event : events) {
+            assertEquals(event, mMachine.mEvents.poll(5, TimeUnit.SECONDS));
+        }
+        assertNull(mMachine.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void heldMessagesStayThroughTransitionsBelowTheirState() throws Exception {
+        DeferMachine sm = newMachine(0);
+        sm.sendMessage(HOLD, 1);
+        sm.sendMessage(HOLD, 2);
+        sm.sendMessage(TO_B);
+        sm.sendMessage(TO_A);
+        sm.sendMessage(TO_B);
+        sm.sendMessage(MARK);
+        // Held once each, not put back by the transitions between a and b
+        assertEvents("hold 1", "hold 2", "mark b");
+    }
+
+    @Test
+    public void heldMessagesGoBackAheadOfTheQueueWhenTheirStateExits() throws Exception {
+        DeferMachine sm = newMachine(0);
+        sm.sendMessage(HOLD, 1);
+        sm.sendMessage(HOLD, 2);
+        sm.sendMessage(TO_OTHER);
+        sm.sendMessage(HOLD, 3);
+        assertEvents("hold 1", "hold 2", "run 1", "run 2", "run 3");
+    }
+
+    @Test
+    public void spliceMergesBothKindsInTheOrderTheyWereDeferred() throws Exception {
+        DeferMachine sm = newMachine(0);
+        sm.sendMessage(HOLD, 1);
+        sm.sendMessage(LATE, 2);
+        sm.sendMessage(HOLD, 3);
+        sm.sendMessage(LATE, 4);
+        sm.sendMessage(TO_OTHER);
+        assertEvents("hold 1", "hold 3", "run 1", "run 2", "run 3", "run 4");
+    }
+
+    @Test
+    public void exitingAndEnteringTheStateAgainPutsItsMessagesBack() throws Exception {
+        DeferMachine sm = newMachine(0);
+        sm.sendMessage(HOLD, 1);
+        sm.sendMessage(HOLD, 2);
+        // Exits a and outer, then enters outer again
+        sm.sendMessage(TO_OUTER);
+        sm.sendMessage(MARK);
+        assertEvents("hold 1", "hold 2", "hold 1", "hold 2", "mark outer");
+    }
+
+    @Test
+    public void stateHoldsNoMoreThanItsCapacity() throws Exception {
+        DeferMachine sm = newMachine(2);
+        sm.sendMessage(HOLD, 1);
+        sm.sendMessage(HOLD, 2);
+        sm.sendMessage(HOLD, 3);
+        sm.sendMessage(TO_OTHER);
+        sm.sendMessage(TO_A);
+        // Room again once the held messages went back
+        sm.sendMessage(HOLD, 4);
+        sm.sendMessage(TO_OTHER);
+        assertEvents("hold 1", "hold 2", "full 3", "run 1", "run 2", "hold 4", "run 4");
+    }
+}
@@ -0,0 +1,238 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * State machines built from one {@link StateMachineDefinition} and
+ * sharing the State objects that keep no per machine data.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineDefinitionTest {
+
+    private static final int GO = 1;
+    private static final int FINISH = 2;
+    private static final int MARK = 3;
+
+    /**
+     * top is the parent of idle, busy and done, idle is the initial state
+     */
+    private static final StateMachineDefinition DEFINITION = new StateMachineDefinition();
+
+    static {
+        DEFINITION.addState("top");
+        DEFINITION.addState("idle", "top");
+        DEFINITION.addState("busy", "top");
+        DEFINITION.addState("done", "top");
+        DEFINITION.setInitialState("idle");
+    }
+
+    private static class NamedState extends State {
+        private final String mName;
+
+        NamedState(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+
+    /**
+     * GO moves idle to busy, FINISH moves busy to the shared done, MARK
+     * records the current state as nobody handles it, quitting records "quit"
+     */
+    private static class SharingMachine extends StateMachine {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        private final State mDone;
+
+        private final State mIdle = new NamedState("idle") {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what != GO) return NOT_HANDLED;
+                transitionTo(mBusy);
+                return HANDLED;
+            }
+        };
+
+        private final State mBusy = new NamedState("busy") {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what != FINISH) return NOT_HANDLED;
+                transitionTo(mDone);
+                return HANDLED;
+            }
+        };
+
+        SharingMachine(String name, State top, State done) {
+            super(name, new QueueMessageLoop(name), DEFINITION);
+            mDone = done;
+            setStates(top, mIdle, mBusy, done);
+        }
+
+        @Override
+        protected void unhandledMessage(Message msg) {
+            mEvents.add(getCurrentState().getName());
+        }
+
+        @Override
+        protected void onQuitting() {
+            mEvents.add("quit");
+        }
+
+        String mark() throws InterruptedException {
+            sendMessage(MARK);
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+
+        void stop() {
+            quitNow();
+        }
+    }
+
+    /**
+     * A machine built with addState, its states and their ids are its own
+     */
+    private static class AddingMachine extends StateMachine {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        private final State mDone;
+
+        private final State mFirst = new NamedState("first") {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what != GO) return NOT_HANDLED;
+                transitionTo(mDone);
+                return HANDLED;
+            }
+        };
+
+        AddingMachine(String name, State done) {
+            super(name, new QueueMessageLoop(name));
+            mDone = done;
+            addState(mFirst);
+            addState(done);
+            setInitialState(mFirst);
+        }
+
+        @Override
+        protected void unhandledMessage(Message msg) {
+            mEvents.add(getCurrentState().getName());
+        }
+
+        String mark() throws InterruptedException {
+            sendMessage(MARK);
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+
+        void stop() {
+            quitNow();
+        }
+    }
+
+    /**
+     * Shared by the machines of a test, they handle nothing
+     */
+    private final State mSharedTop = new NamedState("top");
+    private final State mSharedDone = new NamedState("done");
+
+    private final List<StateMachine> mMachines = new ArrayList<StateMachine>();
+
+    @After
+    public void tearDown() {
+        for (StateMachine machine : mMachines) {
+            if (machine instanceof SharingMachine) ((SharingMachine) machine).stop();
+            if (machine instanceof AddingMachine) ((AddingMachine) machine).stop();
+        }
+    }
+
+    private static Object foreignStateIds(StateMachine machine) throws Exception {
+        Field handlerField = StateMachine.class.getDeclaredField("mSmHandler");
+        handlerField.setAccessible(true);
+        Object handler = handlerField.get(machine);
+        Field idsField = handler.getClass().getDeclaredField("mForeignStateIds");
+        idsField.setAccessible(true);
+        return idsField.get(handler);
+    }
+
+    private AddingMachine newAddingMachine(String name) {
+        AddingMachine machine = new AddingMachine(name, mSharedDone);
+        mMachines.add(machine);
+        machine.start();
+        return machine;
+    }
+
+    private SharingMachine newSharingMachine(String name) {
+        SharingMachine machine = new SharingMachine(name, mSharedTop, mSharedDone);
+        mMachines.add(machine);
+        machine.start();
+        return machine;
+    }
+
+    @Test
+    public void sharedStatesNeedNoHashing() throws Exception {
+        SharingMachine first = newSharingMachine("first");
+        SharingMachine second = newSharingMachine("second");
+        assertNull(foreignStateIds(first));
+        assertNull(foreignStateIds(second));
+
+        second.sendMessage(GO);
+        second.sendMessage(FINISH);
+        assertEquals("done", second.mark());
+        assertEquals("idle", first.mark());
+        first.sendMessage(GO);
+        assertEquals("busy", first.mark());
+        first.sendMessage(FINISH);
+        assertEquals("done", first.mark());
+    }
+
+    @Test
+    public void sharedStatesStayFoundAfterTheirFirstMachineQuits() throws Exception {
+        SharingMachine first = newSharingMachine("first");
+        SharingMachine second = newSharingMachine("second");
+        // Its states are released on quit
+        first.stop();
+        assertEquals("quit", first.mEvents.poll(5, TimeUnit.SECONDS));
+        // Gets the shared done at another id
+        AddingMachine adding = newAddingMachine("adding");
+
+        second.sendMessage(GO);
+        second.sendMessage(FINISH);
+        assertEquals("done", second.mark());
+        assertNull(foreignStateIds(second));
+        adding.sendMessage(GO);
+        assertEquals("done", adding.mark());
+    }
+
+    @Test
+    public void stateWithAnotherIdIsHashed() throws Exception {
+        SharingMachine sharing = newSharingMachine("sharing");
+        // The shared done is state 5 of sharing and state 3 of adding
+        AddingMachine adding = newAddingMachine("adding");
+        assertNotNull(foreignStateIds(adding));
+
+        adding.sendMessage(GO);
+        assertEquals("done", adding.mark());
+        sharing.sendMessage(GO);
+        sharing.sendMessage(FINISH);
+        assertEquals("done", sharing.mark());
+    }
+}
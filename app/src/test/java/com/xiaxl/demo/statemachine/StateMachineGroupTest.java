@@ -0,0 +1,227 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Instances of a {@link StateMachineGroup} created, quit and created
+ * again for a key, and the group shut down.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineGroupTest {
+
+    /**
+     * Records "key count arg1", count is the number of PINGs the instance got
+     */
+    private static final int PING = 1;
+    /**
+     * The instance quits
+     */
+    private static final int QUIT = 2;
+    /**
+     * Records "key thread" with the thread's name
+     */
+    private static final int THREAD = 3;
+
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+    private final AtomicInteger mCreated = new AtomicInteger();
+    private volatile Thread mPartitionThread;
+
+    private class EntityMachine extends StateMachine {
+        private final String mKey;
+        private int mPings;
+
+        private final State mIdle = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                switch (msg.what) {
+                    case PING:
+                        mPings++;
+                        mEvents.add(mKey + " " + mPings + " " + msg.arg1);
+                        return HANDLED;
+                    case QUIT:
+                        quit();
+                        return HANDLED;
+                    case THREAD:
+                        mPartitionThread = Thread.currentThread();
+                        mEvents.add(mKey + " " + Thread.currentThread().getName());
+                        return HANDLED;
+                    default:
+                        return NOT_HANDLED;
+                }
+            }
+        };
+
+        EntityMachine(String key, MessageLoop loop) {
+            super("entity-" + key, loop);
+            mKey = key;
+            addState(mIdle);
+            setInitialState(mIdle);
+        }
+
+        @Override
+        protected void onQuitting() {
+            mEvents.add(mKey + " quit");
+        }
+    }
+
+    private StateMachineGroup<String> mGroup;
+
+    private StateMachineGroup<String> newGroup(int partitions) {
+        mGroup = new StateMachineGroup<String>("group", partitions,
+                new StateMachineGroup.Factory<String>() {
+                    @Override
+                    public StateMachine create(String key, MessageLoop loop) {
+                        mCreated.incrementAndGet();
+                        return new EntityMachine(key, loop);
+                    }
+                });
+        return mGroup;
+    }
+
+    @After
+    public void tearDown() {
+        if (mGroup != null) mGroup.shutdown();
+    }
+
+    private String takeEvent() throws InterruptedException {
+        return mEvents.poll(5, TimeUnit.SECONDS);
+    }
+
+    private void ping(String key, int arg1) {
+        mGroup.sendMessage(key, PING, arg1, 0, null);
+    }
+
+    /**
+     * Wait until the instance of key is forgotten, after its onQuitting
+     */
+    private void awaitForgotten(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mGroup.get(key) != null) {
+            if (System.currentTimeMillis() > deadline) fail(key + " still in the group");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void keyKeepsItsInstanceAndItsOrder() throws Exception {
+        newGroup(4);
+        StateMachine sm = mGroup.getOrCreate("a");
+        assertSame(sm, mGroup.getOrCreate("a"));
+        for (int i = 0; i < 100; i++) {
+            ping("a", i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("a " + (i + 1) + " " + i, takeEvent());
+        }
+        assertEquals(1, mCreated.get());
+        assertEquals(1, mGroup.size());
+    }
+
+    @Test
+    public void keyGetsANewInstanceAfterItsInstanceQuits() throws Exception {
+        newGroup(2);
+        ping("a", 0);
+        assertEquals("a 1 0", takeEvent());
+        StateMachine first = mGroup.get("a");
+        mGroup.sendMessage("a", QUIT);
+        assertEquals("a quit", takeEvent());
+        awaitForgotten("a");
+        assertEquals(0, mGroup.size());
+
+        // A new instance, its count starts over
+        ping("a", 1);
+        assertEquals("a 1 1", takeEvent());
+        StateMachine second = mGroup.get("a");
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertEquals(2, mCreated.get());
+
+        // Its messages never reach the old one
+        first.sendMessage(PING, 9);
+        ping("a", 2);
+        assertEquals("a 2 2", takeEvent());
+        assertNull(mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void quittingInstanceLeavesTheOthersOfItsPartition() throws Exception {
+        // One partition, a and b share its thread
+        newGroup(1);
+        ping("a", 0);
+        ping("b", 0);
+        assertEquals("a 1 0", takeEvent());
+        assertEquals("b 1 0", takeEvent());
+        mGroup.sendMessage("a", QUIT);
+        ping("b", 1);
+        // a quits once its quit message of the bulk lane is through, b may come first
+        Set<String> events = new HashSet<String>();
+        events.add(takeEvent());
+        events.add(takeEvent());
+        assertEquals(new HashSet<String>(Arrays.asList("a quit", "b 2 1")), events);
+        awaitForgotten("a");
+        assertSame(mGroup.get("b"), mGroup.getOrCreate("b"));
+        ping("a", 1);
+        assertEquals("a 1 1", takeEvent());
+        assertEquals(2, mGroup.size());
+    }
+
+    @Test
+    public void quitAndCreateAgainManyTimes() throws Exception {
+        newGroup(2);
+        for (int i = 0; i < 50; i++) {
+            ping("a", i);
+            assertEquals("a 1 " + i, takeEvent());
+            mGroup.sendMessage("a", QUIT);
+            assertEquals("a quit", takeEvent());
+            awaitForgotten("a");
+        }
+        assertEquals(50, mCreated.get());
+        assertEquals(0, mGroup.size());
+    }
+
+    @Test
+    public void shutdownStopsThePartitionsAndRefusesNewInstances() throws Exception {
+        newGroup(1);
+        mGroup.sendMessage("a", THREAD);
+        assertEquals("a group-0", takeEvent());
+        Thread thread = mPartitionThread;
+        mGroup.shutdown();
+        assertEquals(0, mGroup.size());
+        assertNull(mGroup.get("a"));
+        try {
+            mGroup.getOrCreate("a");
+            fail("created after shutdown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, mCreated.get());
+        // The instances do not get to quit
+        assertTrue(mEvents.isEmpty());
+    }
+}
@@ -0,0 +1,218 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The time messages wait in the queue of a state machine with latency
+ * tracking, deferred messages apart, and the depth and age of its queue.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineLatencyTest {
+
+    /**
+     * Holds the thread until the gate opens
+     */
+    private static final int HOLD = 1;
+    /**
+     * Records "ping"
+     */
+    private static final int PING = 2;
+    /**
+     * Deferred by first, which records "deferred", and second, recorded as
+     * "work" by ready
+     */
+    private static final int WORK = 3;
+    /**
+     * first goes to second, second to ready
+     */
+    private static final int NEXT = 4;
+
+    private static final long MILLIS = 1000000L;
+
+    private static class TimedMachine extends StateMachine {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        final CountDownLatch mHolding = new CountDownLatch(1);
+        final CountDownLatch mGate = new CountDownLatch(1);
+
+        private final State mTop = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == HOLD) {
+                    mHolding.countDown();
+                    try {
+                        mGate.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (msg.what == PING) {
+                    mEvents.add("ping");
+                } else {
+                    return NOT_HANDLED;
+                }
+                return HANDLED;
+            }
+        };
+
+        private final State mFirst = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == WORK) {
+                    deferMessage(msg);
+                    mEvents.add("deferred");
+                } else if (msg.what == NEXT) {
+                    transitionTo(mSecond);
+                } else {
+                    return NOT_HANDLED;
+                }
+                return HANDLED;
+            }
+        };
+
+        private final State mSecond = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == WORK) {
+                    deferMessage(msg);
+                } else if (msg.what == NEXT) {
+                    transitionTo(mReady);
+                } else {
+                    return NOT_HANDLED;
+                }
+                return HANDLED;
+            }
+        };
+
+        private final State mReady = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what != WORK) return NOT_HANDLED;
+                mEvents.add("work");
+                return HANDLED;
+            }
+        };
+
+        TimedMachine() {
+            super("TimedMachine", new QueueMessageLoop("TimedMachine"));
+            addState(mTop);
+            addState(mFirst, mTop);
+            addState(mSecond, mTop);
+            addState(mReady, mTop);
+            setInitialState(mFirst);
+            setLatencyTracking(true);
+        }
+
+        String takeEvent() throws InterruptedException {
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private TimedMachine mMachine;
+
+    @Before
+    public void setUp() {
+        mMachine = new TimedMachine();
+        mMachine.start();
+    }
+
+    @After
+    public void tearDown() {
+        mMachine.mGate.countDown();
+        mMachine.quitNow();
+    }
+
+    /**
+     * The histograms are recorded once the message is handled, after the
+     * state recorded its event
+     */
+    private static void awaitCount(String name, LatencyHistogramSource source, long count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.get().getCount() < count) {
+            if (System.currentTimeMillis() > deadline) fail(name + " has no " + count + " values");
+            Thread.sleep(1);
+        }
+    }
+
+    private interface LatencyHistogramSource {
+        LatencyHistogram get();
+    }
+
+    @Test
+    public void queueDelayDepthAndAgeOfWaitingMessages() throws Exception {
+        final TimedMachine sm = mMachine;
+        sm.sendMessage(HOLD);
+        assertTrue(sm.mHolding.await(5, TimeUnit.SECONDS));
+        assertEquals(0, sm.getOldestPendingAge());
+        long sentAt = System.nanoTime();
+        sm.sendMessage(PING);
+        sm.sendMessage(PING);
+        sm.sendMessage(PING);
+        assertEquals(3, sm.getQueueDepth());
+        Thread.sleep(30);
+        long age = sm.getOldestPendingAge();
+        assertTrue("age " + age, age >= 30 * MILLIS && age <= System.nanoTime() - sentAt);
+
+        sm.mGate.countDown();
+        assertEquals("ping", sm.takeEvent());
+        assertEquals("ping", sm.takeEvent());
+        assertEquals("ping", sm.takeEvent());
+        awaitCount("queue", new LatencyHistogramSource() {
+            @Override
+            public LatencyHistogram get() {
+                return sm.getQueueLatency();
+            }
+        }, 4);
+        assertTrue(sm.getQueueLatency().getMax() >= 30 * MILLIS);
+        assertEquals(0, sm.getQueueDepth());
+        assertEquals(0, sm.getOldestPendingAge());
+        // Nothing was deferred
+        assertEquals(0, sm.getDeferredLatency().getCount());
+        assertEquals(0, sm.getRequeueCounts().getCount());
+    }
+
+    @Test
+    public void deferredMessageIsTimedFromItsFirstDeferral() throws Exception {
+        final TimedMachine sm = mMachine;
+        sm.sendMessage(WORK);
+        assertEquals("deferred", sm.takeEvent());
+        Thread.sleep(30);
+        // Put back twice, deferred again by second, then handled by ready
+        sm.sendMessage(NEXT);
+        sm.sendMessage(NEXT);
+        assertEquals("work", sm.takeEvent());
+        awaitCount("requeues", new LatencyHistogramSource() {
+            @Override
+            public LatencyHistogram get() {
+                return sm.getRequeueCounts();
+            }
+        }, 1);
+        LatencyHistogram requeues = sm.getRequeueCounts();
+        assertEquals(1, requeues.getCount());
+        assertEquals(1, requeues.getBucketCount(2));
+        LatencyHistogram deferred = sm.getDeferredLatency();
+        assertEquals(1, deferred.getCount());
+        assertTrue("deferred " + deferred, deferred.getMax() >= 30 * MILLIS);
+        // Its waits after being put back are not queue delays
+        LatencyHistogram queue = sm.getQueueLatency();
+        assertTrue("queue " + queue, queue.getMax() < 30 * MILLIS);
+        assertNull(sm.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,168 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Log records read by other threads while the state machine's thread
+ * keeps overwriting them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineLogRecTest {
+
+    private static final int RECORDS = 8;
+    private static final int MESSAGES = 20000;
+
+    /**
+     * Whats of the messages, each message n has what BASE + n % 7 and arg1 n
+     */
+    private static final int BASE = 100;
+
+    /**
+     * Not logged, sent last, once it is processed the record of the last
+     * message is complete
+     */
+    private static final int END = 1;
+
+    /**
+     * Its info names both the what and arg1, a record mixing the columns
+     * of two messages has an info that does not match its what
+     */
+    private static class LoggingMachine extends StateMachine {
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        final State mIdle = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == END) mDone.countDown();
+                return HANDLED;
+            }
+        };
+
+        LoggingMachine(boolean deferInfo) {
+            super("LoggingMachine", new QueueMessageLoop("LoggingMachine"));
+            addState(mIdle);
+            setInitialState(mIdle);
+            setLogRecSize(RECORDS);
+            setLogRecInfoDeferred(deferInfo);
+        }
+
+        @Override
+        protected boolean recordLogRec(Message msg) {
+            return msg.what != END;
+        }
+
+        @Override
+        protected String getLogRecString(Message msg) {
+            return msg.what + " " + msg.arg1;
+        }
+    }
+
+    private LoggingMachine mMachine;
+
+    @After
+    public void tearDown() {
+        if (mMachine != null) mMachine.quitNow();
+    }
+
+    /**
+     * @return arg1 of the message of rec, checked against its what and state
+     */
+    private int check(StateMachine.LogRec rec) {
+        String info[] = rec.getInfo().split(" ");
+        int n = Integer.parseInt(info[1]);
+        assertEquals(rec.toString(), BASE + n % 7, Integer.parseInt(info[0]));
+        assertEquals(rec.toString(), BASE + n % 7, rec.getWhat());
+        assertSame(mMachine.mIdle, rec.getState());
+        return n;
+    }
+
+    private void readWhileWriting(boolean deferInfo) throws Exception {
+        mMachine = new LoggingMachine(deferInfo);
+        mMachine.start();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch readersDone = new CountDownLatch(2);
+        Runnable copier = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (mMachine.mDone.getCount() > 0) {
+                        int last = -1;
+                        int size = 0;
+                        for (StateMachine.LogRec rec : mMachine.copyLogRecs()) {
+                            int n = check(rec);
+                            assertTrue("out of order " + n + " after " + last, n > last);
+                            last = n;
+                            size++;
+                        }
+                        assertTrue("copied " + size, size <= RECORDS);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+                readersDone.countDown();
+            }
+        };
+        Runnable getter = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (mMachine.mDone.getCount() > 0) {
+                        int size = mMachine.getLogRecSize();
+                        assertTrue("size " + size, size <= RECORDS);
+                        for (int i = 0; i < RECORDS; i++) {
+                            StateMachine.LogRec rec = mMachine.getLogRec(i);
+                            if (rec != null) check(rec);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+                readersDone.countDown();
+            }
+        };
+        new Thread(copier).start();
+        new Thread(getter).start();
+        for (int n = 0; n < MESSAGES; n++) {
+            mMachine.sendMessage(BASE + n % 7, n);
+        }
+        mMachine.sendMessage(END);
+        if (!mMachine.mDone.await(30, TimeUnit.SECONDS)) fail("messages not processed");
+        assertTrue(readersDone.await(5, TimeUnit.SECONDS));
+        assertNull(String.valueOf(failure.get()), failure.get());
+
+        // The newest records are left, in order
+        assertEquals(RECORDS, mMachine.getLogRecSize());
+        assertEquals(MESSAGES, mMachine.getLogRecCount());
+        for (int i = 0; i < RECORDS; i++) {
+            assertEquals(MESSAGES - RECORDS + i, check(mMachine.getLogRec(i)));
+        }
+        assertNull(mMachine.getLogRec(RECORDS));
+    }
+
+    @Test
+    public void readersSeeWholeRecordsWhileTheyAreOverwritten() throws Exception {
+        readWhileWriting(false);
+    }
+
+    @Test
+    public void deferredInfoIsRenderedFromTheSameRecord() throws Exception {
+        readWhileWriting(true);
+    }
+}
@@ -0,0 +1,163 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Handlers registered with {@link StateMachine#addMessageHandler} and the
+ * processMessage of the states below them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineMessageHandlerTest {
+
+    /**
+     * Handled by the handler of top, leaf takes it when arg1 is 1, the
+     * handler passes it on when arg1 is 2
+     */
+    private static final int PING = 1;
+    /**
+     * Handled by the handlers of top and leaf
+     */
+    private static final int PONG = 2;
+    /**
+     * leaf goes to plain
+     */
+    private static final int GO_PLAIN = 3;
+
+    /**
+     * top > middle > leaf, the initial state, and middle > plain. Only
+     * leaf overrides processMessage.
+     */
+    private static class HandlerMachine extends StateMachine {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+
+        private final State mTop = new State();
+        private final State mMiddle = new State();
+        private final State mPlain = new State();
+
+        private final State mLeaf = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == GO_PLAIN) {
+                    transitionTo(mPlain);
+                    return HANDLED;
+                }
+                if (msg.what == PING && msg.arg1 == 1) {
+                    mEvents.add("leaf");
+                    return HANDLED;
+                }
+                mEvents.add("leaf passes");
+                return NOT_HANDLED;
+            }
+        };
+
+        HandlerMachine() {
+            super("HandlerMachine", new QueueMessageLoop("HandlerMachine"));
+            addState(mTop);
+            addState(mMiddle, mTop);
+            addState(mLeaf, mMiddle);
+            addState(mPlain, mMiddle);
+            setInitialState(mLeaf);
+            addMessageHandler(mTop, PING, new MessageHandler() {
+                @Override
+                public boolean handleMessage(Message msg) {
+                    if (msg.arg1 == 2) return NOT_HANDLED;
+                    mEvents.add("top ping");
+                    return HANDLED;
+                }
+            });
+            addMessageHandler(mTop, PONG, new MessageHandler() {
+                @Override
+                public boolean handleMessage(Message msg) {
+                    mEvents.add("top pong");
+                    return HANDLED;
+                }
+            });
+            addMessageHandler(mLeaf, PONG, new MessageHandler() {
+                @Override
+                public boolean handleMessage(Message msg) {
+                    mEvents.add("leaf pong");
+                    return msg.arg1 == 0;
+                }
+            });
+        }
+
+        @Override
+        protected void unhandledMessage(Message msg) {
+            mEvents.add("unhandled");
+        }
+
+        String send(int what, int arg1) throws InterruptedException {
+            sendMessage(what, arg1);
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+
+        String takeEvent() throws InterruptedException {
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private HandlerMachine mMachine;
+
+    private HandlerMachine newMachine() {
+        mMachine = new HandlerMachine();
+        mMachine.start();
+        return mMachine;
+    }
+
+    @After
+    public void tearDown() {
+        if (mMachine != null) mMachine.quitNow();
+    }
+
+    @Test
+    public void stateBelowTheHandlerOverridingProcessMessageIsAskedFirst() throws Exception {
+        HandlerMachine sm = newMachine();
+        assertEquals("leaf", sm.send(PING, 1));
+    }
+
+    @Test
+    public void messageNotHandledBelowReachesTheHandler() throws Exception {
+        HandlerMachine sm = newMachine();
+        assertEquals("leaf passes", sm.send(PING, 0));
+        assertEquals("top ping", sm.takeEvent());
+    }
+
+    @Test
+    public void statesKeepingTheDefaultProcessMessageAreSkipped() throws Exception {
+        HandlerMachine sm = newMachine();
+        sm.sendMessage(GO_PLAIN);
+        assertEquals("top ping", sm.send(PING, 0));
+    }
+
+    @Test
+    public void handlerNotHandlingGoesOnToTheParents() throws Exception {
+        HandlerMachine sm = newMachine();
+        sm.sendMessage(GO_PLAIN);
+        // top has no parent
+        assertEquals("unhandled", sm.send(PING, 2));
+    }
+
+    @Test
+    public void innermostHandlerComesBeforeItsStateAndTheOuterOne() throws Exception {
+        HandlerMachine sm = newMachine();
+        assertEquals("leaf pong", sm.send(PONG, 0));
+        // Not handled, leaf's processMessage is not asked for a what it has a handler for
+        assertEquals("leaf pong", sm.send(PONG, 1));
+        assertEquals("top pong", sm.takeEvent());
+        sm.sendMessage(GO_PLAIN);
+        assertEquals("top pong", sm.send(PONG, 0));
+    }
+}
@@ -0,0 +1,235 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link StateMachine#quit()} on a {@link QueueMessageLoop}: it waits for
+ * the messages queued in every lane and is never refused, waited for or
+ * dropped by a full loop.
+ * <p>
+ * Message HOLD holds the loop's thread until the gate opens, so the
+ * messages sent meanwhile stay pending.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineQuitTest {
+
+    private static final int HOLD = 0;
+
+    /**
+     * Whats of the control, normal and bulk lanes
+     */
+    private static final int CONTROL = 10;
+    private static final int NORMAL = 20;
+    private static final int BULK = 30;
+
+    private static class QuitMachine extends StateMachine {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        final CountDownLatch mHolding = new CountDownLatch(1);
+        final CountDownLatch mGate = new CountDownLatch(1);
+
+        private final State mIdle = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == HOLD) {
+                    mHolding.countDown();
+                    try {
+                        mGate.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    mEvents.add(String.valueOf(msg.what));
+                }
+                return HANDLED;
+            }
+        };
+
+        QuitMachine() {
+            super("QuitMachine", new QueueMessageLoop("QuitMachine"));
+            addState(mIdle);
+            setInitialState(mIdle);
+        }
+
+        @Override
+        protected void onQuitting() {
+            mEvents.add("quit");
+        }
+
+        void limit(int capacity, int overflowPolicy) {
+            setCapacity(capacity, overflowPolicy);
+        }
+
+        void quitLater() {
+            quit();
+        }
+
+        void lane(int what, int lane) {
+            setMessageLane(what, lane);
+        }
+
+        /**
+         * Hold the loop's thread, then send the given messages
+         */
+        void hold(int... whats) throws InterruptedException {
+            sendMessage(HOLD);
+            assertTrue(mHolding.await(5, TimeUnit.SECONDS));
+            for (int what : whats) {
+                sendMessage(what);
+            }
+        }
+
+        String takeEvent() throws InterruptedException {
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Call quit on another thread, it must return at once
+     */
+    private static void quitFromAnotherThread(final QuitMachine sm) throws InterruptedException {
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        final CountDownLatch returned = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sm.quitLater();
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+                returned.countDown();
+            }
+        }).start();
+        assertTrue("quit is waiting for room", returned.await(5, TimeUnit.SECONDS));
+        assertNull(thrown.get());
+    }
+
+    /**
+     * Fill a capacity of 2 with 1 and 2, quit, then try to send 3 and 4
+     */
+    private static QuitMachine quitWhenFull(int overflowPolicy) throws InterruptedException {
+        QuitMachine sm = new QuitMachine();
+        sm.limit(2, overflowPolicy);
+        sm.start();
+        sm.hold(1, 2);
+        quitFromAnotherThread(sm);
+        sm.trySendMessage(3);
+        sm.trySendMessage(4);
+        sm.mGate.countDown();
+        return sm;
+    }
+
+    @Test
+    public void blockQuitsBehindTheQueuedMessages() throws Exception {
+        QuitMachine sm = quitWhenFull(MessageLoop.OVERFLOW_BLOCK);
+        assertEquals("1", sm.takeEvent());
+        assertEquals("2", sm.takeEvent());
+        assertEquals("quit", sm.takeEvent());
+    }
+
+    @Test
+    public void failQuitsBehindTheQueuedMessages() throws Exception {
+        QuitMachine sm = quitWhenFull(MessageLoop.OVERFLOW_FAIL);
+        assertEquals("1", sm.takeEvent());
+        assertEquals("2", sm.takeEvent());
+        assertEquals("quit", sm.takeEvent());
+    }
+
+    @Test
+    public void dropOldestNeverDropsTheQuitMessages() throws Exception {
+        // 3 and 4 push out 1 and 2, then find no room the quit messages would make
+        QuitMachine sm = quitWhenFull(MessageLoop.OVERFLOW_DROP_OLDEST);
+        assertEquals("quit", sm.takeEvent());
+    }
+
+    @Test
+    public void dropNewestQuitsBehindTheQueuedMessages() throws Exception {
+        QuitMachine sm = quitWhenFull(MessageLoop.OVERFLOW_DROP_NEWEST);
+        assertEquals("1", sm.takeEvent());
+        assertEquals("2", sm.takeEvent());
+        assertEquals("quit", sm.takeEvent());
+    }
+
+    @Test
+    public void coalesceQuitsBehindTheQueuedMessages() throws Exception {
+        QuitMachine sm = quitWhenFull(MessageLoop.OVERFLOW_COALESCE);
+        assertEquals("1", sm.takeEvent());
+        assertEquals("2", sm.takeEvent());
+        assertEquals("quit", sm.takeEvent());
+    }
+
+    private static QuitMachine newLaneMachine() {
+        QuitMachine sm = new QuitMachine();
+        // So it takes none of the eight normal messages in a row
+        sm.lane(HOLD, MessageLoop.LANE_CONTROL);
+        sm.lane(CONTROL, MessageLoop.LANE_CONTROL);
+        sm.lane(BULK, MessageLoop.LANE_BULK);
+        sm.start();
+        return sm;
+    }
+
+    private static void assertEvents(QuitMachine sm, String... events) throws InterruptedException {
+        for (String event : events) {
+            assertEquals(event, sm.takeEvent());
+        }
+        assertNull(sm.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void lanesAreDrainedByWeight() throws Exception {
+        QuitMachine sm = newLaneMachine();
+        sm.hold(BULK, BULK, BULK, NORMAL, NORMAL, NORMAL, NORMAL, NORMAL,
+                NORMAL, NORMAL, NORMAL, NORMAL, NORMAL, CONTROL);
+        sm.mGate.countDown();
+        // Control first, then a bulk message per eight normal ones
+        assertEvents(sm, "10",
+                "20", "20", "20", "20", "20", "20", "20", "20",
+                "30", "20", "20", "30", "30");
+    }
+
+    @Test
+    public void quitWaitsForTheMessagesOfEveryLane() throws Exception {
+        QuitMachine sm = newLaneMachine();
+        sm.hold(BULK, BULK, NORMAL, CONTROL);
+        sm.quitLater();
+        sm.mGate.countDown();
+        assertEvents(sm, "10", "20", "30", "30", "quit");
+    }
+
+    @Test
+    public void messagesSentAfterQuitComeBeforeItWhileALaneIsBehind() throws Exception {
+        QuitMachine sm = newLaneMachine();
+        sm.hold(BULK, NORMAL);
+        sm.quitLater();
+        // Behind the quit messages of their lanes, still ahead of the bulk one
+        sm.sendMessage(CONTROL);
+        sm.sendMessage(NORMAL);
+        sm.mGate.countDown();
+        assertEvents(sm, "10", "20", "20", "30", "quit");
+    }
+
+    @Test
+    public void quitWithEmptyLanes() throws Exception {
+        QuitMachine sm = newLaneMachine();
+        sm.hold();
+        sm.quitLater();
+        sm.mGate.countDown();
+        assertEvents(sm, "quit");
+    }
+}
@@ -0,0 +1,122 @@
+package com.xiaxl.demo.statemachine;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * A state machine started from a {@link StateMachine#snapshot()} goes on
+ * where the one that took it was.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineSnapshotTest {
+
+    private final List<RecordingMachine> mMachines = new ArrayList<RecordingMachine>();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (RecordingMachine machine : mMachines) {
+            machine.quitAndWait();
+        }
+    }
+
+    private RecordingMachine newMachine(String name) {
+        RecordingMachine machine = new RecordingMachine(name);
+        mMachines.add(machine);
+        return machine;
+    }
+
+    private static byte[] takeSnapshot(RecordingMachine machine) throws InterruptedException {
+        machine.sendMessage(RecordingMachine.SNAPSHOT);
+        byte snapshot[] = machine.mSnapshots.poll(5, TimeUnit.SECONDS);
+        assertNotNull(snapshot);
+        return snapshot;
+    }
+
+    @Test
+    public void restoresTheStateTheDataAndTheDeferredMessages() throws Exception {
+        RecordingMachine machine = newMachine("saved");
+        machine.start();
+        assertEquals("enter top", machine.takeEvent());
+        assertEquals("enter idle", machine.takeEvent());
+        machine.sendMessage(RecordingMachine.ADD, 5);
+        machine.sendMessage(RecordingMachine.WORK, "a");
+        machine.sendMessage(RecordingMachine.WORK, "b");
+        byte snapshot[] = takeSnapshot(machine);
+
+        RecordingMachine restored = newMachine("restored");
+        restored.start(snapshot);
+        // No enter method is called
+        assertEquals("idle 5", restored.mark());
+        restored.sendMessage(RecordingMachine.GO);
+        assertEquals("exit idle", restored.takeEvent());
+        assertEquals("enter busy", restored.takeEvent());
+        assertEquals("enter working", restored.takeEvent());
+        assertEquals("work a", restored.takeEvent());
+        assertEquals("work b", restored.takeEvent());
+        assertEquals("working 5", restored.mark());
+    }
+
+    @Test
+    public void restoresTheMessagesHeldUntilAStateExits() throws Exception {
+        RecordingMachine machine = newMachine("saved");
+        machine.start();
+        machine.sendMessage(RecordingMachine.GO);
+        machine.sendMessage(RecordingMachine.LATER, 1);
+        machine.sendMessage(RecordingMachine.LATER, 2);
+        machine.sendMessage(RecordingMachine.ADD, 3);
+        byte snapshot[] = takeSnapshot(machine);
+
+        RecordingMachine restored = newMachine("restored");
+        restored.start(snapshot);
+        assertEquals("working 3", restored.mark());
+        restored.sendMessage(RecordingMachine.STOP);
+        assertEquals("exit working", restored.takeEvent());
+        assertEquals("exit busy", restored.takeEvent());
+        assertEquals("enter idle", restored.takeEvent());
+        assertEquals("later 1", restored.takeEvent());
+        assertEquals("later 2", restored.takeEvent());
+        assertNull(restored.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void snapshotOfARestoredMachineIsTheSame() throws Exception {
+        RecordingMachine machine = newMachine("saved");
+        machine.start();
+        machine.sendMessage(RecordingMachine.ADD, 7);
+        machine.sendMessage(RecordingMachine.WORK, "c");
+        byte snapshot[] = takeSnapshot(machine);
+
+        RecordingMachine restored = newMachine("restored");
+        restored.start(snapshot);
+        assertArrayEquals(snapshot, takeSnapshot(restored));
+    }
+
+    @Test
+    public void corruptSnapshotIsRejected() throws Exception {
+        RecordingMachine machine = newMachine("saved");
+        machine.start();
+        byte snapshot[] = takeSnapshot(machine);
+        snapshot[0] ^= 1;
+
+        RecordingMachine restored = new RecordingMachine("restored");
+        try {
+            restored.start(snapshot);
+            fail("started from a corrupt snapshot");
+        } catch (RuntimeException expected) {
+        }
+    }
+}
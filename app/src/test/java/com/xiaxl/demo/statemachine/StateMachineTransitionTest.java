@@ -0,0 +1,226 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The states exited and entered by a transition, built once and then
+ * taken from the cache of transition plans.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StateMachineTransitionTest {
+
+    /**
+     * The root of the current state goes to the state in obj
+     */
+    private static final int GO = 1;
+    /**
+     * The root of the current state records "mark"
+     */
+    private static final int MARK = 2;
+
+    /**
+     * Two trees, each a root with three children that have two children
+     * each. 20 states make 400 pairs, more than the cache holds.
+     */
+    private static class TreeMachine extends StateMachine {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        final List<Named> mStates = new ArrayList<Named>();
+
+        private class Named extends State {
+            final String mName;
+            final Named mParent;
+
+            Named(String name, Named parent) {
+                mName = name;
+                mParent = parent;
+            }
+
+            @Override
+            public void enter() {
+                mEvents.add("enter " + mName);
+            }
+
+            @Override
+            public void exit() {
+                mEvents.add("exit " + mName);
+            }
+
+            @Override
+            public String getName() {
+                return mName;
+            }
+        }
+
+        private class Root extends Named {
+            Root(String name) {
+                super(name, null);
+            }
+
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == GO) {
+                    transitionTo((State) msg.obj);
+                } else {
+                    mEvents.add("mark");
+                }
+                return HANDLED;
+            }
+        }
+
+        TreeMachine() {
+            super("TreeMachine", new QueueMessageLoop("TreeMachine"));
+            for (int r = 0; r < 2; r++) {
+                Named root = add(new Root("r" + r));
+                for (int x = 0; x < 3; x++) {
+                    Named child = add(new Named("r" + r + "x" + x, root));
+                    for (int y = 0; y < 2; y++) {
+                        add(new Named("r" + r + "x" + x + "y" + y, child));
+                    }
+                }
+            }
+            setInitialState(state("r0x0y0"));
+        }
+
+        private Named add(Named state) {
+            addState(state, state.mParent);
+            mStates.add(state);
+            return state;
+        }
+
+        Named state(String name) {
+            for (Named state : mStates) {
+                if (state.mName.equals(name)) return state;
+            }
+            throw new IllegalArgumentException(name);
+        }
+
+        /**
+         * @return the events up to the next mark
+         */
+        List<String> takeEvents() throws InterruptedException {
+            List<String> events = new ArrayList<String>();
+            String event;
+            while ((event = mEvents.poll(5, TimeUnit.SECONDS)) != null && !event.equals("mark")) {
+                events.add(event);
+            }
+            return events;
+        }
+
+        List<String> go(Named dest) throws InterruptedException {
+            sendMessage(GO, dest);
+            sendMessage(MARK);
+            return takeEvents();
+        }
+    }
+
+    private TreeMachine mMachine;
+
+    @Before
+    public void setUp() throws Exception {
+        mMachine = new TreeMachine();
+        mMachine.start();
+        mMachine.sendMessage(MARK);
+        mMachine.takeEvents();
+    }
+
+    @After
+    public void tearDown() {
+        mMachine.quitNow();
+    }
+
+    /**
+     * The events of a transition from current to dest: exit up to the
+     * first active ancestor of dest, dest itself is entered even if active
+     */
+    private static List<String> expected(TreeMachine.Named current, TreeMachine.Named dest) {
+        List<TreeMachine.Named> active = new ArrayList<TreeMachine.Named>();
+        for (TreeMachine.Named s = current; s != null; s = s.mParent) {
+            active.add(s);
+        }
+        TreeMachine.Named common = dest.mParent;
+        while (common != null && !active.contains(common)) {
+            common = common.mParent;
+        }
+        List<String> events = new ArrayList<String>();
+        for (TreeMachine.Named s = current; s != common; s = s.mParent) {
+            events.add("exit " + s.mName);
+        }
+        List<String> enters = new ArrayList<String>();
+        for (TreeMachine.Named s = dest; s != common; s = s.mParent) {
+            enters.add(0, "enter " + s.mName);
+        }
+        events.addAll(enters);
+        return events;
+    }
+
+    private void assertGo(String from, String to, String... events) throws InterruptedException {
+        // Twice, built then cached
+        for (int i = 0; i < 2; i++) {
+            mMachine.go(mMachine.state(from));
+            assertEquals(Arrays.asList(events), mMachine.go(mMachine.state(to)));
+        }
+    }
+
+    @Test
+    public void sibling() throws Exception {
+        assertGo("r0x0y0", "r0x0y1", "exit r0x0y0", "enter r0x0y1");
+    }
+
+    @Test
+    public void cousin() throws Exception {
+        assertGo("r0x0y0", "r0x2y1",
+                "exit r0x0y0", "exit r0x0", "enter r0x2", "enter r0x2y1");
+    }
+
+    @Test
+    public void ancestorIsExitedAndEnteredAgain() throws Exception {
+        assertGo("r0x1y1", "r0x1", "exit r0x1y1", "exit r0x1", "enter r0x1");
+    }
+
+    @Test
+    public void descendant() throws Exception {
+        assertGo("r0x1", "r0x1y0", "enter r0x1y0");
+    }
+
+    @Test
+    public void self() throws Exception {
+        assertGo("r0x2y0", "r0x2y0", "exit r0x2y0", "enter r0x2y0");
+    }
+
+    @Test
+    public void otherTreeHasNoCommonAncestor() throws Exception {
+        assertGo("r0x0y1", "r1x1y0",
+                "exit r0x0y1", "exit r0x0", "exit r0",
+                "enter r1", "enter r1x1", "enter r1x1y0");
+    }
+
+    @Test
+    public void plansSharingACacheSlotStayApart() throws Exception {
+        Random random = new Random(3);
+        TreeMachine.Named current = mMachine.state("r0x0y0");
+        for (int i = 0; i < 1000; i++) {
+            TreeMachine.Named dest = mMachine.mStates.get(random.nextInt(mMachine.mStates.size()));
+            assertEquals(current.mName + " to " + dest.mName,
+                    expected(current, dest), mMachine.go(dest));
+            current = dest;
+        }
+    }
+}
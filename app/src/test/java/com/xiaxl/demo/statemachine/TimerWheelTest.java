@@ -0,0 +1,185 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The order and the time timers leave a {@link TimerWheel} at, whichever
+ * of the inner wheel, the outer wheel and the overflow heap they wait in.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TimerWheelTest {
+
+    private TimerWheel mWheel;
+    private MessageIndex mIndex;
+    private long mBase;
+    private long mSeq;
+
+    @Before
+    public void setUp() {
+        mBase = SystemClock.uptimeMillis();
+        mWheel = new TimerWheel();
+        mIndex = new MessageIndex(null);
+    }
+
+    /**
+     * Add a timer as the Mailbox does, in the order it was sent
+     */
+    private Mailbox.Node add(int what, long when) {
+        Message msg = Message.obtain();
+        msg.what = what;
+        Mailbox.Node node = new Mailbox.Node(msg, mIndex.counter(what), when);
+        node.seq = mSeq++;
+        mWheel.add(node);
+        return node;
+    }
+
+    private int pollWhat(long now) {
+        Mailbox.Node node = mWheel.pollDue(now);
+        return (node != null) ? node.msg.what : -1;
+    }
+
+    @Test
+    public void timersOfASlotComeInTheOrderTheyWereAdded() {
+        add(1, mBase + 5);
+        add(2, mBase + 5);
+        add(3, mBase + 5);
+        assertNull(mWheel.pollDue(mBase + 4));
+        assertEquals(1, pollWhat(mBase + 5));
+        assertEquals(2, pollWhat(mBase + 5));
+        assertEquals(3, pollWhat(mBase + 5));
+        assertNull(mWheel.pollDue(mBase + 5));
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void timersComeInDueOrder() {
+        add(3, mBase + 30);
+        add(1, mBase + 10);
+        add(2, mBase + 20);
+        assertEquals(mBase + 10, mWheel.nextTime());
+        assertEquals(1, pollWhat(mBase + 100));
+        assertEquals(2, pollWhat(mBase + 100));
+        assertEquals(3, pollWhat(mBase + 100));
+    }
+
+    @Test
+    public void timersAroundTheOuterTickAreDueOnTime() {
+        int tick = TimerWheel.OUTER_TICK;
+        // The first period boundary after the base, and a few ticks later,
+        // from the inner wheel and from the outer one
+        long boundary = ((mBase / tick) + 1) * tick;
+        long whens[] = {
+                boundary - 1, boundary, boundary + 1,
+                boundary + tick - 1, boundary + tick, boundary + tick + 1,
+                boundary + 3 * tick, mBase + 2 * tick + 7,
+        };
+        for (int i = 0; i < whens.length; i++) {
+            add(i, whens[i]);
+        }
+        int polled = 0;
+        long last = 0;
+        for (long now = mBase; now <= boundary + 4 * tick; now++) {
+            Mailbox.Node node;
+            while ((node = mWheel.pollDue(now)) != null) {
+                assertEquals("timer " + node.msg.what, whens[node.msg.what], now);
+                // Never taken before an earlier one
+                assertTrue(node.when >= last);
+                last = node.when;
+                polled++;
+            }
+        }
+        assertEquals(whens.length, polled);
+        assertEquals(Long.MAX_VALUE, mWheel.nextTime());
+    }
+
+    @Test
+    public void timerOfTheOuterWheelIsDueOnTimeWhenPolledLate() {
+        long when = mBase + 10 * TimerWheel.OUTER_TICK + 3;
+        add(1, when);
+        assertEquals(when, mWheel.nextTime());
+        assertNull(mWheel.pollDue(when - 1));
+        assertEquals(1, pollWhat(when + 1000));
+    }
+
+    @Test
+    public void timerBeyondTheOuterWheelWaitsInTheOverflow() {
+        // The outer wheel covers OUTER_TICK * 256 ms
+        long span = TimerWheel.OUTER_TICK * 256L;
+        long far = mBase + 2 * span + 11;
+        long farther = mBase + 5 * span;
+        add(2, farther);
+        add(1, far);
+        add(0, mBase + 1);
+        assertEquals(mBase + 1, mWheel.nextTime());
+        assertEquals(0, pollWhat(mBase + 1));
+        assertEquals(far, mWheel.nextTime());
+        assertNull(mWheel.pollDue(far - 1));
+        assertEquals(1, pollWhat(far));
+        assertEquals(farther, mWheel.nextTime());
+        assertNull(mWheel.pollDue(farther - 1));
+        assertEquals(2, pollWhat(farther));
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void cancelledTimersAreSkipped() {
+        long span = TimerWheel.OUTER_TICK * 256L;
+        Mailbox.Node inner = add(1, mBase + 3);
+        add(2, mBase + 3);
+        Mailbox.Node outer = add(3, mBase + 3 * TimerWheel.OUTER_TICK);
+        Mailbox.Node overflow = add(4, mBase + 3 * span);
+        add(5, mBase + 4 * span);
+        inner.take();
+        outer.take();
+        overflow.take();
+        assertEquals(5, mWheel.size());
+        assertEquals(mBase + 3, mWheel.nextTime());
+        assertEquals(2, pollWhat(mBase + 3));
+        // A removed timer counts until purge or until it is found in the way
+        mWheel.purge();
+        assertEquals(1, mWheel.size());
+        assertEquals(mBase + 4 * span, mWheel.nextTime());
+        assertEquals(5, pollWhat(mBase + 4 * span));
+        assertNull(mWheel.pollDue(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void cancelledTimerIsNotPolled() {
+        Mailbox.Node first = add(1, mBase + 2);
+        Mailbox.Node second = add(2, mBase + 2);
+        second.take();
+        assertSame(first, mWheel.pollDue(mBase + 2));
+        assertNull(mWheel.pollDue(mBase + 2));
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void clearDropsEveryTimer() {
+        long span = TimerWheel.OUTER_TICK * 256L;
+        add(1, mBase + 1);
+        add(2, mBase + 3 * TimerWheel.OUTER_TICK);
+        add(3, mBase + 2 * span);
+        mWheel.clear();
+        assertEquals(0, mWheel.size());
+        assertEquals(Long.MAX_VALUE, mWheel.nextTime());
+        assertNull(mWheel.pollDue(mBase + 3 * span));
+        // Still usable afterwards
+        long now = SystemClock.uptimeMillis();
+        add(4, now + 5);
+        assertEquals(now + 5, mWheel.nextTime());
+        assertEquals(4, pollWhat(now + 5));
+    }
+}
@@ -0,0 +1,200 @@
+package com.xiaxl.demo.statemachine;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A state machine started again with its {@link TransitionJournal} goes on
+ * where the previous one stopped, whatever the end of the journal looks like.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TransitionJournalTest {
+
+    private static final String PREFIX = "test";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.newFolder("journal");
+    }
+
+    private File journalFile(File dir) {
+        return new File(dir, PREFIX + TransitionJournal.SUFFIX);
+    }
+
+    private static RecordingMachine start(TransitionJournal journal) {
+        RecordingMachine machine = new RecordingMachine("journaled");
+        machine.setJournal(journal);
+        machine.start();
+        return machine;
+    }
+
+    private static void stop(RecordingMachine machine, TransitionJournal journal)
+            throws InterruptedException {
+        machine.quitAndWait();
+        journal.close();
+    }
+
+    /**
+     * A first life that ends in working with a total of 5
+     */
+    private void runFirstLife(int compactRecords) throws InterruptedException {
+        TransitionJournal journal = new TransitionJournal(mDir, PREFIX, 0, compactRecords);
+        RecordingMachine machine = start(journal);
+        assertEquals("enter top", machine.takeEvent());
+        assertEquals("enter idle", machine.takeEvent());
+        machine.sendMessage(RecordingMachine.ADD, 2);
+        machine.sendMessage(RecordingMachine.GO);
+        machine.sendMessage(RecordingMachine.ADD, 3);
+        assertEquals("exit idle", machine.takeEvent());
+        assertEquals("enter busy", machine.takeEvent());
+        assertEquals("enter working", machine.takeEvent());
+        assertEquals("working 5", machine.mark());
+        stop(machine, journal);
+    }
+
+    private static void copyDir(File from, File to) throws IOException {
+        byte buffer[] = new byte[8192];
+        for (File file : from.listFiles()) {
+            InputStream in = new FileInputStream(file);
+            OutputStream out = new FileOutputStream(new File(to, file.getName()));
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        }
+    }
+
+    @Test
+    public void restartReplaysTheJournal() throws Exception {
+        runFirstLife(0);
+
+        TransitionJournal journal = new TransitionJournal(mDir, PREFIX, 0, 0);
+        RecordingMachine machine = start(journal);
+        // The states are active again without their enter methods
+        assertEquals("working 5", machine.mark());
+        stop(machine, journal);
+    }
+
+    @Test
+    public void tornTailIsDroppedAndTheJournalGoesOnBeforeIt() throws Exception {
+        runFirstLife(0);
+        // A record cut short by a crash: its length is past the end of the file
+        OutputStream out = new FileOutputStream(journalFile(mDir), true);
+        out.write(new byte[]{0, 0, 0, 50, TransitionJournal.RECORD_MESSAGE, 0, 0});
+        out.close();
+
+        TransitionJournal journal = new TransitionJournal(mDir, PREFIX, 0, 0);
+        RecordingMachine machine = start(journal);
+        assertEquals("working 5", machine.mark());
+        machine.sendMessage(RecordingMachine.ADD, 1);
+        assertEquals("working 6", machine.mark());
+        stop(machine, journal);
+
+        // Had the torn bytes been left, the records written after them would be lost
+        journal = new TransitionJournal(mDir, PREFIX, 0, 0);
+        machine = start(journal);
+        assertEquals("working 6", machine.mark());
+        stop(machine, journal);
+    }
+
+    @Test
+    public void recordWithABadChecksumIsDropped() throws Exception {
+        runFirstLife(0);
+        // Cut the checksum of the last record, the MARK
+        RandomAccessFile file = new RandomAccessFile(journalFile(mDir), "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        TransitionJournal journal = new TransitionJournal(mDir, PREFIX, 0, 0);
+        RecordingMachine machine = start(journal);
+        assertEquals("working 5", machine.mark());
+        stop(machine, journal);
+    }
+
+    @Test
+    public void replayStartsFromTheSnapshotOfTheLastCompaction() throws Exception {
+        TransitionJournal journal = new TransitionJournal(mDir, PREFIX, 0, 3);
+        RecordingMachine machine = start(journal);
+        machine.sendMessage(RecordingMachine.ADD, 1);
+        machine.sendMessage(RecordingMachine.GO);
+        machine.sendMessage(RecordingMachine.ADD, 2);
+        machine.sendMessage(RecordingMachine.LATER, 7);
+        machine.sendMessage(RecordingMachine.ADD, 3);
+        machine.sendMessage(RecordingMachine.WORK, "x");
+        machine.sendMessage(RecordingMachine.ADD, 4);
+        assertEquals("enter top", machine.takeEvent());
+        assertEquals("enter idle", machine.takeEvent());
+        assertEquals("exit idle", machine.takeEvent());
+        assertEquals("enter busy", machine.takeEvent());
+        assertEquals("enter working", machine.takeEvent());
+        assertEquals("work x", machine.takeEvent());
+        assertEquals("working 10", machine.mark());
+        stop(machine, journal);
+        assertTrue(new File(mDir, PREFIX + TransitionJournal.SNAPSHOT_SUFFIX).exists());
+
+        journal = new TransitionJournal(mDir, PREFIX, 0, 3);
+        machine = start(journal);
+        assertEquals("working 10", machine.mark());
+        // LATER is still held by working
+        machine.sendMessage(RecordingMachine.STOP);
+        assertEquals("exit working", machine.takeEvent());
+        assertEquals("exit busy", machine.takeEvent());
+        assertEquals("enter idle", machine.takeEvent());
+        assertEquals("later 7", machine.takeEvent());
+        stop(machine, journal);
+    }
+
+    @Test
+    public void messagesRequeuedByATransitionSurviveACrash() throws Exception {
+        TransitionJournal journal = new TransitionJournal(mDir, PREFIX, 0, 0);
+        RecordingMachine machine = start(journal);
+        machine.sendMessage(RecordingMachine.WORK, "a");
+        machine.sendMessage(RecordingMachine.WORK, "b");
+        Semaphore gate = new Semaphore(0);
+        machine.mWorkGate = gate;
+        machine.sendMessage(RecordingMachine.GO);
+        // Wait until working processes a: the transition is in the journal, a is not
+        while (!gate.hasQueuedThreads()) {
+            Thread.sleep(1);
+        }
+        File crashed = mFolder.newFolder("crashed");
+        copyDir(mDir, crashed);
+        gate.release(2);
+        stop(machine, journal);
+
+        journal = new TransitionJournal(crashed, PREFIX, 0, 0);
+        machine = start(journal);
+        assertEquals("work a", machine.takeEvent());
+        assertEquals("work b", machine.takeEvent());
+        assertEquals("working 0", machine.mark());
+        stop(machine, journal);
+    }
+}
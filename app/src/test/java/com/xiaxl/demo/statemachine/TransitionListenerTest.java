@@ -0,0 +1,230 @@
+package com.xiaxl.demo.statemachine;
+
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The order a {@link TransitionListener} is called in.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TransitionListenerTest {
+
+    /**
+     * a goes to b1
+     */
+    private static final int GO = 1;
+    /**
+     * Handled by top
+     */
+    private static final int TOP = 2;
+    /**
+     * Handled by nobody
+     */
+    private static final int LOST = 3;
+    /**
+     * a defers it until the next transition, b1 until b exits
+     */
+    private static final int DEFER = 4;
+    /**
+     * a goes to bounce, whose enter goes on to c
+     */
+    private static final int BOUNCE = 5;
+
+    /**
+     * Each callback as a string, states by name, null by "-"
+     */
+    private static class RecordingListener implements TransitionListener {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+
+        private static String name(IState state) {
+            return (state != null) ? state.getName() : "-";
+        }
+
+        @Override
+        public void onDispatch(StateMachine sm, Message msg, IState current) {
+            mEvents.add("dispatch " + msg.what + " " + name(current));
+        }
+
+        @Override
+        public void onHandled(StateMachine sm, Message msg, IState state) {
+            mEvents.add("handled " + msg.what + " " + name(state));
+        }
+
+        @Override
+        public void onUnhandled(StateMachine sm, Message msg) {
+            mEvents.add("unhandled " + msg.what);
+        }
+
+        @Override
+        public void onDeferred(StateMachine sm, Message msg, IState untilExitOf) {
+            mEvents.add("deferred " + msg.what + " " + name(untilExitOf));
+        }
+
+        @Override
+        public void onExit(StateMachine sm, IState state) {
+            mEvents.add("exit " + name(state));
+        }
+
+        @Override
+        public void onEnter(StateMachine sm, IState state) {
+            mEvents.add("enter " + name(state));
+        }
+
+        @Override
+        public void onTransition(StateMachine sm, IState from, IState to) {
+            mEvents.add("transition " + name(from) + " " + name(to));
+        }
+    }
+
+    /**
+     * top > a, the initial state, top > b > b1, top > bounce and top > c
+     */
+    private static class ListenedMachine extends StateMachine {
+
+        private class Named extends State {
+            private final String mName;
+
+            Named(String name) {
+                mName = name;
+            }
+
+            @Override
+            public String getName() {
+                return mName;
+            }
+        }
+
+        private final State mTop = new Named("top") {
+            @Override
+            public boolean processMessage(Message msg) {
+                return msg.what == TOP;
+            }
+        };
+
+        private final State mA = new Named("a") {
+            @Override
+            public boolean processMessage(Message msg) {
+                switch (msg.what) {
+                    case GO:
+                        transitionTo(mB1);
+                        return HANDLED;
+                    case DEFER:
+                        deferMessage(msg);
+                        return HANDLED;
+                    case BOUNCE:
+                        transitionTo(mBounce);
+                        return HANDLED;
+                    default:
+                        return NOT_HANDLED;
+                }
+            }
+        };
+
+        private final State mB = new Named("b");
+
+        private final State mB1 = new Named("b1") {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what != DEFER) return NOT_HANDLED;
+                deferMessageUntilExit(msg, mB);
+                return HANDLED;
+            }
+        };
+
+        private final State mBounce = new Named("bounce") {
+            @Override
+            public void enter() {
+                transitionTo(mC);
+            }
+        };
+
+        private final State mC = new Named("c");
+
+        ListenedMachine(TransitionListener listener) {
+            super("ListenedMachine", new QueueMessageLoop("ListenedMachine"));
+            addState(mTop);
+            addState(mA, mTop);
+            addState(mB, mTop);
+            addState(mB1, mB);
+            addState(mBounce, mTop);
+            addState(mC, mTop);
+            setInitialState(mA);
+            setTransitionListener(listener);
+        }
+    }
+
+    private RecordingListener mListener;
+    private ListenedMachine mMachine;
+
+    @Before
+    public void setUp() throws Exception {
+        mListener = new RecordingListener();
+        mMachine = new ListenedMachine(mListener);
+        mMachine.start();
+        assertEvents("enter top", "enter a");
+    }
+
+    @After
+    public void tearDown() {
+        mMachine.quitNow();
+    }
+
+    private void assertEvents(String... events) throws InterruptedException {
+        for (String event : events) {
+            assertEquals(event, mListener.mEvents.poll(5, TimeUnit.SECONDS));
+        }
+        assertNull(mListener.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void transitionIsReportedAfterItsExitsAndEnters() throws Exception {
+        mMachine.sendMessage(GO);
+        assertEvents("dispatch 1 a", "handled 1 a",
+                "exit a", "enter b", "enter b1", "transition a b1");
+    }
+
+    @Test
+    public void handledNamesTheStateThatHandledIt() throws Exception {
+        mMachine.sendMessage(TOP);
+        assertEvents("dispatch 2 a", "handled 2 top");
+    }
+
+    @Test
+    public void unhandledMessageIsNotReportedHandled() throws Exception {
+        mMachine.sendMessage(LOST);
+        assertEvents("dispatch 3 a", "unhandled 3");
+    }
+
+    @Test
+    public void deferredIsReportedBeforeHandledAndAgainOnEachDispatch() throws Exception {
+        mMachine.sendMessage(DEFER);
+        mMachine.sendMessage(GO);
+        assertEvents("dispatch 4 a", "deferred 4 -", "handled 4 a",
+                "dispatch 1 a", "handled 1 a",
+                "exit a", "enter b", "enter b1", "transition a b1",
+                // Put back by the transition, b1 holds it until b exits
+                "dispatch 4 b1", "deferred 4 b", "handled 4 b1");
+    }
+
+    @Test
+    public void transitionRequestedByEnterIsReportedOnItsOwn() throws Exception {
+        mMachine.sendMessage(BOUNCE);
+        assertEvents("dispatch 5 a", "handled 5 a",
+                "exit a", "enter bounce", "transition a bounce",
+                "exit bounce", "enter c", "transition bounce c");
+    }
+}
@@ -0,0 +1,63 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of BURST messages sent one at a time or with sendMessages, and
+ * drained one at a time or in batches. The score is per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    private PersonMachine mMachine;
+
+    private final Message mBurst[] = new Message[BURST];
+
+    @Setup
+    public void setup() {
+        mMachine = new PersonMachine(Loops.newInlineLoop(batchSize));
+        mMachine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void sendMessage() {
+        for (int i = 0; i < BURST; i++) {
+            mMachine.sendMessage(PersonMachine.MSG_PING);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void sendMessages() {
+        for (int i = 0; i < BURST; i++) {
+            mBurst[i] = mMachine.obtainMessage(PersonMachine.MSG_PING);
+        }
+        mMachine.sendMessages(mBurst);
+    }
+}
@@ -0,0 +1,94 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageCoalescer;
+import com.xiaxl.demo.statemachine.QueueMessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of updates sent to a machine whose processing is slower than the
+ * sender, timed until the machine has seen the last one. Without coalescing
+ * every update is processed, with KEEP_LATEST the machine only processes the
+ * newest pending one.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CoalescingBenchmark {
+
+    static final int MSG_UPDATE = 1;
+
+    /**
+     * A machine that spends some time on each update
+     */
+    static final class UpdateMachine extends StateMachine {
+
+        volatile int mLast;
+
+        private final State mRunning = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                Blackhole.consumeCPU(1000);
+                mLast = msg.arg1;
+                return HANDLED;
+            }
+        };
+
+        UpdateMachine(QueueMessageLoop loop, boolean coalesce) {
+            super("UpdateMachine", loop);
+            addState(mRunning);
+            setInitialState(mRunning);
+            if (coalesce) setCoalescing(MSG_UPDATE, MessageCoalescer.KEEP_LATEST, 0);
+        }
+
+        void stop() {
+            quitNow();
+        }
+    }
+
+    @Param({"none", "keepLatest"})
+    public String mode;
+
+    @Param({"1000"})
+    public int burst;
+
+    private UpdateMachine mMachine;
+    private int mValue;
+
+    @Setup
+    public void setup() {
+        mMachine = new UpdateMachine(new QueueMessageLoop("coalescing"), "keepLatest".equals(mode));
+        mMachine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    @Benchmark
+    public void burst() {
+        int last = 0;
+        for (int i = 0; i < burst; i++) {
+            last = ++mValue;
+            mMachine.sendMessage(mMachine.obtainMessage(MSG_UPDATE, last));
+        }
+        while (mMachine.mLast != last) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating and starting a PersonMachine, the cost paid per instance when
+ * a large population of identical machines is created: its states added
+ * one by one, or taken from the shared PersonMachine.DEFINITION. Run with
+ * -prof gc to compare the bytes allocated per machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConstructionBenchmark {
+
+    @Param({"false", "true"})
+    public boolean shared;
+
+    @Benchmark
+    public PersonMachine createAndStart() {
+        PersonMachine machine = shared
+                ? new PersonMachine(Loops.newInlineLoop(), PersonMachine.DEFINITION)
+                : new PersonMachine(Loops.newInlineLoop());
+        machine.start();
+        machine.sendMessage(PersonMachine.MSG_WAKEUP);
+        return machine;
+    }
+}
@@ -0,0 +1,134 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A protocol handshake that steps through the substates of Connecting while
+ * the work sent meanwhile is deferred until Idle. With deferMessage every
+ * step puts all deferred messages back on the queue to be deferred again,
+ * with deferMessageUntilExit they stay with Connecting until it exits.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DeferChainBenchmark {
+
+    static final int MSG_WORK = 1;
+    static final int MSG_CONNECT = 2;
+    static final int MSG_STEP = 3;
+    static final int MSG_CONNECTED = 4;
+
+    static final int STEPS = 8;
+
+    /**
+     * Idle handles the work, Connecting defers it while its substates step
+     */
+    static final class HandshakeMachine extends StateMachine {
+
+        private final boolean mScoped;
+        int mDone;
+
+        private final State mIdle = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == MSG_WORK) {
+                    mDone++;
+                } else if (msg.what == MSG_CONNECT) {
+                    transitionTo(mSteps[0]);
+                }
+                return HANDLED;
+            }
+        };
+
+        private final State mConnecting = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == MSG_WORK) {
+                    if (mScoped) {
+                        deferMessageUntilExit(msg, mConnecting);
+                    } else {
+                        deferMessage(msg);
+                    }
+                } else if (msg.what == MSG_CONNECTED) {
+                    transitionTo(mIdle);
+                }
+                return HANDLED;
+            }
+        };
+
+        private final State mSteps[] = new State[STEPS];
+
+        HandshakeMachine(MessageLoop loop, boolean scoped) {
+            super("HandshakeMachine", loop);
+            mScoped = scoped;
+            addState(mIdle);
+            addState(mConnecting);
+            for (int i = 0; i < STEPS; i++) {
+                final int next = (i + 1) % STEPS;
+                mSteps[i] = new State() {
+                    @Override
+                    public boolean processMessage(Message msg) {
+                        if (msg.what == MSG_STEP) {
+                            transitionTo(mSteps[next]);
+                            return HANDLED;
+                        }
+                        return NOT_HANDLED;
+                    }
+                };
+                addState(mSteps[i], mConnecting);
+            }
+            setInitialState(mIdle);
+        }
+
+        void stop() {
+            quitNow();
+        }
+    }
+
+    @Param({"deferMessage", "deferMessageUntilExit"})
+    public String mode;
+
+    @Param({"16", "256"})
+    public int deferred;
+
+    private HandshakeMachine mMachine;
+
+    @Setup
+    public void setup() {
+        mMachine = new HandshakeMachine(Loops.newInlineLoop(), "deferMessageUntilExit".equals(mode));
+        mMachine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    @Benchmark
+    public int handshake() {
+        mMachine.sendMessage(MSG_CONNECT);
+        for (int i = 0; i < deferred; i++) {
+            mMachine.sendMessage(MSG_WORK);
+        }
+        for (int i = 0; i < STEPS; i++) {
+            mMachine.sendMessage(MSG_STEP);
+        }
+        mMachine.sendMessage(MSG_CONNECTED);
+        return mMachine.mDone;
+    }
+}
@@ -0,0 +1,51 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * deferMessage and moveDeferredMessageAtFrontOfQueue.
+ * <p>
+ * One operation defers {@code deferred} messages in Busy, transitions to
+ * Idle, which re-queues and processes them, and goes back to Busy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DeferralBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int deferred;
+
+    private DeferringMachine mMachine;
+
+    @Setup
+    public void setup() {
+        mMachine = new DeferringMachine(Loops.newInlineLoop());
+        mMachine.start();
+        mMachine.sendMessage(DeferringMachine.MSG_BUSY);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    @Benchmark
+    public void deferAndReplay() {
+        for (int i = 0; i < deferred; i++) {
+            mMachine.sendMessage(DeferringMachine.MSG_WORK);
+        }
+        mMachine.sendMessage(DeferringMachine.MSG_IDLE);
+        mMachine.sendMessage(DeferringMachine.MSG_BUSY);
+    }
+}
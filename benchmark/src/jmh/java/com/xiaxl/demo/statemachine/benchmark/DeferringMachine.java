@@ -0,0 +1,67 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+
+/**
+ * Two sibling states, Busy defers every MSG_WORK and Idle handles it.
+ * MSG_BUSY and MSG_IDLE switch between them, entering Idle puts the
+ * deferred messages back at the front of the queue.
+ */
+public class DeferringMachine extends StateMachine {
+
+    public static final int MSG_WORK = 1;
+    public static final int MSG_BUSY = 2;
+    public static final int MSG_IDLE = 3;
+
+    private final State mIdleState = new IdleState();
+    private final State mBusyState = new BusyState();
+
+    int mDone;
+
+    public DeferringMachine(MessageLoop loop) {
+        super("Deferring", loop);
+        addState(mIdleState, null);
+        addState(mBusyState, null);
+        setInitialState(mIdleState);
+    }
+
+    public void stop() {
+        quitNow();
+    }
+
+    class IdleState extends State {
+        @Override
+        public boolean processMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_WORK:
+                    mDone++;
+                    return HANDLED;
+                case MSG_BUSY:
+                    transitionTo(mBusyState);
+                    return HANDLED;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
+    }
+
+    class BusyState extends State {
+        @Override
+        public boolean processMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_WORK:
+                    deferMessage(msg);
+                    return HANDLED;
+                case MSG_IDLE:
+                    transitionTo(mIdleState);
+                    return HANDLED;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import com.xiaxl.demo.statemachine.TransitionListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of SmHandler.handleMessage on the PersonStateMachine hierarchy,
+ * each operation is one message sent and fully processed, with and without
+ * latency histograms and with and without a TransitionListener that does
+ * nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HandleMessageBenchmark {
+
+    @Param({"false", "true"})
+    public boolean tracking;
+
+    @Param({"false", "true"})
+    public boolean listener;
+
+    private PersonMachine mMachine;
+
+    private int mStep;
+
+    @Setup
+    public void setup() {
+        mMachine = new PersonMachine(Loops.newInlineLoop());
+        mMachine.setLatencyTracking(tracking);
+        if (listener) mMachine.setTransitionListener(new TransitionListener.Adapter());
+        mMachine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    /**
+     * Not handled by the leaf, handled by its parent.
+     */
+    @Benchmark
+    public void handledByParent() {
+        mMachine.sendMessage(PersonMachine.MSG_PING);
+    }
+
+    /**
+     * Every message is handled by the leaf and transitions to a sibling.
+     */
+    @Benchmark
+    public void transitionCycle() {
+        switch (mStep++ % 3) {
+            case 0:
+                mMachine.sendMessage(PersonMachine.MSG_WAKEUP);
+                break;
+            case 1:
+                mMachine.sendMessage(PersonMachine.MSG_HUNGRY);
+                break;
+            default:
+                mMachine.sendMessage(PersonMachine.MSG_TIRED);
+                break;
+        }
+    }
+}
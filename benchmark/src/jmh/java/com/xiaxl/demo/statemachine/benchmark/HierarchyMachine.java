@@ -0,0 +1,77 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+
+/**
+ * A generated hierarchy: a root with {@code width} branches, each branch a
+ * chain of {@code depth} states. The leaf of every branch is a target of
+ * MSG_GOTO (arg1 is the branch), so going from one branch to another exits
+ * and enters {@code depth} states. MSG_PING is only handled by the root.
+ */
+public class HierarchyMachine extends StateMachine {
+
+    public static final int MSG_GOTO = 1;
+    public static final int MSG_PING = 2;
+
+    private final State[] mLeaves;
+
+    int mPings;
+
+    public HierarchyMachine(MessageLoop loop, int depth, int width) {
+        super("Hierarchy", loop);
+        State root = new RootState();
+        addState(root, null);
+        mLeaves = new State[width];
+        for (int b = 0; b < width; b++) {
+            State parent = root;
+            for (int d = 0; d < depth; d++) {
+                State s = new NodeState("b" + b + "d" + d);
+                addState(s, parent);
+                parent = s;
+            }
+            mLeaves[b] = parent;
+        }
+        setInitialState(mLeaves[0]);
+    }
+
+    public int getWidth() {
+        return mLeaves.length;
+    }
+
+    public void stop() {
+        quitNow();
+    }
+
+    class RootState extends State {
+        @Override
+        public boolean processMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_GOTO:
+                    transitionTo(mLeaves[msg.arg1]);
+                    return HANDLED;
+                case MSG_PING:
+                    mPings++;
+                    return HANDLED;
+                default:
+                    return NOT_HANDLED;
+            }
+        }
+    }
+
+    static class NodeState extends State {
+        private final String mName;
+
+        NodeState(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.TransitionJournal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of BURST messages, each a transition, handled by a machine with
+ * a TransitionJournal: forced to disk after every message, after every
+ * batch of BURST messages, or by the flusher thread within 5 ms. The score
+ * is per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JournalBenchmark {
+
+    private static final int BURST = 64;
+
+    private static final int CYCLE[] = {
+            PersonMachine.MSG_WAKEUP, PersonMachine.MSG_HUNGRY, PersonMachine.MSG_TIRED
+    };
+
+    @Param({"none", "perMessage", "perBatch", "interval"})
+    public String commit;
+
+    private File mDir;
+    private TransitionJournal mJournal;
+    private PersonMachine mMachine;
+
+    private final Message mBurst[] = new Message[BURST];
+
+    @Setup
+    public void setup() throws IOException {
+        mDir = File.createTempFile("journal", "");
+        if (!mDir.delete() || !mDir.mkdir()) {
+            throw new IOException("cannot create " + mDir);
+        }
+        mMachine = new PersonMachine(Loops.newInlineLoop("perMessage".equals(commit) ? 1 : BURST));
+        if (!"none".equals(commit)) {
+            mJournal = new TransitionJournal(mDir, "person", "interval".equals(commit) ? 5 : 0,
+                    TransitionJournal.DEFAULT_COMPACT_RECORDS);
+            mMachine.setJournal(mJournal);
+        }
+        mMachine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+        if (mJournal != null) mJournal.close();
+        File files[] = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void sendMessages() {
+        for (int i = 0; i < BURST; i++) {
+            mBurst[i] = mMachine.obtainMessage(CYCLE[i % CYCLE.length]);
+        }
+        mMachine.sendMessages(mBurst);
+    }
+}
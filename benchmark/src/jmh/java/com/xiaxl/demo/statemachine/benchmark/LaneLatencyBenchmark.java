@@ -0,0 +1,152 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.QueueMessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency of a probe message sent in each lane while a feeder thread keeps
+ * a backlog of bulk events queued. With lane "fifo" no lane is set, bulk
+ * events and the probe share the normal lane as in a single queue.
+ * <p>
+ * The measured time includes waking the benchmark thread up again, on a
+ * machine with few cores that is a scheduler time slice. The secondary
+ * results count the probes and the nanoseconds from sending each of them
+ * to the machine processing it, dispatchNanos / probes is the mean
+ * dispatch latency.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LaneLatencyBenchmark {
+
+    static final int MSG_BULK = 1;
+    static final int MSG_PROBE = 2;
+
+    /**
+     * A machine that spends some time on each bulk event
+     */
+    static final class LaneMachine extends StateMachine {
+
+        volatile int mProbed;
+        long mSentAt;
+        long mLatency;
+
+        private final State mRunning = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == MSG_BULK) {
+                    Blackhole.consumeCPU(500);
+                } else {
+                    mLatency = System.nanoTime() - mSentAt;
+                    mProbed = msg.arg1;
+                }
+                return HANDLED;
+            }
+        };
+
+        LaneMachine(MessageLoop loop, int probeLane, boolean bulkLane) {
+            super("LaneMachine", loop);
+            addState(mRunning);
+            setInitialState(mRunning);
+            setMessageLane(MSG_PROBE, probeLane);
+            if (bulkLane) setMessageLane(MSG_BULK, MessageLoop.LANE_BULK);
+        }
+
+        void stop() {
+            quitNow();
+        }
+    }
+
+    /**
+     * The probes sent and their total dispatch latency
+     */
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Latency {
+        public long probes;
+        public long dispatchNanos;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            probes = 0;
+            dispatchNanos = 0;
+        }
+    }
+
+    @Param({"fifo", "control", "normal", "bulk"})
+    public String lane;
+
+    @Param({"1000"})
+    public int backlog;
+
+    private QueueMessageLoop mLoop;
+    private LaneMachine mMachine;
+    private Thread mFeeder;
+    private volatile boolean mFeeding;
+    private int mSeq;
+
+    @Setup
+    public void setup() {
+        int probeLane = MessageLoop.LANE_NORMAL;
+        if ("control".equals(lane)) probeLane = MessageLoop.LANE_CONTROL;
+        if ("bulk".equals(lane)) probeLane = MessageLoop.LANE_BULK;
+        mLoop = new QueueMessageLoop("lanes");
+        mMachine = new LaneMachine(mLoop, probeLane, !"fifo".equals(lane));
+        mMachine.start();
+        mFeeding = true;
+        mFeeder = new Thread("feeder") {
+            @Override
+            public void run() {
+                while (mFeeding) {
+                    // Top the backlog up once it is half drained
+                    if (mLoop.countMessages(MSG_BULK) < backlog / 2) {
+                        for (int i = mLoop.countMessages(MSG_BULK); i < backlog; i++) {
+                            mMachine.sendMessage(MSG_BULK);
+                        }
+                    }
+                    LockSupport.parkNanos(100000);
+                }
+            }
+        };
+        mFeeder.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mFeeding = false;
+        mFeeder.join();
+        mMachine.stop();
+    }
+
+    @Benchmark
+    public void probe(Latency latency) {
+        int seq = ++mSeq;
+        // Published to the machine by the send
+        mMachine.mSentAt = System.nanoTime();
+        mMachine.sendMessage(mMachine.obtainMessage(MSG_PROBE, seq));
+        while (mMachine.mProbed != seq) {
+            Thread.yield();
+        }
+        latency.probes++;
+        latency.dispatchNanos += mMachine.mLatency;
+    }
+}
@@ -0,0 +1,215 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Handler;
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageCoalescer;
+import com.xiaxl.demo.statemachine.MessageLoop;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Baseline for the contention benchmarks: a monitor-guarded queue, like
+ * android.os.MessageQueue and the QueueMessageLoop before the lock-free
+ * mailbox. Every send and every poll takes the queue's lock.
+ */
+final class LockedMessageLoop implements MessageLoop {
+
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final ArrayDeque<Message> mQueue = new ArrayDeque<Message>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private Callback mCallback;
+
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            boolean done = false;
+            while (!done) {
+                Message msg;
+                while ((msg = poll()) != null) {
+                    mCallback.handleMessage(msg);
+                }
+                mScheduled.set(false);
+                done = isEmpty() || !mScheduled.compareAndSet(false, true);
+            }
+        }
+    };
+
+    LockedMessageLoop() {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    @Override
+    public boolean sendMessage(Message msg) {
+        synchronized (mQueue) {
+            mQueue.addLast(msg);
+        }
+        schedule();
+        return true;
+    }
+
+    @Override
+    public boolean sendMessages(Message msgs[]) {
+        synchronized (mQueue) {
+            for (Message msg : msgs) {
+                mQueue.addLast(msg);
+            }
+        }
+        schedule();
+        return true;
+    }
+
+    @Override
+    public boolean sendMessageDelayed(final Message msg, long delayMillis) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendMessage(msg);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public Object sendTimer(final Message msg, long delayMillis) {
+        return mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendMessage(msg);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void cancelTimer(Object timer) {
+        ((ScheduledFuture<?>) timer).cancel(false);
+    }
+
+    @Override
+    public boolean sendMessagesAtFrontOfQueue(Message msgs[]) {
+        synchronized (mQueue) {
+            for (int i = msgs.length - 1; i >= 0; i--) {
+                mQueue.addFirst(msgs[i]);
+            }
+        }
+        schedule();
+        return true;
+    }
+
+    @Override
+    public boolean sendReservedMessages(Message msgs[]) {
+        return sendMessages(msgs);
+    }
+
+    @Override
+    public void setCoalescing(int what, MessageCoalescer coalescer, long windowMillis) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean trySendMessage(Message msg) {
+        return sendMessage(msg);
+    }
+
+    @Override
+    public void setCapacity(int capacity, int overflowPolicy) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return -1;
+    }
+
+    @Override
+    public void setLane(int what, int lane) {
+    }
+
+    @Override
+    public void setQueueTiming(boolean enable) {
+    }
+
+    @Override
+    public long getEnqueueTime() {
+        return 0;
+    }
+
+    @Override
+    public long getOldestPendingAge() {
+        return -1;
+    }
+
+    @Override
+    public boolean sendMessageAtFrontOfQueue(Message msg) {
+        synchronized (mQueue) {
+            mQueue.addFirst(msg);
+        }
+        schedule();
+        return true;
+    }
+
+    @Override
+    public void removeMessages(int what) {
+        synchronized (mQueue) {
+            for (Iterator<Message> it = mQueue.iterator(); it.hasNext(); ) {
+                if (it.next().what == what) it.remove();
+            }
+        }
+    }
+
+    @Override
+    public boolean hasMessages(int what) {
+        synchronized (mQueue) {
+            for (Message msg : mQueue) {
+                if (msg.what == what) return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void quit() {
+        synchronized (mQueue) {
+            mQueue.clear();
+        }
+        mExecutor.shutdown();
+        mTimer.shutdown();
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mDispatchTask);
+        }
+    }
+
+    private Message poll() {
+        synchronized (mQueue) {
+            return mQueue.pollFirst();
+        }
+    }
+
+    private boolean isEmpty() {
+        synchronized (mQueue) {
+            return mQueue.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LogRecords.add with setLogOnlyTransitions on and off.
+ * <p>
+ * With logOnlyTransitions only the transitioning messages are recorded,
+ * otherwise every message is. The machine formats its messages in
+ * getLogRecString, with infoDeferred that is left to the readers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LogRecordsBenchmark {
+
+    @Param({"false", "true"})
+    public boolean logOnlyTransitions;
+
+    @Param({"20", "1000"})
+    public int logRecSize;
+
+    @Param({"false", "true"})
+    public boolean infoDeferred;
+
+    private PersonMachine mMachine;
+
+    private int mStep;
+
+    @Setup
+    public void setup() {
+        mMachine = new PersonMachine(Loops.newInlineLoop()) {
+            @Override
+            protected String getLogRecString(Message msg) {
+                return String.format("arg1=%d arg2=%d obj=%s", msg.arg1, msg.arg2, msg.obj);
+            }
+        };
+        mMachine.setLogRecSize(logRecSize);
+        mMachine.setLogOnlyTransitions(logOnlyTransitions);
+        mMachine.setLogRecInfoDeferred(infoDeferred);
+        mMachine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    /**
+     * No transition, recorded only when logOnlyTransitions is off.
+     */
+    @Benchmark
+    public void message() {
+        mMachine.sendMessage(PersonMachine.MSG_PING);
+    }
+
+    /**
+     * Sleep -> Work -> Eat -> Sleep, always recorded.
+     */
+    @Benchmark
+    public void transition() {
+        switch (mStep++ % 3) {
+            case 0:
+                mMachine.sendMessage(PersonMachine.MSG_WAKEUP);
+                break;
+            case 1:
+                mMachine.sendMessage(PersonMachine.MSG_HUNGRY);
+                break;
+            default:
+                mMachine.sendMessage(PersonMachine.MSG_TIRED);
+                break;
+        }
+    }
+}
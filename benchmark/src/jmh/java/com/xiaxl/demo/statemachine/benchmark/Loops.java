@@ -0,0 +1,42 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.QueueMessageLoop;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Message loops used by the benchmarks.
+ */
+final class Loops {
+
+    /**
+     * Runs the dispatch task on the sending thread
+     */
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private Loops() {
+    }
+
+    /**
+     * @return a loop that processes a message before sendMessage returns, so a
+     * benchmark operation measures the whole dispatch path without a thread hand-off.
+     */
+    static MessageLoop newInlineLoop() {
+        return new QueueMessageLoop(INLINE);
+    }
+
+    /**
+     * @return an inline loop that dispatches in batches of up to batchSize messages
+     */
+    static MessageLoop newInlineLoop(int batchSize) {
+        QueueMessageLoop loop = new QueueMessageLoop(INLINE);
+        loop.setBatchSize(batchSize);
+        return loop;
+    }
+}
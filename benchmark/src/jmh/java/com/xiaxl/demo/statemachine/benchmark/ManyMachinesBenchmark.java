@@ -0,0 +1,132 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.QueueMessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+import com.xiaxl.demo.statemachine.StateMachineScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One message sent to each of many state machines, the score is the time
+ * until all of them have processed it.
+ * <p>
+ * mode is how the machines get a thread:
+ * <ul>
+ * <li>thread: a QueueMessageLoop with its own platform thread per machine</li>
+ * <li>pooled: a StateMachineScheduler with one thread per core</li>
+ * <li>virtual: QueueMessageLoop.newVirtualThreadLoop, needs Java 21</li>
+ * </ul>
+ * With blockMillis the state sleeps as if it did blocking I/O. The thread
+ * mode needs a process limit above the number of machines, e.g.
+ * -p machines=10000 on a small box.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ManyMachinesBenchmark {
+
+    @Param({"thread", "pooled", "virtual"})
+    public String mode;
+
+    @Param({"100000"})
+    public int machines;
+
+    @Param({"0", "1"})
+    public int blockMillis;
+
+    private StateMachineScheduler mScheduler;
+
+    private RoundMachine mMachines[];
+
+    /**
+     * Counted down by every machine once per round
+     */
+    private volatile CountDownLatch mRound;
+
+    class RoundMachine extends StateMachine {
+        RoundMachine(String name, MessageLoop loop) {
+            super(name, loop);
+            State state = new State() {
+                @Override
+                public boolean processMessage(Message msg) {
+                    if (blockMillis > 0) {
+                        try {
+                            Thread.sleep(blockMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    mRound.countDown();
+                    return HANDLED;
+                }
+            };
+            addState(state, null);
+            setInitialState(state);
+        }
+
+        void stop() {
+            quitNow();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        if ("virtual".equals(mode) && !QueueMessageLoop.isVirtualThreadSupported()) {
+            throw new IllegalStateException("virtual mode needs Java 21");
+        }
+        if ("pooled".equals(mode)) {
+            mScheduler = new StateMachineScheduler("pooled",
+                    Runtime.getRuntime().availableProcessors());
+        }
+        mMachines = new RoundMachine[machines];
+        for (int i = 0; i < machines; i++) {
+            String name = "machine-" + i;
+            MessageLoop loop;
+            if ("thread".equals(mode)) {
+                loop = new QueueMessageLoop(name);
+            } else if ("pooled".equals(mode)) {
+                loop = mScheduler.newLoop();
+            } else {
+                loop = QueueMessageLoop.newVirtualThreadLoop(name);
+            }
+            mMachines[i] = new RoundMachine(name, loop);
+            mMachines[i].start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mMachines != null) {
+            for (RoundMachine machine : mMachines) {
+                if (machine != null) machine.stop();
+            }
+        }
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void round() throws InterruptedException {
+        CountDownLatch round = new CountDownLatch(machines);
+        mRound = round;
+        for (RoundMachine machine : mMachines) {
+            machine.sendMessage(1);
+        }
+        round.await();
+    }
+}
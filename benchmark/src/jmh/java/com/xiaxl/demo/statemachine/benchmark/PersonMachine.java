@@ -0,0 +1,103 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+import com.xiaxl.demo.statemachine.StateMachineDefinition;
+
+/**
+ * The PersonStateMachine hierarchy without the logging:
+ * Boring is the parent of Sleep, Work and Eat.
+ * <p>
+ * WAKEUP, HUNGRY and TIRED move Sleep -> Work -> Eat -> Sleep, PING is only
+ * handled by Boring so it always bubbles up from the leaf.
+ * <p>
+ * Built either with addState or from the shared DEFINITION.
+ */
+public class PersonMachine extends StateMachine {
+
+    public static final int MSG_WAKEUP = 1;
+    public static final int MSG_TIRED = 2;
+    public static final int MSG_HUNGRY = 3;
+    public static final int MSG_PING = 4;
+
+    private final State mBoringState = new BoringState();
+    private final State mWorkState = new WorkState();
+    private final State mEatState = new EatState();
+    private final State mSleepState = new SleepState();
+
+    int mPings;
+
+    static final StateMachineDefinition DEFINITION = new StateMachineDefinition();
+
+    static {
+        DEFINITION.addState("Boring");
+        DEFINITION.addState("Sleep", "Boring");
+        DEFINITION.addState("Work", "Boring");
+        DEFINITION.addState("Eat", "Boring");
+        DEFINITION.setInitialState("Sleep");
+    }
+
+    public PersonMachine(MessageLoop loop) {
+        super("Person", loop);
+        addState(mBoringState, null);
+        addState(mSleepState, mBoringState);
+        addState(mWorkState, mBoringState);
+        addState(mEatState, mBoringState);
+        setInitialState(mSleepState);
+    }
+
+    public PersonMachine(MessageLoop loop, StateMachineDefinition definition) {
+        super("Person", loop, definition);
+        setStates(mBoringState, mSleepState, mWorkState, mEatState);
+    }
+
+    public void stop() {
+        quitNow();
+    }
+
+    class BoringState extends State {
+        @Override
+        public boolean processMessage(Message msg) {
+            if (msg.what == MSG_PING) {
+                mPings++;
+            }
+            return HANDLED;
+        }
+    }
+
+    class SleepState extends State {
+        @Override
+        public boolean processMessage(Message msg) {
+            if (msg.what == MSG_WAKEUP) {
+                transitionTo(mWorkState);
+                return HANDLED;
+            }
+            return NOT_HANDLED;
+        }
+    }
+
+    class WorkState extends State {
+        @Override
+        public boolean processMessage(Message msg) {
+            if (msg.what == MSG_HUNGRY) {
+                transitionTo(mEatState);
+                return HANDLED;
+            }
+            return NOT_HANDLED;
+        }
+    }
+
+    class EatState extends State {
+        @Override
+        public boolean processMessage(Message msg) {
+            if (msg.what == MSG_TIRED) {
+                transitionTo(mSleepState);
+                return HANDLED;
+            }
+            return NOT_HANDLED;
+        }
+    }
+}
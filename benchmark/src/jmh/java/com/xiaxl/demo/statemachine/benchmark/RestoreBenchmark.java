@@ -0,0 +1,91 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bringing a machine back after a restart, either by replaying its
+ * history of events or by starting it from a snapshot taken at the end of
+ * that history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RestoreBenchmark {
+
+    /**
+     * A PersonMachine whose ping count survives a snapshot
+     */
+    static final class RestorablePerson extends PersonMachine {
+
+        RestorablePerson(MessageLoop loop) {
+            super(loop);
+        }
+
+        @Override
+        protected void onSaveState(DataOutput out) throws IOException {
+            out.writeInt(mPings);
+        }
+
+        @Override
+        protected void onRestoreState(DataInput in) throws IOException {
+            mPings = in.readInt();
+        }
+    }
+
+    private static final int CYCLE[] = {
+            PersonMachine.MSG_WAKEUP, PersonMachine.MSG_PING,
+            PersonMachine.MSG_HUNGRY, PersonMachine.MSG_TIRED
+    };
+
+    @Param({"replay", "snapshot"})
+    public String mode;
+
+    @Param({"100", "10000"})
+    public int history;
+
+    private byte mSnapshot[];
+
+    @Setup
+    public void setup() {
+        RestorablePerson person = replay();
+        mSnapshot = person.snapshot();
+        person.stop();
+    }
+
+    private RestorablePerson replay() {
+        RestorablePerson person = new RestorablePerson(Loops.newInlineLoop());
+        person.start();
+        for (int i = 0; i < history; i++) {
+            person.sendMessage(CYCLE[i % CYCLE.length]);
+        }
+        return person;
+    }
+
+    @Benchmark
+    public int restart() {
+        RestorablePerson person;
+        if ("replay".equals(mode)) {
+            person = replay();
+        } else {
+            person = new RestorablePerson(Loops.newInlineLoop());
+            person.start(mSnapshot);
+        }
+        int pings = person.mPings;
+        person.stop();
+        return pings;
+    }
+}
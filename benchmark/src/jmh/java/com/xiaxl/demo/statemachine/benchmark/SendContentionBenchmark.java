@@ -0,0 +1,109 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.QueueMessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Many threads sending to one state machine on its own thread, the lock-free
+ * mailbox of QueueMessageLoop against a monitor-guarded queue.
+ * <p>
+ * Run with -t to change the number of producers. Producers wait when the
+ * consumer falls too far behind so the queue stays bounded, the score is the
+ * rate at which messages are sent and processed.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class SendContentionBenchmark {
+
+    private static final int MSG_COUNT = 1;
+
+    /**
+     * Sends between two checks of the backlog
+     */
+    private static final int BATCH = 1024;
+
+    private static final long MAX_BACKLOG = 64 * 1024;
+
+    @Param({"mailbox", "locked"})
+    public String queue;
+
+    private CountingMachine mMachine;
+
+    /**
+     * Number of BATCHes sent by all producers
+     */
+    private final AtomicLong mBatches = new AtomicLong();
+
+    /**
+     * Processes every message in a single state
+     */
+    static class CountingMachine extends StateMachine {
+        volatile long mProcessed;
+
+        CountingMachine(MessageLoop loop) {
+            super("Counting", loop);
+            State counting = new State() {
+                @Override
+                public boolean processMessage(Message msg) {
+                    mProcessed++;
+                    return HANDLED;
+                }
+            };
+            addState(counting, null);
+            setInitialState(counting);
+        }
+
+        void stop() {
+            quitNow();
+        }
+    }
+
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    public static class Producer {
+        int mSent;
+    }
+
+    @Setup
+    public void setup() {
+        MessageLoop loop = "mailbox".equals(queue)
+                ? new QueueMessageLoop("Counting") : new LockedMessageLoop();
+        mMachine = new CountingMachine(loop);
+        mMachine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    @Benchmark
+    public void sendMessage(Producer producer) {
+        mMachine.sendMessage(MSG_COUNT);
+        if (++producer.mSent == BATCH) {
+            producer.mSent = 0;
+            long sent = mBatches.incrementAndGet() * BATCH;
+            while (sent - mMachine.mProcessed > MAX_BACKLOG) {
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import android.os.Message;
+
+import com.xiaxl.demo.statemachine.MessageLoop;
+import com.xiaxl.demo.statemachine.State;
+import com.xiaxl.demo.statemachine.StateMachine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A round trip into and out of a state with a timeout, while pending
+ * delayed messages sit in the queue. The timeout is either set with
+ * setStateTimeout or sent in enter and removed with removeMessages in exit.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TimeoutBenchmark {
+
+    static final int MSG_ENTER = 1;
+    static final int MSG_LEAVE = 2;
+    static final int MSG_TIMEOUT = 3;
+    static final int MSG_BACKGROUND = 4;
+
+    /**
+     * A machine that toggles between idle and busy, busy has a timeout
+     */
+    static final class TimeoutMachine extends StateMachine {
+
+        private final boolean mManual;
+
+        private final State mIdle = new State() {
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == MSG_ENTER) {
+                    transitionTo(mBusy);
+                }
+                return HANDLED;
+            }
+        };
+
+        private final State mBusy = new State() {
+            @Override
+            public void enter() {
+                if (mManual) sendMessageDelayed(MSG_TIMEOUT, 60000);
+            }
+
+            @Override
+            public void exit() {
+                if (mManual) removeMessages(MSG_TIMEOUT);
+            }
+
+            @Override
+            public boolean processMessage(Message msg) {
+                if (msg.what == MSG_LEAVE || msg.what == MSG_TIMEOUT) {
+                    transitionTo(mIdle);
+                }
+                return HANDLED;
+            }
+        };
+
+        TimeoutMachine(MessageLoop loop, boolean manual) {
+            super("TimeoutMachine", loop);
+            mManual = manual;
+            addState(mIdle);
+            addState(mBusy);
+            if (!manual) setStateTimeout(mBusy, MSG_TIMEOUT, 60000);
+            setInitialState(mIdle);
+        }
+
+        void stop() {
+            quitNow();
+        }
+    }
+
+    @Param({"stateTimeout", "removeMessages"})
+    public String mode;
+
+    @Param({"0", "10000"})
+    public int pending;
+
+    private TimeoutMachine mMachine;
+
+    @Setup
+    public void setup() {
+        mMachine = new TimeoutMachine(Loops.newInlineLoop(), "removeMessages".equals(mode));
+        mMachine.start();
+        for (int i = 0; i < pending; i++) {
+            mMachine.sendMessageDelayed(MSG_BACKGROUND, 3600000 + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    @Benchmark
+    public void enterAndLeave() {
+        mMachine.sendMessage(MSG_ENTER);
+        mMachine.sendMessage(MSG_LEAVE);
+    }
+}
@@ -0,0 +1,61 @@
+package com.xiaxl.demo.statemachine.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of performTransitions against the shape of the hierarchy.
+ * <p>
+ * Every operation moves to the leaf of the next branch, so it exits and
+ * enters {@code depth} states. {@code width} controls how many distinct
+ * (source, destination) pairs the machine cycles through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransitionBenchmark {
+
+    @Param({"1", "4", "16", "64"})
+    public int depth;
+
+    @Param({"2", "64"})
+    public int width;
+
+    private HierarchyMachine mMachine;
+
+    private int mBranch;
+
+    @Setup
+    public void setup() {
+        mMachine = new HierarchyMachine(Loops.newInlineLoop(), depth, width);
+        mMachine.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMachine.stop();
+    }
+
+    @Benchmark
+    public void transition() {
+        mBranch = (mBranch + 1) % width;
+        mMachine.sendMessage(HierarchyMachine.MSG_GOTO, mBranch);
+    }
+
+    /**
+     * Message that bubbles from the leaf up to the root without a transition.
+     */
+    @Benchmark
+    public void bubbleToRoot() {
+        mMachine.sendMessage(HierarchyMachine.MSG_PING);
+    }
+}